@@ -3,7 +3,9 @@
 // license found at www.lloseng.com 
 
 import java.io.*;
+import java.util.List;
 import java.util.Scanner;
+import javax.net.ssl.SSLContext;
 
 import client.*;
 import common.*;
@@ -38,6 +40,11 @@ public class ClientConsole implements ChatIF {
      */
     Scanner fromConsole;
 
+    /**
+     * The commands handled by the console itself, such as "#sethost".
+     */
+    CommandTable<Void> commands = new CommandTable<>();
+
     // Constructors ****************************************************
 
     /**
@@ -47,8 +54,46 @@ public class ClientConsole implements ChatIF {
      * @param port The port to connect on.
      */
     public ClientConsole(String loginID, String host, int port) {
+        this(loginID, host, port, false);
+    }
+
+    /**
+     * Constructs an instance of the ClientConsole UI, choosing the protocol.
+     *
+     * @param host   The host to connect to.
+     * @param port   The port to connect on.
+     * @param framed true to speak the compact protocol.
+     */
+    public ClientConsole(String loginID, String host, int port, boolean framed) {
+        this(loginID, host, port, framed, false);
+    }
+
+    /**
+     * Constructs an instance of the ClientConsole UI, choosing the protocol
+     * and whether to ask for compression.
+     *
+     * @param host     The host to connect to.
+     * @param port     The port to connect on.
+     * @param framed   true to speak the compact protocol.
+     * @param compress true to ask for the long messages to be compressed.
+     */
+    public ClientConsole(String loginID, String host, int port, boolean framed, boolean compress) {
+        this(loginID, host, port, framed, compress, null);
+    }
+
+    /**
+     * Constructs an instance of the ClientConsole UI, choosing the protocol,
+     * whether to ask for compression and whether to use TLS.
+     *
+     * @param host     The host to connect to.
+     * @param port     The port to connect on.
+     * @param framed   true to speak the compact protocol.
+     * @param compress true to ask for the long messages to be compressed.
+     * @param tls      The TLS context, or null for plain TCP.
+     */
+    public ClientConsole(String loginID, String host, int port, boolean framed, boolean compress, SSLContext tls) {
         try {
-            client = new ChatClient(loginID, host, port, this);
+            client = new ChatClient(loginID, host, port, this, framed, compress, tls);
 
         } catch (IOException exception) {
             System.out.println("Cannot open connection. Awaiting command.");
@@ -56,13 +101,16 @@ public class ClientConsole implements ChatIF {
 
         // Create scanner object to read from console
         fromConsole = new Scanner(System.in);
+
+        registerCommands();
     }
 
     // Instance methods ************************************************
 
     /**
-     * This method waits for input from the console. Once it is received, it sends
-     * it to the client's message handler.
+     * This method waits for input from the console. Commands of the console
+     * are run from the command table; other commands and plain messages are
+     * sent to the server.
      */
     public void accept() {
         try {
@@ -71,177 +119,14 @@ public class ClientConsole implements ChatIF {
             while (true) {
                 message = fromConsole.nextLine();
 
-                // Prevents the program from crashing
-                // by making sure the message is not null
-                if (message.equals("")) {
-                    accept();
-                }
-
-                // First see if there is a command
-                if (message.charAt(0) == '#') {
-
-                    // Looks a the fist word of the message
-                    switch (message.split(" ")[0]) {
-
-                    case "#quit":
-
-                        // Tries to close normally
-                        // If it can't, it force closes
-                        try {
-                            client.handleMessageFromClientUI(message);
-                            client.quit();
-                        } catch (NullPointerException e) {
-                            System.exit(0);
-                        }
-                        break;
-
-                    case "#logoff":
-
-                        // Disconnects the user
-                        try {
-                            client.handleMessageFromClientUI(message);
-                            client.closeConnection();
-                        } catch (IOException e) {
-                            display("The connection could not be closed.");
-                        }
-                        break;
-
-                    case "#sethost":
-                        try {
-
-                            // Makes sure the client is not connected
-                            try {
-                                if (client.isConnected()) {
-                                    display("Make sure to disconnect using the command '#logoff' before "
-                                            + "\nchanging your host name.");
-                                    break;
-                                }
-                            }
-
-                            // If any problem occurs
-                            catch (Exception e) {
-                                // Do nothing
-                            }
-
-                            // Displays the second part of the message
-                            // which is the future host name
-                            display("Setting host name to '" + message.split(" ")[1] + "'");
-
-                            // Sets the host name
-                            client.setHost(message.split(" ")[1]);
-
-                            // Shows success
-                            display("Done! Your host name is now set to '" + message.split(" ")[1] + "'");
-                        }
-
-                        // If no host name was given
-                        catch (ArrayIndexOutOfBoundsException e) {
-                            display("Make sure to also include your desired host name at the end"
-                                    + " of your command.");
-                        }
-
-                        // If it couldn't connect to the client
-                        catch (NullPointerException en) {
-                            display("Done! Your host name is now set to '" + message.split(" ")[1] + "'");
-                        }
-
-                        // Any other problem
-                        catch (Exception ex) {
-                            display("There was a problem with the host name you entered.");
-                        }
-                        break;
-
-                    case "#setport":
-                        try {
-
-                            // Makes sure the client is not connected
-                            try {
-                                if (client.isConnected()) {
-                                    display("Make sure to disconnect using the command '#logoff' before "
-                                            + "\nchanging your port number.");
-                                    break;
-                                }
-                            }
-
-                            // If any problem occurs
-                            catch (Exception e) {
-                                // Do nothing
-                            }
-
-                            // Displays the second part of the message
-                            // which is the future port number
-                            display("Setting the port number to " + message.split(" ")[1]);
-
-                            // Sets the port number
-                            client.setPort(Integer.parseInt(message.split(" ")[1]));
-
-                            // Shows success
-                            display("Done! Your port is now set to " + message.split(" ")[1]);
-                        }
-
-                        // If no port number was given
-                        catch (ArrayIndexOutOfBoundsException e) {
-                            display("Make sure to also include your desired port at the end of your command.");
-                        }
-
-                        // If it couldn't connect to the client
-                        catch (NullPointerException en) {
-                            display("Done! Your port is now set to " + message.split(" ")[1]);
-                        }
-
-                        // Any other problem
-                        catch (Exception ex) {
-                            display("There was a problem with the port number you entered. Make sure its a number.");
-                        }
-                        break;
-
-                    case "#login":
-                        // If client is not connected
-                        if (!client.isConnected()) {
-                            try {
-
-                                // If a user name was provided it changes the
-                                // loginID so it can use the new user name provided
-                                if (message.split(" ").length == 2) {
-                                    client.setLoginID(message.split(" ")[1]);
-                                }
-
-                                // Otherwise, it connects with the user name
-                                // previously provided
-                                client.openConnection();
-                            } catch (IOException e) {
-                                display("The server could not be reached.");
-                            }
-                        }
-
-                        // If client is already connected
-                        else {
-                            display("You are already logged in. You can't login again.");
-                        }
-                        break;
-
-                    case "#gethost":
-                        display("Your current hostname is '" + client.getHost() + "'.");
-                        break;
-
-                    case "#getport":
-                        display("Your current port is " + client.getPort() + ".");
-                        break;
-
-                    default:
-                        display("'" + message + "' doesn't match any commands.");
-                    }
+                // Ignores empty lines
+                if (message.isEmpty()) {
+                    continue;
                 }
 
                 // If no command was given, proceed to sending the message to the client
-                else {
-                    try {
-                        client.handleMessageFromClientUI(message);
-                    } catch (NullPointerException e) {
-                        display("Couldn't connect to server.\n"
-                                + "Enter '#login <loginID>', or if you already logged in '#login'\n"
-                                + "to try to connect to the server.");
-                    }
+                if (!commands.dispatch(message, null)) {
+                    sendToServer(message);
                 }
             }
         }
@@ -253,6 +138,194 @@ public class ClientConsole implements ChatIF {
         }
     }
 
+    /**
+     * This method registers the commands of the console. Any other command,
+     * such as "#join", is left to the server.
+     */
+    private void registerCommands() {
+        commands.register("#quit", this::quit)
+                .register("#logoff", this::logoff)
+                .register("#sethost", this::setHost)
+                .register("#setport", this::setPort)
+                .register("#login", this::login)
+                .register("#gethost", (args, line, none) -> display("Your current hostname is '" + client.getHost() + "'."))
+                .register("#getport", (args, line, none) -> display("Your current port is " + client.getPort() + "."))
+                .setFallback((args, line, none) -> sendToServer(line));
+    }
+
+    /**
+     * This method sends a message or a command of the server.
+     *
+     * @param message The message typed.
+     */
+    private void sendToServer(String message) {
+        try {
+            client.handleMessageFromClientUI(message);
+        } catch (NullPointerException e) {
+            display("Couldn't connect to server.\n"
+                    + "Enter '#login <loginID>', or if you already logged in '#login'\n"
+                    + "to try to connect to the server.");
+        }
+    }
+
+    /**
+     * This method handles "#quit": tells the server and exits.
+     */
+    private void quit(String args, String line, Void none) {
+
+        // Tries to close normally
+        // If it can't, it force closes
+        try {
+            client.handleMessageFromClientUI(line);
+            client.quit();
+        } catch (NullPointerException e) {
+            System.exit(0);
+        }
+    }
+
+    /**
+     * This method handles "#logoff": tells the server and disconnects.
+     */
+    private void logoff(String args, String line, Void none) {
+
+        // Disconnects the user
+        try {
+            client.handleMessageFromClientUI(line);
+            client.closeConnection();
+        } catch (IOException e) {
+            display("The connection could not be closed.");
+        }
+    }
+
+    /**
+     * This method handles "#sethost <host>", allowed while disconnected.
+     */
+    private void setHost(String args, String line, Void none) {
+        String host = CommandTable.firstWord(args);
+
+        // If no host name was given
+        if (host == null) {
+            display("Make sure to also include your desired host name at the end of your command.");
+            return;
+        }
+
+        try {
+
+            // Makes sure the client is not connected
+            try {
+                if (client.isConnected()) {
+                    display("Make sure to disconnect using the command '#logoff' before "
+                            + "\nchanging your host name.");
+                    return;
+                }
+            }
+
+            // If any problem occurs
+            catch (Exception e) {
+                // Do nothing
+            }
+
+            // Displays the future host name
+            display("Setting host name to '" + host + "'");
+
+            // Sets the host name
+            client.setHost(host);
+
+            // Shows success
+            display("Done! Your host name is now set to '" + host + "'");
+        }
+
+        // If it couldn't connect to the client
+        catch (NullPointerException en) {
+            display("Done! Your host name is now set to '" + host + "'");
+        }
+
+        // Any other problem
+        catch (Exception ex) {
+            display("There was a problem with the host name you entered.");
+        }
+    }
+
+    /**
+     * This method handles "#setport <port>", allowed while disconnected.
+     */
+    private void setPort(String args, String line, Void none) {
+        String port = CommandTable.firstWord(args);
+
+        // If no port number was given
+        if (port == null) {
+            display("Make sure to also include your desired port at the end of your command.");
+            return;
+        }
+
+        try {
+
+            // Makes sure the client is not connected
+            try {
+                if (client.isConnected()) {
+                    display("Make sure to disconnect using the command '#logoff' before "
+                            + "\nchanging your port number.");
+                    return;
+                }
+            }
+
+            // If any problem occurs
+            catch (Exception e) {
+                // Do nothing
+            }
+
+            // Displays the future port number
+            display("Setting the port number to " + port);
+
+            // Sets the port number
+            client.setPort(Integer.parseInt(port));
+
+            // Shows success
+            display("Done! Your port is now set to " + port);
+        }
+
+        // If it couldn't connect to the client
+        catch (NullPointerException en) {
+            display("Done! Your port is now set to " + port);
+        }
+
+        // Any other problem
+        catch (Exception ex) {
+            display("There was a problem with the port number you entered. Make sure its a number.");
+        }
+    }
+
+    /**
+     * This method handles "#login [loginID]": connects again, optionally
+     * under another loginID.
+     */
+    private void login(String args, String line, Void none) {
+
+        // If client is not connected
+        if (!client.isConnected()) {
+            try {
+
+                // If a user name was provided it changes the
+                // loginID so it can use the new user name provided
+                String loginID = CommandTable.firstWord(args);
+                if (loginID != null) {
+                    client.setLoginID(loginID);
+                }
+
+                // Otherwise, it connects with the user name
+                // previously provided
+                client.openConnection();
+            } catch (IOException e) {
+                display("The server could not be reached.");
+            }
+        }
+
+        // If client is already connected
+        else {
+            display("You are already logged in. You can't login again.");
+        }
+    }
+
     /**
      * This method overrides the method in the ChatIF interface. It displays a
      * message onto the screen.
@@ -263,6 +336,21 @@ public class ClientConsole implements ChatIF {
         System.out.println(message);
     }
 
+    /**
+     * This method overrides the method in the ChatIF interface. It displays
+     * messages that arrived together with a single write to the screen.
+     *
+     * @param messages The strings to be displayed.
+     */
+    public void displayAll(List<String> messages) {
+        StringBuilder text = new StringBuilder();
+        for (String message : messages) {
+            text.append(message).append(System.lineSeparator());
+        }
+        System.out.print(text);
+        System.out.flush();
+    }
+
     // Class methods ***************************************************
 
     /**
@@ -271,36 +359,57 @@ public class ClientConsole implements ChatIF {
      * @param args[0] The loginID.
      * @param args[1] The host name.
      * @param args[2] The port number.
+     * @param --framed Speaks the compact protocol instead of Java
+     *                serialization. The server must use the nio, threads or
+     *                virtual engine.
+     * @param --compress Asks the server to compress the long messages. Needs
+     *                --framed.
+     * @param --tls   Connects with TLS, trusting the usual authorities.
+     * @param --tls-truststore=FILE Connects with TLS, trusting the
+     *                certificates in that file.
+     * @param --tls-password=PW The password of the trust store.
      */
     public static void main(String[] args) {
         String host = "";
         String loginID = "";
         int port;
+        CommandLine line = new CommandLine(args);
 
         // For the loginID
-        try {
-            loginID = args[0];
-        } catch (ArrayIndexOutOfBoundsException e) {
+        loginID = line.getArgument(0);
+        if (loginID == null) {
             System.out.println("ERROR - No login ID specified. Connection aborted.");
             System.exit(0);
         }
 
         // For the host name
-        try {
-            host = args[1];
-        } catch (ArrayIndexOutOfBoundsException e) {
+        host = line.getArgument(1);
+        if (host == null) {
             host = "localhost";
         }
 
         // For the port
         try {
-            port = Integer.parseInt(args[2]);
-        } catch (ArrayIndexOutOfBoundsException ex) {
+            port = Integer.parseInt(line.getArgument(2));
+        } catch (NumberFormatException ex) {
             port = DEFAULT_PORT;
         }
 
+        // For TLS
+        SSLContext tls = null;
+        String trustStore = line.get("tls-truststore", null);
+        if (trustStore != null || line.getBoolean("tls")) {
+            try {
+                tls = Tls.forClient(trustStore, line.get("tls-password", ""));
+            } catch (IOException ex) {
+                System.out.println("ERROR - " + ex.getMessage());
+                System.exit(0);
+            }
+        }
+
         // Creates the chat
-        ClientConsole chat = new ClientConsole(loginID, host, port);
+        ClientConsole chat = new ClientConsole(loginID, host, port, line.getBoolean("framed"),
+                line.getBoolean("compress"), tls);
         chat.accept(); // Wait for console data
     }
 }
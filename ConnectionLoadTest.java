@@ -0,0 +1,136 @@
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.ArrayList;
+
+import common.*;
+import server.*;
+
+/**
+ * This class measures what idle clients cost to the server. It starts an
+ * EchoServer with the chosen engine in this process, opens more and more
+ * connections to it and shows, for each step, the heap used, the resident
+ * memory of the process and the number of platform threads.
+ *
+ * The clients only open their stream and stay idle: they do not log in, so
+ * the login broadcasts, which grow with the square of the number of clients,
+ * do not hide the cost of the connections themselves. Nor are they pinged,
+ * which would disconnect them since they never answer. Run it once per engine
+ * to compare them, for instance:
+ * "java ConnectionLoadTest --engine=ocsf" then
+ * "java ConnectionLoadTest --engine=virtual". Raise the limit of open files
+ * (ulimit -n) above twice the number of connections first.
+ */
+public class ConnectionLoadTest {
+    // Class variables *************************************************
+
+    /**
+     * The default port of the test server.
+     */
+    final public static int DEFAULT_PORT = 5556;
+
+    // Class methods ***************************************************
+
+    /**
+     * This method runs the test.
+     *
+     * @param args[0]           The port of the test server. Defaults to 5556.
+     * @param --engine=NAME     The engine of the server. Defaults to ocsf.
+     * @param --connections=N   The number of connections to reach. Defaults
+     *                          to 10000.
+     * @param --step=N          The number of connections opened between two
+     *                          measures. Defaults to 1000.
+     */
+    public static void main(String[] args) throws Exception {
+        String[] options = new String[args.length + 1];
+        options[0] = "--heartbeat=0";
+        System.arraycopy(args, 0, options, 1, args.length);
+        CommandLine config = new CommandLine(options);
+        int port;
+
+        try {
+            port = Integer.parseInt(config.getArgument(0));
+        } catch (Throwable t) {
+            port = DEFAULT_PORT;
+        }
+
+        int total = config.getInt("connections", 10000);
+        int step = config.getInt("step", 1000);
+        PrintStream console = System.out;
+
+        // The server displays every connection, keep the console for the results
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        EchoServer sv = new EchoServer(port, config);
+        ServerEngine engine = sv.getEngine();
+        engine.listen();
+
+        console.println("Engine: " + config.get("engine", "ocsf"));
+        console.println("connections  heap (MB)  RSS (MB)  threads");
+        report(console, 0);
+
+        ArrayList<SocketChannel> clients = new ArrayList<>();
+        try {
+            while (clients.size() < total) {
+                int target = Math.min(total, clients.size() + step);
+                while (clients.size() < target) {
+                    SocketChannel client = SocketChannel.open(new InetSocketAddress("localhost", port));
+                    client.write(ByteBuffer.wrap(ObjectStreamCodec.STREAM_HEADER));
+                    clients.add(client);
+                }
+
+                // Waits until the server serves every client
+                long deadline = System.currentTimeMillis() + 30000;
+                while (engine.getNumberOfClients() < target && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(50);
+                }
+                report(console, engine.getNumberOfClients());
+            }
+        } catch (IOException e) {
+            console.println("Stopped at " + clients.size() + " connections: " + e);
+        } finally {
+            for (SocketChannel client : clients) {
+                client.close();
+            }
+            engine.close();
+            System.exit(0);
+        }
+    }
+
+    /**
+     * This method displays one line of measures.
+     *
+     * @param console     Where to display the measures.
+     * @param connections The number of clients served.
+     */
+    private static void report(PrintStream console, int connections) {
+        System.gc();
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        console.printf("%11d  %9.1f  %8s  %7d%n", connections, heap.getUsed() / 1048576.0, residentMemory(),
+                threads);
+    }
+
+    /**
+     * This method reads the resident memory of the process.
+     *
+     * @return The resident memory in MB, or "n/a" if it cannot be read.
+     */
+    private static String residentMemory() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    long kilobytes = Long.parseLong(line.replaceAll("[^0-9]", ""));
+                    return String.format("%.1f", kilobytes / 1024.0);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not on Linux
+        }
+        return "n/a";
+    }
+}
+//End of ConnectionLoadTest class
@@ -3,7 +3,12 @@
 // license found at www.lloseng.com 
 
 import java.io.*;
+import java.net.InetAddress;
+import java.nio.file.*;
+import java.util.*;
+import common.*;
 import ocsf.server.*;
+import server.*;
 
 /**
  * This class overrides some of the methods in the abstract superclass in order
@@ -15,7 +20,7 @@ import ocsf.server.*;
  * @author Paul Holden
  * @version July 2000
  */
-public class EchoServer extends AbstractServer {
+public class EchoServer extends AbstractServer implements ServerHandler, ClusterLink.Handler {
     // Class variables *************************************************
 
     /**
@@ -23,176 +28,1252 @@ public class EchoServer extends AbstractServer {
      */
     final public static int DEFAULT_PORT = 5555;
 
+    /**
+     * The commands a user may always send, even too fast.
+     */
+    private static final Set<String> UNLIMITED_COMMANDS = Set.of("#logoff", "#quit", HeartbeatMonitor.PONG);
+
+    /**
+     * The start of the notice sent just before closing the connection of a
+     * client whose login is refused. The client must not connect again by
+     * itself, as it would be refused again.
+     */
+    private static final String REFUSED = "#refused ";
+
+    /**
+     * The largest number of loginIDs listed by "#who".
+     */
+    private static final int WHO_LIMIT = 100;
+
+    // Instance variables **********************************************
+
+    /**
+     * The engine accepting and serving the client connections.
+     */
+    private ServerEngine engine;
+
+    /**
+     * The members of every chat channel.
+     */
+    private final ChannelRegistry channels = new ChannelRegistry();
+
+    /**
+     * The connection of every user logged on, by loginID.
+     */
+    private final LoginRegistry users = new LoginRegistry();
+
+    /**
+     * The commands clients can send, such as "#join".
+     */
+    private final CommandTable<ClientConnection> commands = new CommandTable<>();
+
+    /**
+     * The log of the server, written by a background thread.
+     */
+    private final ServerLog log = new ServerLog(System.out);
+
+    /**
+     * The journal keeping every chat message on disk, or null if messages are
+     * not kept.
+     */
+    private MessageJournal journal;
+
+    /**
+     * The last chat lines of every channel, replayed to users who log in
+     * again, or null if none are kept.
+     */
+    private MessageHistory history;
+
+    /**
+     * The sessions of the users, resumed by clients connecting again.
+     */
+    private SessionRegistry sessions = new SessionRegistry(SessionRegistry.DEFAULT_TIMEOUT);
+
+    /**
+     * Finds the clients that stopped answering, or null if they are not
+     * watched.
+     */
+    private HeartbeatMonitor heartbeats;
+
+    /**
+     * The link to the other nodes of the cluster, or null if the server runs
+     * alone.
+     */
+    private ClusterLink cluster;
+
+    /**
+     * Limits how fast every user may send, or null if they may send as fast
+     * as they like.
+     */
+    private RateLimiter limiter;
+
+    /**
+     * Tells the users who comes and goes, and knows who is online.
+     */
+    private PresenceTracker presence;
+
     // Constructors ****************************************************
 
     /**
-     * Constructs an instance of the echo server.
+     * Constructs an instance of the echo server, served by ocsf.
      *
      * @param port The port number to connect on.
      */
     public EchoServer(int port) {
         super(port);
+        this.engine = new OcsfServerEngine(this);
+        this.presence = new PresenceTracker(0, this::announce);
+        registerCommands();
+    }
+
+    /**
+     * Constructs an instance of the echo server, served by the engine named in
+     * the configuration ("ocsf", "nio", "threads" or "virtual").
+     *
+     * @param port   The port number to connect on.
+     * @param config The configuration of the server.
+     */
+    public EchoServer(int port, CommandLine config) {
+        this(port);
+        EngineOptions options = EngineOptions.from(config);
+        this.log.setLevel(ServerLog.Level.parse(config.get("log-level", "info")));
+        this.log.setSampleRate(config.getInt("log-sample", 1));
+
+        String journalDirectory = config.get("journal", null);
+        if (journalDirectory != null) {
+            try {
+                this.journal = new MessageJournal(Paths.get(journalDirectory),
+                        config.getInt("journal-segment", MessageJournal.DEFAULT_SEGMENT_SIZE / (1024 * 1024)) * 1024 * 1024,
+                        config.getInt("journal-sync", MessageJournal.DEFAULT_SYNC_INTERVAL),
+                        config.getInt("journal-files", MessageJournal.DEFAULT_MAX_SEGMENTS));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Could not open the journal in '" + journalDirectory + "': " + e);
+            }
+        }
+
+        int historySize = config.getInt("history", MessageHistory.DEFAULT_SIZE);
+        if (historySize > 0) {
+            this.history = new MessageHistory(historySize,
+                    config.getInt("history-age", MessageHistory.DEFAULT_MAX_AGE),
+                    config.getInt("history-memory", MessageHistory.DEFAULT_MAX_MEMORY));
+        }
+
+        this.sessions = new SessionRegistry(config.getInt("resume-timeout", SessionRegistry.DEFAULT_TIMEOUT));
+        this.presence = new PresenceTracker(config.getInt("presence-window", PresenceTracker.DEFAULT_WINDOW),
+                this::announce);
+
+        int heartbeat = config.getInt("heartbeat", HeartbeatMonitor.DEFAULT_INTERVAL);
+        if (heartbeat > 0) {
+            this.heartbeats = new HeartbeatMonitor(heartbeat,
+                    config.getInt("heartbeat-misses", HeartbeatMonitor.DEFAULT_MISSES), this::reap);
+        }
+
+        int rateLimit = config.getInt("rate-limit", 0);
+        int byteLimit = config.getInt("rate-bytes", 0);
+        if (rateLimit > 0 || byteLimit > 0) {
+            this.limiter = new RateLimiter(rateLimit, config.getInt("rate-burst", Math.max(1, rateLimit)), byteLimit,
+                    config.getInt("rate-bytes-burst", Math.max(1, byteLimit)));
+        }
+
+        int clusterPort = config.getInt("cluster", 0);
+        if (clusterPort > 0) {
+            try {
+                String bind = config.get("cluster-bind", null);
+                this.cluster = new ClusterLink(config.get("node", defaultNodeName(clusterPort)),
+                        bind == null ? null : InetAddress.getByName(bind), clusterPort,
+                        config.get("cluster-secret", null), config.getInt("cluster-queue", ClusterLink.DEFAULT_QUEUE),
+                        this, this.log);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Could not listen for the other nodes on port " + clusterPort
+                        + ": " + e.getMessage());
+            }
+            for (String peer : config.get("peers", "").split(",")) {
+                if (!peer.isBlank()) {
+                    this.cluster.addPeer(peer.trim());
+                }
+            }
+        }
+
+        // Only the engines reading with blocking streams can read TLS
+        String engineName = config.get("engine", "ocsf");
+        if (options.getTlsContext() != null && !engineName.equals("threads") && !engineName.equals("virtual")) {
+            throw new IllegalArgumentException("TLS needs the threads or virtual engine.");
+        }
+
+        switch (engineName) {
+
+        case "ocsf":
+            break;
+
+        case "nio":
+            this.engine = new NioServerEngine(port, this, options);
+            break;
+
+        case "threads":
+            this.engine = new ThreadedServerEngine(port, this, options, false);
+            break;
+
+        case "virtual":
+            this.engine = new ThreadedServerEngine(port, this, options, true);
+            break;
+
+        default:
+            throw new IllegalArgumentException("Unknown engine '" + config.get("engine", "") + "'.");
+        }
     }
 
     // Instance methods ************************************************
 
     /**
-     * This method handles any messages received from the client.
+     * @return The engine accepting and serving the client connections.
+     */
+    public ServerEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * @return The members of every chat channel.
+     */
+    public ChannelRegistry getChannels() {
+        return channels;
+    }
+
+    /**
+     * @return The connection of every user logged on, by loginID.
+     */
+    public LoginRegistry getUsers() {
+        return users;
+    }
+
+    /**
+     * @return The log of the server.
+     */
+    public ServerLog getLog() {
+        return log;
+    }
+
+    /**
+     * @return The journal keeping every chat message, or null if messages are
+     *         not kept.
+     */
+    public MessageJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * @return The last chat lines of every channel, or null if none are kept.
+     */
+    public MessageHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * @return The sessions of the users.
+     */
+    public SessionRegistry getSessions() {
+        return sessions;
+    }
+
+    /**
+     * @return What finds the clients that stopped answering, or null if they
+     *         are not watched.
+     */
+    public HeartbeatMonitor getHeartbeats() {
+        return heartbeats;
+    }
+
+    /**
+     * @return What limits how fast every user may send, or null if they may
+     *         send as fast as they like.
+     */
+    public RateLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * @return The link to the other nodes of the cluster, or null if the
+     *         server runs alone.
+     */
+    public ClusterLink getCluster() {
+        return cluster;
+    }
+
+    /**
+     * @return What tells the users who comes and goes.
+     */
+    public PresenceTracker getPresence() {
+        return presence;
+    }
+
+    /**
+     * This method overrides the one in the superclass. It hands the message
+     * received by ocsf to the common message handling.
+     */
+    public void handleMessageFromClient(Object msg, ConnectionToClient client) {
+        handleMessageFromClient(msg, OcsfClientConnection.of(client));
+    }
+
+    /**
+     * This method handles any messages received from the client. Commands are
+     * run from the command table; anything else is a chat line. The messages
+     * of a batch are handled one by one, in order.
      *
      * @param msg    The message received from the client.
      * @param client The connection from which the message originated.
      */
-    public void handleMessageFromClient(Object msg, ConnectionToClient client) {
+    public void handleMessageFromClient(Object msg, ClientConnection client) {
+        if (this.heartbeats != null) {
+            this.heartbeats.heard(client);
+        }
+        if (msg instanceof MessageBatch) {
+            for (Object message : ((MessageBatch) msg).getMessages()) {
+                if (!(message instanceof MessageBatch)) {
+                    handleMessage(message, client);
+                }
+            }
+        } else {
+            handleMessage(msg, client);
+        }
+    }
+
+    /**
+     * This method handles a single message received from the client.
+     *
+     * @param msg    The message received from the client.
+     * @param client The connection from which the message originated.
+     */
+    private void handleMessage(Object msg, ClientConnection client) {
 
         // Displays the incoming message
-        System.out.println("Message received: " + msg + " from " + client.getInfo("loginID") + ".");
+        this.log.sample(ServerLog.Level.INFO, "Message received: {} from {}.", msg, client.getInfo("loginID"));
 
-        // Analyzes if a login was requested
-        switch (msg.toString().split(" ")[0]) {
+        long received = System.nanoTime();
+        ServerMetrics metrics = this.engine.getMetrics();
+        metrics.messageReceived();
 
-        case "#login":
+        String line = msg.toString();
+        if (isThrottled(line, client)) {
+            metrics.messageThrottled();
+            return;
+        }
+        try {
+            if (!this.commands.dispatch(line, client)) {
+                sendToChannel(line, client);
+                metrics.getFanOut().record(System.nanoTime() - received);
+            }
+        } catch (IOException e) {
+            this.log.error("An unknown error occured.");
+        }
+    }
 
-            // Analyzes if it is not the first time the loginID was used
-            if (client.getInfo("loginID") != null) {
-                try {
+    /**
+     * This method checks, before a message is handled, that its sender does
+     * not send too fast. A connection not logged on yet is limited on its
+     * own. The sender is told the first time a message of theirs is refused,
+     * not for every one, so flooding gets them nothing back.
+     *
+     * @param line   The message.
+     * @param client The connection of the sender.
+     * @return true if the message must be refused.
+     */
+    private boolean isThrottled(String line, ClientConnection client) {
+        if (this.limiter == null
+                || (CommandTable.isCommand(line) && UNLIMITED_COMMANDS.contains(CommandTable.firstWord(line)))) {
+            return false;
+        }
+        Object loginID = client.getInfo("loginID");
+        if (this.limiter.tryAcquire(loginID != null ? loginID : client, RateLimiter.utf8Length(line))) {
+            client.setInfo("throttled", null);
+            return false;
+        }
+        if (client.getInfo("throttled") == null) {
+            client.setInfo("throttled", Boolean.TRUE);
+            reply(client, "You are sending too fast, your messages are not sent. Slow down.");
+        }
+        return true;
+    }
 
-                    // If it wasn't the first time, it displays an error message
-                    // and terminates the connection with the user
-                    client.sendToClient(
-                            "The '#login' command should only be used during the login.\nTerminating connection.");
-                    client.close();
-                } catch (IOException e) {
-                    System.out.println("Couln't kickout the client...");
-                }
+    /**
+     * This method registers the commands clients can send. Apart from
+     * "#login", "#quit" and the answer to a ping, they need the user to be
+     * logged on.
+     */
+    private void registerCommands() {
+        this.commands.register("#login", this::login)
+                .register("#logoff", loggedOn(this::logoff))
+                .register("#quit", this::logoff)
+                .register("#msg", loggedOn(this::sendPrivateMessage))
+                .register("#join", loggedOn(this::joinChannel))
+                .register("#leave", loggedOn(this::leaveChannel))
+                .register("#channel", loggedOn(this::switchChannel))
+                .register("#who", loggedOn(this::listUsers))
+                .register(HeartbeatMonitor.PONG, (args, line, client) -> {
+                    // Hearing from the client was all that was needed
+                })
+                .setFallback((args, line, client) -> client.sendToClient("'" + line + "' doesn't match any commands."));
+    }
+
+    /**
+     * This method wraps a command that only a user logged on may run. The
+     * others are told to log in first.
+     *
+     * @param command The command.
+     * @return The command checking the user first.
+     */
+    private CommandTable.Command<ClientConnection> loggedOn(CommandTable.Command<ClientConnection> command) {
+        return (args, line, client) -> {
+            if (client.getInfo("loginID") == null) {
+                reply(client, "You are not logged on. Use '#login <loginID>' first.");
+            } else {
+                command.execute(args, line, client);
             }
+        };
+    }
 
-            // If it is the first time the command is used
-            else {
-                try {
+    /**
+     * This method sends a chat line to the members of the channel the user
+     * writes in. Nothing is sent before the user logs on.
+     *
+     * @param line   The chat line.
+     * @param client The connection of the user.
+     */
+    private void sendToChannel(String line, ClientConnection client) {
+        if (client.getInfo("loginID") == null) {
+            reply(client, "You are not logged on. Use '#login <loginID>' first.");
+            return;
+        }
+        String channel = (String) client.getInfo("channel");
+        if (channel == null) {
+            reply(client, "You are in no channel. Use '#join <channel>' to join one.");
+            return;
+        }
+        String loginID = (String) client.getInfo("loginID");
+        if (this.journal != null) {
+            try {
+                this.journal.append(loginID, channel, line);
+            } catch (IOException e) {
+                this.log.warn("Could not journal a message: {}", e.getMessage());
+            }
+        }
+        deliver(channel, loginID, line);
+        if (this.cluster != null) {
+            this.cluster.sendChat(channel, loginID, line);
+        }
+    }
 
-                    // Sets the second part of the message to be the
-                    // user's loginID
-                    client.setInfo("loginID", msg.toString().split(" ")[1]);
+    /**
+     * This method sends a chat line to the members of a channel on this node,
+     * and keeps it in the history.
+     *
+     * @param channel The channel.
+     * @param loginID The loginID of the user who wrote it.
+     * @param line    The chat line.
+     */
+    private void deliver(String channel, String loginID, String line) {
+        if (this.history != null) {
+            this.history.add(loginID, channel, line);
+        }
 
-                    // Displays the login message to the server console
-                    System.out.println(client.getInfo("loginID") + " has logged on.");
+        String text = channel.equals(ChannelRegistry.DEFAULT_CHANNEL) ? line : "[#" + channel + "] " + line;
+        this.channels.sendToChannel(channel, new ChatMessage(loginID, text));
+    }
 
-                    // Displays the login message to all connected clients
-                    this.sendToAllClients("> " + client.getInfo("loginID") + " has logged on.");
-                }
+    /**
+     * This method sends a notice to every user, on every node.
+     *
+     * @param text The notice.
+     */
+    private void announce(String text) {
+        this.engine.sendToAllClients(text);
+        if (this.cluster != null) {
+            this.cluster.sendNotice(null, text);
+        }
+    }
 
-                // If no loginID was provided
-                catch (ArrayIndexOutOfBoundsException e) {
-                    try {
-                        client.sendToClient("No login ID was provided. Terminating connection.");
-                        client.close();
-                    }
+    /**
+     * This method sends the presence notices of a window, on every node.
+     *
+     * @param everyone The lines for every user, or null if there are none.
+     * @param channels The lines for the members of each channel, by channel.
+     */
+    private void announce(String everyone, Map<String, String> channels) {
+        sendPresence(everyone, channels);
+        if (this.cluster != null) {
+            this.cluster.sendPresence(everyone, channels);
+        }
+    }
 
-                    // Any other error
-                    catch (IOException ex) {
-                        System.out.println("An unknown error occured.");
+    /**
+     * This method sends every client of this node a single message holding
+     * the presence lines meant for it: the lines for every user, then those
+     * of the channels it is in. Clients getting the same lines share the
+     * encoded message.
+     *
+     * @param everyone The lines for every user, or null if there are none.
+     * @param channels The lines for the members of each channel, by channel.
+     */
+    private void sendPresence(String everyone, Map<String, String> channels) {
+        Map<String, EncodedMessage> encoded = new HashMap<>();
+        for (ClientConnection client : this.engine.getClientConnections()) {
+            StringBuilder text = new StringBuilder(everyone == null ? "" : everyone);
+            if (!channels.isEmpty()) {
+                for (String channel : this.channels.getChannels(client)) {
+                    String lines = channels.get(channel);
+                    if (lines != null) {
+                        text.append(text.length() > 0 ? "\n" : "").append(lines);
                     }
                 }
             }
-            break;
+            if (text.length() == 0) {
+                continue;
+            }
+            try {
+                client.send(encoded.computeIfAbsent(text.toString(), EncodedMessage::new));
+            } catch (IOException e) {
+                // The client is leaving, it is removed when it disconnects
+            }
+        }
+    }
 
-        case "#logoff":
+    /**
+     * This method is called when a chat line was written in a channel on
+     * another node: it is sent to the members of the channel here.
+     */
+    @Override
+    public void chatReceived(String channel, String loginID, String text) {
+        deliver(channel, loginID, text);
+    }
 
-            // Sends a message to all clients showing who disconnected
-            this.sendToAllClients("> " + client.getInfo("loginID") + " has disconnected.");
+    /**
+     * This method is called when another node sends a notice: it is sent to
+     * the users here.
+     */
+    @Override
+    public void noticeReceived(String channel, String text) {
+        if (channel == null) {
+            this.engine.sendToAllClients(text);
+        } else {
+            this.channels.sendToChannel(channel, text);
+        }
+    }
 
-            // Displays a message on the server console showing who disconnected
-            this.clientDisconnected(client);
-            break;
+    /**
+     * This method is called when another node sends the presence notices of
+     * a window: each user here gets those meant for them in one message.
+     */
+    @Override
+    public void presenceReceived(String everyone, Map<String, String> channels) {
+        sendPresence(everyone, channels);
+    }
 
-        case "#quit":
+    /**
+     * This method is called when a user of another node sends a private
+     * message to a user here.
+     */
+    @Override
+    public void privateReceived(String recipient, String sender, String text) {
+        ClientConnection client = this.users.find(recipient);
+        if (client != null) {
+            reply(client, new ChatMessage(sender, "[private] " + text));
+        }
+    }
 
-            // Sends a message to all clients showing who quit
-            this.sendToAllClients("> " + client.getInfo("loginID") + " has disconnected.");
+    /**
+     * @return The loginIDs of the users logged on to this node.
+     */
+    @Override
+    public Collection<String> getLocalUsers() {
+        return this.users.getLoginIDs();
+    }
 
-            // Displays a message on the server console showing who quit
-            this.clientDisconnected(client);
-            break;
+    /**
+     * This method handles "#login <loginID> [token age] [--compress=deflate]",
+     * which the client sends once, right after connecting. With the token of a
+     * session it lost, the client resumes that session; otherwise a new
+     * session starts, and its token is sent to the client as
+     * "#session <token>". A client of the compact protocol asking for
+     * compression is answered "#compress deflate", and the long messages are
+     * compressed both ways from then on.
+     *
+     * @param args   The loginID, maybe a token and its age, and options.
+     * @param line   The command received.
+     * @param client The connection of the user.
+     */
+    private void login(String args, String line, ClientConnection client) {
 
-        default:
-            this.sendToAllClients("> " + client.getInfo("loginID") + ": " + msg);
+        // Analyzes if it is not the first time the loginID was used
+        if (client.getInfo("loginID") != null) {
+            try {
+
+                // If it wasn't the first time, it displays an error message
+                // and terminates the connection with the user
+                client.sendToClient(REFUSED
+                        + "The '#login' command should only be used during the login.\nTerminating connection.");
+                client.close();
+            } catch (IOException e) {
+                this.log.warn("Couln't kickout the client...");
+            }
+            return;
+        }
+
+        // If no loginID was provided
+        CommandLine words = new CommandLine(args.isEmpty() ? new String[0] : args.split(" +"));
+        String loginID = words.getArgument(0);
+        if (loginID == null) {
+            try {
+                client.sendToClient(REFUSED + "No login ID was provided. Terminating connection.");
+                client.close();
+            }
+
+            // Any other error
+            catch (IOException ex) {
+                this.log.error("An unknown error occured.");
+            }
+            return;
+        }
+
+        // The messages replayed at login are the first ones worth compressing
+        if ("deflate".equals(words.get("compress", null)) && client.setCompressed(true)) {
+            reply(client, "#compress deflate");
+        }
+
+        // A client connecting again takes its session back
+        String token = words.getArgument(1);
+        if (token != null) {
+            takeOver(loginID, token);
+            SessionRegistry.Session session = this.sessions.resume(token, loginID);
+            if (session != null) {
+                resume(session, client, words.getArgument(2));
+                return;
+            }
+        }
+
+        // Two users cannot share a loginID, even on different nodes
+        if ((this.cluster != null && this.cluster.findNode(loginID) != null) || !this.users.register(loginID, client)) {
+            try {
+                client.sendToClient(REFUSED + "The login ID '" + loginID + "' is already in use. Terminating connection.");
+                client.close();
+            } catch (IOException e) {
+                this.log.warn("Couln't kickout the client...");
+            }
+            return;
+        }
+
+        // Sets the second part of the message to be the
+        // user's loginID
+        client.setInfo("loginID", loginID);
+        if (this.cluster != null) {
+            this.cluster.loggedOn(loginID);
+        }
+
+        // Displays the login message to the server console
+        this.log.info("{} has logged on.", client.getInfo("loginID"));
+
+        // Tells all connected clients, with the others logging on meanwhile
+        this.presence.loggedOn(loginID);
+
+        // Every user starts in the default channel
+        this.channels.join(ChannelRegistry.DEFAULT_CHANNEL, client);
+        client.setInfo("channel", ChannelRegistry.DEFAULT_CHANNEL);
+
+        // A user coming back is sent what they missed, from memory
+        if (this.history != null) {
+            replay(client, ChannelRegistry.DEFAULT_CHANNEL,
+                    this.history.missed(loginID, ChannelRegistry.DEFAULT_CHANNEL));
+        }
+
+        String newToken = this.sessions.open(loginID);
+        client.setInfo("session", newToken);
+        reply(client, "#session " + newToken);
+    }
+
+    /**
+     * This method closes the connection of a session that the server still
+     * thinks is open, when its client connects again: the connection was lost
+     * without the server noticing. The session is kept for the new
+     * connection.
+     *
+     * @param loginID The loginID the client logs in with.
+     * @param token   The token of the session.
+     */
+    private void takeOver(String loginID, String token) {
+        ClientConnection previous = this.users.find(loginID);
+        if (previous == null || !token.equals(previous.getInfo("session"))) {
+            return;
+        }
+        suspend(previous);
+        unregister(previous);
+
+        // Closed first, so a join it is still handling cannot add it back
+        try {
+            previous.close();
+        } catch (IOException e) {
+            // The connection was lost anyway
+        }
+        this.channels.leaveAll(previous);
+    }
+
+    /**
+     * This method gives a session back to a client connecting again: the user
+     * is back in their channels and is sent what was said there since they
+     * left.
+     *
+     * @param session The session.
+     * @param client  The new connection of the user.
+     * @param age     How long ago, in milliseconds, the client received its
+     *                last message, or null if it did not tell. Lines are
+     *                replayed from then on rather than from when the server
+     *                noticed the connection was lost.
+     */
+    private void resume(SessionRegistry.Session session, ClientConnection client, String age) {
+        String loginID = session.getLoginID();
+        if (!this.users.register(loginID, client)) {
+            try {
+                client.sendToClient(REFUSED + "The login ID '" + loginID + "' is already in use. Terminating connection.");
+                client.close();
+            } catch (IOException e) {
+                this.log.warn("Couln't kickout the client...");
+            }
+            return;
+        }
+        client.setInfo("loginID", loginID);
+        client.setInfo("session", session.getToken());
+        if (this.cluster != null) {
+            this.cluster.loggedOn(loginID);
+        }
+        this.log.info("{} has resumed their session.", loginID);
+        this.presence.loggedOn(loginID);
+
+        for (String channel : session.getChannels()) {
+            this.channels.join(channel, client);
+        }
+        client.setInfo("channel", session.getChannel());
+        reply(client, "#session " + session.getToken());
+
+        if (this.history != null) {
+            this.history.forget(loginID);
+            long since = -1;
+            try {
+                since = age == null ? -1 : System.currentTimeMillis() - Long.parseLong(age);
+            } catch (NumberFormatException e) {
+                // Replays from when the server noticed instead
+            }
+            for (String channel : session.getChannels()) {
+                replay(client, channel, since >= 0 ? this.history.after(channel, since)
+                        : this.history.since(channel, session.getLastSeen()));
+            }
+        }
+    }
+
+    /**
+     * This method sends a user the chat lines of a channel they missed.
+     *
+     * @param client  The connection of the user.
+     * @param channel The channel.
+     * @param missed  The lines, oldest first.
+     */
+    private void replay(ClientConnection client, String channel, List<JournalEntry> missed) {
+        if (missed.isEmpty()) {
+            return;
+        }
+        reply(client, "> " + missed.size() + " messages were written in #" + channel + " while you were away:");
+        for (JournalEntry entry : missed) {
+            String text = channel.equals(ChannelRegistry.DEFAULT_CHANNEL) ? entry.getText()
+                    : "[#" + channel + "] " + entry.getText();
+            reply(client, new ChatMessage(entry.getLoginID(), text));
+        }
+    }
+
+    /**
+     * This method handles "#logoff" and "#quit", sent by the client just before
+     * it disconnects.
+     *
+     * @param args   Ignored.
+     * @param line   The command received.
+     * @param client The connection of the user.
+     */
+    private void logoff(String args, String line, ClientConnection client) {
+
+        // Logging off on purpose ends the session
+        this.sessions.close((String) client.getInfo("session"));
+        client.setInfo("session", null);
+
+        // Tells all clients who disconnected, with the others meanwhile
+        String loginID = (String) client.getInfo("loginID");
+        if (loginID != null) {
+            this.presence.loggedOff(loginID);
+        }
+
+        // Displays a message on the server console showing who disconnected
+        this.clientDisconnected(client);
+
+        // The connection may stay open: it is no longer logged on, so it can
+        // neither speak for the loginID nor be cleaned up again later
+        client.setInfo("loginID", null);
+        client.setInfo("channel", null);
+        client.setInfo("session", null);
+    }
+
+    /**
+     * This method handles "#msg <user> <text>": the text is sent to that user
+     * only, found directly from their loginID.
+     *
+     * @param args   The user and the text.
+     * @param line   The command received.
+     * @param client The connection of the sender.
+     */
+    private void sendPrivateMessage(String args, String line, ClientConnection client) {
+        String user = CommandTable.firstWord(args);
+        String text = CommandTable.rest(args);
+        if (user == null || text.isEmpty()) {
+            reply(client, "Usage: #msg <user> <text>");
+            return;
+        }
+
+        String sender = (String) client.getInfo("loginID");
+        ClientConnection recipient = this.users.find(user);
+        if (recipient == null) {
+
+            // The user may be logged on to another node
+            if (this.cluster != null && this.cluster.sendPrivate(user, sender, text)) {
+                reply(client, new ChatMessage(sender, "[private to " + user + "] " + text));
+            } else {
+                reply(client, user + " is not online.");
+            }
+            return;
+        }
+        reply(recipient, new ChatMessage(sender, "[private] " + text));
+        if (recipient != client) {
+            reply(client, new ChatMessage(sender, "[private to " + user + "] " + text));
         }
     }
 
+    /**
+     * This method handles "#join <channel>": the user joins the channel and
+     * their messages now go to it.
+     *
+     * @param args   The channel.
+     * @param line   The command received.
+     * @param client The connection of the user.
+     */
+    private void joinChannel(String args, String line, ClientConnection client) {
+        String name = CommandTable.firstWord(args);
+        String channel = name == null ? null : ChannelRegistry.channelName(name);
+        if (channel == null) {
+            reply(client, "Usage: #join <channel>. A channel name has at most " + ChannelRegistry.MAX_NAME_LENGTH
+                    + " letters, digits, '-' or '_'.");
+            return;
+        }
+
+        if (this.channels.join(channel, client)) {
+            this.presence.joined(channel, (String) client.getInfo("loginID"));
+        }
+        client.setInfo("channel", channel);
+        reply(client, "You are now writing in #" + channel + ".");
+    }
+
+    /**
+     * This method handles "#leave [channel]": the user leaves the channel, by
+     * default the one they write in. If it was the one they write in, their
+     * messages go to another of their channels.
+     *
+     * @param args   The channel, or nothing.
+     * @param line   The command received.
+     * @param client The connection of the user.
+     */
+    private void leaveChannel(String args, String line, ClientConnection client) {
+        String name = CommandTable.firstWord(args);
+        String current = (String) client.getInfo("channel");
+        String channel = name != null ? ChannelRegistry.channelName(name) : current;
+        if (channel == null || !this.channels.leave(channel, client)) {
+            reply(client, "You are not in " + (name != null ? name : "any channel") + ".");
+            return;
+        }
+
+        this.presence.left(channel, (String) client.getInfo("loginID"));
+        reply(client, "You left #" + channel + ".");
+
+        // Writes in the default channel if still in it, else in any other one
+        if (channel.equals(current)) {
+            SortedSet<String> joined = this.channels.getChannels(client);
+            String next = joined.contains(ChannelRegistry.DEFAULT_CHANNEL) ? ChannelRegistry.DEFAULT_CHANNEL
+                    : joined.isEmpty() ? null : joined.first();
+            client.setInfo("channel", next);
+            reply(client, next == null ? "You are in no channel. Use '#join <channel>' to join one."
+                    : "You are now writing in #" + next + ".");
+        }
+    }
+
+    /**
+     * This method handles "#channel [channel]": with a channel the user joined,
+     * their messages now go to it; without, the channels are listed.
+     *
+     * @param args   The channel, or nothing.
+     * @param line   The command received.
+     * @param client The connection of the user.
+     */
+    private void switchChannel(String args, String line, ClientConnection client) {
+        String name = CommandTable.firstWord(args);
+        if (name != null) {
+            String channel = ChannelRegistry.channelName(name);
+            if (channel == null || !this.channels.isMember(channel, client)) {
+                reply(client, "You are not in " + name + ". Use '#join " + name + "' to join it.");
+            } else {
+                client.setInfo("channel", channel);
+                reply(client, "You are now writing in #" + channel + ".");
+            }
+            return;
+        }
+
+        StringBuilder list = new StringBuilder();
+        this.channels.getChannelSizes().forEach((channel, size) -> list.append(list.length() == 0 ? "" : ", ")
+                .append('#').append(channel).append(" (").append(size).append(')'));
+        String current = (String) client.getInfo("channel");
+        reply(client, (current == null ? "You are in no channel." : "You are writing in #" + current + ".")
+                + "\nYour channels: " + channelList(this.channels.getChannels(client))
+                + "\nAll channels: " + (list.length() == 0 ? "none" : list));
+    }
+
+    /**
+     * This method handles "#who [prefix]": the users logged on, or those
+     * whose loginID starts with the prefix, are listed from the snapshot kept
+     * by the presence tracker. Users of the other nodes are only counted.
+     *
+     * @param args   The prefix, or nothing.
+     * @param line   The command received.
+     * @param client The connection of the user.
+     */
+    private void listUsers(String args, String line, ClientConnection client) {
+        String prefix = CommandTable.firstWord(args);
+        List<String> found = this.presence.getOnline(prefix == null ? "" : prefix, WHO_LIMIT + 1);
+        StringBuilder list = new StringBuilder();
+        for (int i = 0; i < Math.min(found.size(), WHO_LIMIT); i++) {
+            list.append(i == 0 ? "" : ", ").append(found.get(i));
+        }
+
+        StringBuilder text = new StringBuilder();
+        if (prefix == null) {
+            int count = this.presence.getOnlineCount();
+            text.append(count).append(count == 1 ? " user" : " users").append(" online");
+        } else {
+            text.append("Users online starting with '").append(prefix).append("'");
+        }
+        text.append(found.isEmpty() ? ": none." : ": " + list + (found.size() > WHO_LIMIT ? ", ..." : "."));
+        if (this.cluster != null && prefix == null) {
+            text.append("\n").append(this.cluster.getRemoteUserCount()).append(" more on the other nodes.");
+        }
+        reply(client, text.toString());
+    }
+
+    /**
+     * This method sends a message to a single client, ignoring a client that
+     * is leaving.
+     *
+     * @param client The client.
+     * @param msg    The message.
+     */
+    private void reply(ClientConnection client, Object msg) {
+        try {
+            client.sendToClient(msg);
+        } catch (IOException e) {
+            // The client is leaving, it is cleaned up by its connection
+        }
+    }
+
+    /**
+     * @return The channels, each with a leading '#', or "none".
+     */
+    private static String channelList(Set<String> channels) {
+        if (channels.isEmpty()) {
+            return "none";
+        }
+        StringBuilder list = new StringBuilder();
+        for (String channel : channels) {
+            list.append(list.length() == 0 ? "#" : ", #").append(channel);
+        }
+        return list.toString();
+    }
+
     /**
      * This method overrides the one in the superclass. Called when the server
      * starts listening for connections.
      */
-    protected void serverStarted() {
-        System.out.println("Server listening for connections on port " + getPort());
+    public void serverStarted() {
+        this.log.info("Server listening for connections on port {}", this.engine.getPort());
     }
 
     /**
      * This method overrides the one in the superclass. Called when the server stops
      * listening for connections.
      */
-    protected void serverStopped() {
-        System.out.println("Server has stopped listening for connections.");
+    public void serverStopped() {
+        this.log.info("Server has stopped listening for connections.");
     }
 
     /**
-     * This method displays a message on the server console to show that a new
-     * client was connected
+     * This method overrides the one in the superclass. It hands the new ocsf
+     * connection to the common handling.
      */
     @Override
     protected void clientConnected(ConnectionToClient client) {
-        System.out.println("A new client is attempting to connect to the server.");
+        clientConnected(OcsfClientConnection.of(client));
+    }
+
+    /**
+     * This method displays a message on the server console to show that a new
+     * client was connected
+     */
+    public void clientConnected(ClientConnection client) {
+        this.log.info("A new client is attempting to connect to the server.");
+        if (this.heartbeats != null) {
+            this.heartbeats.watch(client);
+        }
 
     }
 
     /**
-     * This method displays a message on the server console to show that a client
-     * was disconnected
+     * This method overrides the one in the superclass. It hands the closed ocsf
+     * connection to the common handling.
      */
     @Override
     synchronized protected void clientDisconnected(ConnectionToClient client) {
-        System.out.println(client.getInfo("loginID") + " has disconnected.");
+        clientDisconnected(OcsfClientConnection.of(client));
     }
 
     /**
-     * This method closes the connection with a client if there was an exception
+     * This method displays a message on the server console to show that a client
+     * was disconnected
+     */
+    synchronized public void clientDisconnected(ClientConnection client) {
+        unwatch(client);
+        suspend(client);
+        unregister(client);
+        this.channels.leaveAll(client);
+        departed(client);
+        Object loginID = client.getInfo("loginID");
+        if (loginID != null) {
+            this.log.info("{} has disconnected.", loginID);
+        } else {
+            this.log.info("A client that was not logged on has disconnected.");
+        }
+    }
+
+    /**
+     * This method overrides the one in the superclass. It hands the exception
+     * raised by ocsf to the common handling.
      */
     @Override
     synchronized protected void clientException(ConnectionToClient client, Throwable exception) {
+        clientException(OcsfClientConnection.of(client), exception);
+    }
+
+    /**
+     * This method closes the connection with a client if there was an exception
+     */
+    synchronized public void clientException(ClientConnection client, Throwable exception) {
+        unwatch(client);
+        suspend(client);
+        unregister(client);
+        this.channels.leaveAll(client);
+        departed(client);
         try {
             client.close();
         } catch (IOException e) {
-            System.out.println("An error occured with a client.");
+            this.log.warn("An error occured with a client.");
+        }
+    }
+
+    /**
+     * This method disconnects a client that left its pings unanswered. Its
+     * session is kept, so it can resume it if it was only cut off.
+     *
+     * @param client The connection of the client.
+     */
+    private void reap(ClientConnection client) {
+        Object loginID = client.getInfo("loginID");
+        this.log.info("{} stopped answering, disconnecting.", loginID != null ? loginID : client);
+        try {
+            client.abort();
+        } catch (IOException e) {
+            this.log.warn("An error occured with a client.");
+        }
+    }
+
+    /**
+     * This method stops watching whether a client answers.
+     *
+     * @param client The connection of the client.
+     */
+    private void unwatch(ClientConnection client) {
+        if (this.heartbeats != null) {
+            this.heartbeats.unwatch(client);
+        }
+    }
+
+    /**
+     * This method keeps the session of a user whose connection was lost, so
+     * their client can resume it. Called before the user leaves their
+     * channels.
+     *
+     * @param client The connection of the user.
+     */
+    private void suspend(ClientConnection client) {
+        this.sessions.suspend((String) client.getInfo("session"), this.channels.getChannels(client),
+                (String) client.getInfo("channel"), this.history == null ? 0 : this.history.getLastSequence());
+        client.setInfo("session", null);
+    }
+
+    /**
+     * This method records that a user left this node, and tells the other
+     * nodes unless the loginID now belongs to another connection.
+     *
+     * @param client The connection of the user.
+     */
+    private void unregister(ClientConnection client) {
+        String loginID = (String) client.getInfo("loginID");
+        this.users.unregister(loginID, client);
+        if (this.limiter != null) {
+            this.limiter.forget(client);
+        }
+        if (loginID == null || this.users.isOnline(loginID)) {
+            return;
+        }
+        this.presence.forget(loginID);
+        if (this.cluster != null) {
+            this.cluster.loggedOff(loginID);
+        }
+    }
+
+    /**
+     * This method remembers when a user left, so what they miss can be
+     * replayed when they log in again.
+     *
+     * @param client The connection of the user.
+     */
+    private void departed(ClientConnection client) {
+        if (this.history != null) {
+            this.history.departed((String) client.getInfo("loginID"));
         }
     }
 
     // Class methods ***************************************************
 
+    /**
+     * @return The name of this node when none is given: the name of the host
+     *         and the port the other nodes connect to.
+     */
+    private static String defaultNodeName(int clusterPort) {
+        try {
+            return InetAddress.getLocalHost().getHostName() + ":" + clusterPort;
+        } catch (IOException e) {
+            return "localhost:" + clusterPort;
+        }
+    }
+
     /**
      * This method is responsible for the creation of the server instance (there is
      * no UI in this phase).
      *
      * @param args[0] The port number to listen on. Defaults to 5555 if no argument
      *                is entered.
+     * @param --engine=ocsf|nio|threads|virtual The engine serving the clients.
+     *                Defaults to ocsf, one thread per client. "virtual" serves
+     *                each client on a virtual thread instead.
+     * @param --loops=N The number of event loops of the nio engine. Defaults to
+     *                the number of processors.
+     * @param --queue=N The number of messages waiting for a slow client before
+     *                the overflow policy applies. Defaults to 1024. Ignored by
+     *                the ocsf engine, which writes to each client right away.
+     * @param --overflow=drop-oldest|coalesce|disconnect What to do when the
+     *                queue of a client is full. Defaults to drop-oldest.
+     * @param --flush-tick=MS Writes the messages for a client at most once
+     *                every MS milliseconds. Defaults to 0, right away.
+     * @param --tls-keystore=FILE Accepts TLS connections only, with the key
+     *                and certificate in that file. Needs the threads or
+     *                virtual engine.
+     * @param --tls-password=PW The password of the key store.
+     * @param --stats=N Prints the counters of the server every N seconds.
+     * @param --log-level=debug|info|warn|error The lowest level logged.
+     *                Defaults to info.
+     * @param --log-sample=N Logs one received message in N. Defaults to 1,
+     *                every message.
+     * @param --journal=DIR Keeps every chat message in a journal in that
+     *                directory. Messages are not kept by default.
+     * @param --journal-segment=MB The size of a journal file. Defaults to 64.
+     * @param --journal-sync=MS The time between two writes of the journal to
+     *                disk. Defaults to 10.
+     * @param --journal-files=N The number of journal files kept, the oldest
+     *                being deleted. Defaults to 16; 0 keeps them all.
+     * @param --history=N The number of chat lines kept in memory per channel,
+     *                replayed to users logging in again. Defaults to 100; 0
+     *                keeps none.
+     * @param --history-age=MIN The age after which a kept line is forgotten.
+     *                Defaults to 60.
+     * @param --history-memory=MB The memory the kept lines may use. Defaults
+     *                to 16.
+     * @param --resume-timeout=S The time the session of a user whose
+     *                connection was lost is kept for their client to resume
+     *                it. Defaults to 300.
+     * @param --heartbeat=S Pings a client silent for S seconds. Defaults to
+     *                0, never pinging, since ocsf clients cannot answer; only
+     *                set it when every client is a ChatClient.
+     * @param --heartbeat-misses=N Disconnects a client leaving N pings in a
+     *                row unanswered. Defaults to 3.
+     * @param --presence-window=MS Gathers the users logging on and off, and
+     *                joining and leaving channels, for MS milliseconds into a
+     *                single notice. Defaults to 250; 0 tells every one right
+     *                away.
+     * @param --rate-limit=N The messages a user may send per second. Not
+     *                limited by default.
+     * @param --rate-burst=N The messages a user may send at once. Defaults to
+     *                the rate.
+     * @param --rate-bytes=B The bytes a user may send per second. Not limited
+     *                by default.
+     * @param --rate-bytes-burst=B The bytes a user may send at once. Defaults
+     *                to the rate.
+     * @param --cluster=PORT Runs the server as a node of a cluster, the other
+     *                nodes connecting to it on that port.
+     * @param --peers=HOST:PORT,... The cluster ports of the other nodes.
+     * @param --node=NAME The name of this node, unique in the cluster.
+     *                Defaults to the host name and the cluster port.
+     * @param --cluster-queue=N The number of messages waiting for another
+     *                node before they are dropped. Defaults to 16384.
+     * @param --cluster-bind=ADDR The address the other nodes connect to.
+     *                Defaults to the loopback address; only the nodes given
+     *                in --peers may link.
+     * @param --cluster-secret=S A secret shared by the nodes, which they sign
+     *                their hello with.
      */
     public static void main(String[] args) {
         int port = 0; // Port to listen on
+        CommandLine config = new CommandLine(args);
 
         try {
-            port = Integer.parseInt(args[0]); // Get port from command line
+            port = Integer.parseInt(config.getArgument(0)); // Get port from command line
         } catch (Throwable t) {
             port = DEFAULT_PORT; // Set port to 5555
         }
 
         // Creates the server
-        EchoServer sv = new EchoServer(port);
+        EchoServer sv;
+        int statsPeriod;
+        try {
+            sv = new EchoServer(port, config);
+            statsPeriod = config.getInt("stats", 0);
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR - " + e.getMessage());
+            return;
+        }
 
         try {
-            sv.listen(); // Start listening for connections
+            sv.getEngine().listen(); // Start listening for connections
+            if (statsPeriod > 0) {
+                sv.getEngine().getMetrics().logEvery(sv.getEngine(), statsPeriod, sv.getLog());
+            }
             ServerConsole serverConsole = new ServerConsole(sv); // Creates the server console
             serverConsole.accept();
         } catch (Exception ex) {
-            System.out.println("ERROR - Could not listen for clients!");
+            sv.getLog().error("Could not listen for clients!");
         }
     }
 }
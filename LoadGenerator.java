@@ -0,0 +1,414 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import client.*;
+import common.*;
+import server.*;
+
+/**
+ * This class puts a chat server under load. It logs in many users, each a
+ * ChatClient of its own, spreads them over a few channels and has them send
+ * chat lines at a fixed rate, while some of them log off and back in. Every
+ * line carries the time it was sent, so the time it takes to reach each
+ * member of the channel is measured when the line arrives in
+ * handleMessageFromServer. Every second, and at the end, it shows the lines
+ * sent and received and the percentiles of that time.
+ *
+ * Users read on virtual threads by default, so thousands of them fit in one
+ * process. The server is either already running, or started in this process
+ * with "--engine", for instance:
+ * "java LoadGenerator 5556 --engine=nio --sessions=2000 --rate=500".
+ * Raise the limit of open files (ulimit -n) above twice the number of users
+ * first.
+ */
+public class LoadGenerator {
+    // Class variables *************************************************
+
+    /**
+     * The default port of the server.
+     */
+    final public static int DEFAULT_PORT = 5555;
+
+    /**
+     * What the chat lines of the load start with, followed by the time they
+     * were sent.
+     */
+    private static final String MARK = "load@";
+
+    /**
+     * The time between two batches of lines sent, in milliseconds.
+     */
+    private static final int SEND_PERIOD = 10;
+
+    /**
+     * A user interface showing nothing.
+     */
+    private static final ChatIF IGNORE = message -> {
+    };
+
+    // Instance variables **********************************************
+
+    /**
+     * The server to connect to.
+     */
+    private final String host;
+
+    /**
+     * The port of the server.
+     */
+    private final int port;
+
+    /**
+     * Tells if the users speak the compact protocol.
+     */
+    private final boolean framed;
+
+    /**
+     * Tells if the users ask for compression.
+     */
+    private final boolean compress;
+
+    /**
+     * Tells if the users read on virtual threads.
+     */
+    private final boolean virtual;
+
+    /**
+     * The number of channels the users are spread over.
+     */
+    private final int rooms;
+
+    /**
+     * The users.
+     */
+    private final List<Session> sessions = new ArrayList<>();
+
+    /**
+     * Logs users off and back in, and sends the lines.
+     */
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+
+    /**
+     * The counters of the run.
+     */
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder logins = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+
+    /**
+     * The time lines took to arrive since the last report, in nanoseconds.
+     */
+    private volatile LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * The time lines took to arrive during the whole run, in nanoseconds.
+     */
+    private final LatencyHistogram totalLatency = new LatencyHistogram();
+
+    /**
+     * Tells if the measures started: the lines received before are not
+     * counted.
+     */
+    private volatile boolean measuring;
+
+    /**
+     * A user of the load. It joins its channel every time it logs in, and
+     * measures the lines it receives.
+     */
+    private final class Session extends ChatClient {
+
+        Session(String loginID) throws IOException {
+            super(loginID, host, port, IGNORE, framed, compress);
+        }
+
+        @Override
+        protected Thread newReaderThread(Runnable reader) {
+            return virtual ? Thread.ofVirtual().unstarted(reader) : new Thread(reader);
+        }
+
+        @Override
+        public void connectionEstablished() {
+            send("#login " + getLoginID() + (compress && framed ? " --compress=deflate" : ""));
+            send("#join " + roomOf(getLoginID()));
+            logins.increment();
+        }
+
+        @Override
+        public void handleMessageFromServer(Object msg) {
+            String text = msg instanceof ChatMessage ? ((ChatMessage) msg).getText() : msg.toString();
+            int mark = text.indexOf(MARK);
+            if (mark >= 0) {
+                if (measuring) {
+                    long nanos = System.nanoTime() - Long.parseLong(text.substring(mark + MARK.length()));
+                    latency.record(nanos);
+                    totalLatency.record(nanos);
+                    received.increment();
+                }
+            } else if (text.equals("#compress deflate")) {
+                setCompressing(true);
+            } else if (text.contains("is already in use")) {
+
+                // The server has not seen the previous connection close yet
+                refused.increment();
+                scheduler.schedule(this::reconnect, 200, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        public void connectionClosed() {
+        }
+
+        @Override
+        public void connectionException(Exception exception) {
+        }
+
+        /**
+         * This method sends a message, counting it if it cannot be sent.
+         */
+        void send(String message) {
+            try {
+                sendToServer(message);
+            } catch (IOException e) {
+                failed.increment();
+            }
+        }
+
+        /**
+         * This method logs the user off, then back in a little later.
+         */
+        void churn() {
+            send("#logoff");
+            try {
+                closeConnection();
+            } catch (IOException e) {
+                // Reconnecting opens a new socket anyway
+            }
+            scheduler.schedule(this::reconnect, 50, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * This method connects the user again.
+         */
+        void reconnect() {
+            try {
+                openConnection();
+            } catch (IOException e) {
+                failed.increment();
+            }
+        }
+    }
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs a load generator.
+     *
+     * @param host     The server to connect to.
+     * @param port     The port of the server.
+     * @param framed   true if the users speak the compact protocol.
+     * @param compress true if the users ask for compression.
+     * @param virtual  true if the users read on virtual threads.
+     * @param rooms    The number of channels the users are spread over.
+     */
+    public LoadGenerator(String host, int port, boolean framed, boolean compress, boolean virtual, int rooms) {
+        this.host = host;
+        this.port = port;
+        this.framed = framed;
+        this.compress = compress;
+        this.virtual = virtual;
+        this.rooms = Math.max(1, rooms);
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * This method logs the users in, one after the other.
+     *
+     * @param count      The number of users.
+     * @param batchDelay The time their messages wait to be sent in batches,
+     *                   in milliseconds; 0 sends them right away.
+     * @param console    Where to show the progress.
+     * @throws IOException If a user cannot connect.
+     */
+    public void connect(int count, int batchDelay, PrintStream console) throws IOException {
+        for (int i = sessions.size(); i < count; i++) {
+            Session session = new Session("load" + i);
+            if (batchDelay > 0) {
+                session.setBatching(batchDelay, 16 * 1024);
+            }
+            sessions.add(session);
+            if ((i + 1) % 1000 == 0) {
+                console.println((i + 1) + " users connected");
+            }
+        }
+    }
+
+    /**
+     * This method sends lines and logs users off and back in for a while,
+     * showing the measures every second.
+     *
+     * @param rate     The number of lines sent per second, by all users.
+     * @param churn    The number of users logged off and back in per second.
+     * @param seconds  How long to run.
+     * @param console  Where to show the measures.
+     */
+    public void run(int rate, int churn, int seconds, PrintStream console) throws InterruptedException {
+        Random random = new Random();
+        double perPeriod = rate * SEND_PERIOD / 1000.0;
+        double[] owed = new double[1];
+        scheduler.scheduleAtFixedRate(() -> {
+            owed[0] += perPeriod;
+            for (; owed[0] >= 1; owed[0]--) {
+                Session session = sessions.get(random.nextInt(sessions.size()));
+                if (session.isConnected()) {
+                    session.send(MARK + System.nanoTime());
+                    sent.increment();
+                }
+            }
+        }, 0, SEND_PERIOD, TimeUnit.MILLISECONDS);
+
+        if (churn > 0) {
+            scheduler.scheduleAtFixedRate(() -> sessions.get(random.nextInt(sessions.size())).churn(), 0,
+                    TimeUnit.SECONDS.toMicros(1) / churn, TimeUnit.MICROSECONDS);
+        }
+
+        measuring = true;
+        console.println("second    sent/s  received/s  logins/s     p50 (ms)     p99 (ms)    p999 (ms)     max (ms)");
+        long lastSent = 0;
+        long lastReceived = 0;
+        long lastLogins = logins.sum();
+        for (int second = 1; second <= seconds; second++) {
+            Thread.sleep(1000);
+            LatencyHistogram interval = latency;
+            latency = new LatencyHistogram();
+            long sentNow = sent.sum();
+            long receivedNow = received.sum();
+            long loginsNow = logins.sum();
+            console.printf("%6d  %8d  %10d  %8d  %s%n", second, sentNow - lastSent, receivedNow - lastReceived,
+                    loginsNow - lastLogins, percentiles(interval));
+            lastSent = sentNow;
+            lastReceived = receivedNow;
+            lastLogins = loginsNow;
+        }
+
+        // Lets the last lines arrive
+        scheduler.shutdownNow();
+        Thread.sleep(1000);
+        measuring = false;
+
+        console.println("Sent " + sent.sum() + " lines, received " + received.sum() + " (" + received.sum() / seconds
+                + "/s), " + failed.sum() + " sends failed, " + refused.sum() + " logins refused");
+        console.println("Latency (ms): p50    p99    p999   max");
+        console.println("              " + percentiles(totalLatency));
+    }
+
+    /**
+     * This method closes the connections of every user.
+     */
+    public void disconnect() {
+        for (Session session : sessions) {
+            try {
+                session.closeConnection();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    /**
+     * @return The channel of a user of the load.
+     */
+    private String roomOf(String loginID) {
+        return "load" + Integer.parseInt(loginID.substring("load".length())) % rooms;
+    }
+
+    // Class methods ***************************************************
+
+    /**
+     * @return The percentiles of a histogram of nanoseconds, in milliseconds.
+     */
+    private static String percentiles(LatencyHistogram histogram) {
+        return String.format("%11.3f  %11.3f  %11.3f  %11.3f", histogram.getPercentile(50) / 1e6,
+                histogram.getPercentile(99) / 1e6, histogram.getPercentile(99.9) / 1e6, histogram.getMax() / 1e6);
+    }
+
+    /**
+     * This method runs the load.
+     *
+     * @param args[0]         The port of the server. Defaults to 5555.
+     * @param --host=NAME     The server. Defaults to localhost.
+     * @param --engine=NAME   Starts a server with that engine in this process
+     *                        instead of connecting to a running one.
+     * @param --sessions=N    The number of users. Defaults to 1000.
+     * @param --rooms=N       The number of channels they are spread over.
+     *                        Defaults to 10.
+     * @param --rate=N        The number of lines sent per second, by all
+     *                        users. Defaults to 1000.
+     * @param --churn=N       The number of users logged off and back in per
+     *                        second. Defaults to 0.
+     * @param --duration=S    How long to send, in seconds. Defaults to 30.
+     * @param --framed        The users speak the compact protocol.
+     * @param --compress      The users ask for compression. Needs --framed.
+     * @param --platform      The users read on platform threads instead of
+     *                        virtual threads.
+     * @param --batch=MS      The users send their messages in batches,
+     *                        waiting at most MS milliseconds.
+     */
+    public static void main(String[] args) throws Exception {
+        CommandLine config = new CommandLine(args);
+        int port;
+
+        try {
+            port = Integer.parseInt(config.getArgument(0));
+        } catch (Throwable t) {
+            port = DEFAULT_PORT;
+        }
+
+        int sessions;
+        int rooms;
+        int rate;
+        int churn;
+        int duration;
+        int batch;
+        try {
+            sessions = config.getInt("sessions", 1000);
+            rooms = config.getInt("rooms", 10);
+            rate = config.getInt("rate", 1000);
+            churn = config.getInt("churn", 0);
+            duration = config.getInt("duration", 30);
+            batch = config.getInt("batch", 0);
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR - " + e.getMessage());
+            return;
+        }
+
+        PrintStream console = System.out;
+        String engine = config.get("engine", null);
+        if (engine != null) {
+
+            // The server displays every connection, keep the console for the results
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            new EchoServer(port, config).getEngine().listen();
+            console.println("Engine: " + engine);
+        }
+
+        LoadGenerator load = new LoadGenerator(config.get("host", "localhost"), port, config.getBoolean("framed"),
+                config.getBoolean("compress"), !config.getBoolean("platform"), rooms);
+        try {
+            load.connect(sessions, batch, console);
+            console.println(sessions + " users in " + rooms + " channels, " + rate + " lines/s, " + churn
+                    + " logins/s");
+            load.run(rate, churn, duration, console);
+        } catch (IOException e) {
+            console.println("Could not connect: " + e);
+        } finally {
+            load.disconnect();
+            System.exit(0);
+        }
+    }
+}
+//End of LoadGenerator class
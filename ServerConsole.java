@@ -1,6 +1,18 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 
 import common.ChatIF;
+import common.CommandTable;
+import server.ClientConnection;
+import server.ConnectionDrainer;
+import server.JournalEntry;
+import server.MessageJournal;
+import server.OutboundQueue;
+import server.ServerEngine;
 
 public class ServerConsole implements ChatIF {
 
@@ -9,11 +21,26 @@ public class ServerConsole implements ChatIF {
      */
     EchoServer server;
 
+    /**
+     * The engine serving the clients of the server.
+     */
+    ServerEngine engine;
+
     /**
      * Scanner to read from the console
      */
     Scanner fromConsole;
 
+    /**
+     * The commands typed on the console, such as "#stop".
+     */
+    CommandTable<Void> commands = new CommandTable<>();
+
+    /**
+     * Empties the server before it is stopped, for "#drain".
+     */
+    ConnectionDrainer drainer;
+
     /**
      * Constructor. Only takes the EchoServer
      * 
@@ -21,14 +48,18 @@ public class ServerConsole implements ChatIF {
      */
     public ServerConsole(EchoServer server) {
         this.server = server;
+        this.engine = server.getEngine();
+        this.drainer = new ConnectionDrainer(this.engine, server.getLog());
 
         // To initialize the scanner
         this.fromConsole = new Scanner(System.in);
+
+        registerCommands();
     }
 
     /**
-     * This method waits for input from the console. Once it is received, it
-     * displays it to the server's console.
+     * This method waits for input from the console. Commands are run from the
+     * command table; anything else is sent to every client.
      */
     public void accept() {
         try {
@@ -37,112 +68,14 @@ public class ServerConsole implements ChatIF {
             while (true) {
                 message = fromConsole.nextLine();
 
-                // Prevents the program from crashing
-                // by making sure the message is not null
-                if (message.equals("")) {
-                    accept();
-                }
-
-                // First see if there is a command
-                if (message.charAt(0) == '#') {
-
-                    // Looks a the fist word of the message
-                    switch (message.split(" ")[0]) {
-
-                    case "#quit":
-                        System.exit(0);
-                        break;
-
-                    case "#stop":
-
-                        // Stop listening for new connections
-                        this.server.stopListening();
-                        break;
-
-                    case "#close":
-
-                        // Stop listening for new connections
-                        // and disconnects every user
-                        this.server.sendToAllClients("WARNING - The server has stopped listening for connections\n"
-                                + "SERVER SHUTTING DOWN! DISCONNECTING!");
-                        this.server.close();
-                        break;
-
-                    case "#setport":
-                        try {
-
-                            // If server not listening and nobody is connected to it
-                            if (!this.server.isListening() && this.server.getNumberOfClients() == 0) {
-
-                                // Displays the second part of the message
-                                // which is the future port number
-                                display("Setting port number to " + message.split(" ")[1]);
-
-                                // Sets the port number
-                                this.server.setPort(Integer.parseInt(message.split(" ")[1]));
-
-                                // Shows success
-                                display("Done! Your port number is now set to " + this.server.getPort());
-                            }
-
-                            // If the server is still listening for new connections
-                            // and there are some clients connected to it
-                            else if (this.server.isListening() && this.server.getNumberOfClients() != 0) {
-                                display("Some clients are still connected to the server and you are still listening for connections."
-                                        + "\nMake sure to stop listening for new connections and"
-                                        + " disconnect all of your clients using the command '#close'.");
-                            }
-
-                            // If the server is still listening for new connections
-                            else if (this.server.isListening()) {
-                                display("The server is still listening for connections.\nMake sure to stop listening "
-                                        + "for new connections using the command '#stop'.");
-                            }
-
-                            // If there are some clients connected to the server
-                            else if (this.server.getNumberOfClients() != 0) {
-                                display("Some clients are still connected to the server.\nMake sure to disconnect "
-                                        + "them all using the command '#close'");
-                            }
-                        }
-
-                        // If no port number was added
-                        catch (ArrayIndexOutOfBoundsException e) {
-                            display("Make sure to also include your desired port at the end of your command.");
-
-                        }
-
-                        // Any other errors
-                        catch (Exception ex) {
-                            display("There was a problem with the port number you entered. Make sure its a number.");
-                        }
-                        break;
-
-                    case "#start":
-
-                        // Makes the server listen for new connections
-                        if (!this.server.isListening()) {
-                            this.server.listen();
-                        }
-
-                        // If the server is already listening for new connections
-                        else {
-                            display("Server already listening for new connections on port " + this.server.getPort());
-                        }
-                        break;
-
-                    case "#getport":
-                        display("Your current port is " + this.server.getPort() + ".");
-                        break;
-
-                    default:
-                        display("'" + message + "' doesn't match any commands.");
-                    }
+                // Ignores empty lines
+                if (message.isEmpty()) {
+                    continue;
                 }
 
                 // If there is no command, send to all clients
-                else {
-                    server.sendToAllClients("SERVER MESSAGE > " + message);
+                if (!this.commands.dispatch(message, null)) {
+                    this.engine.sendToAllClients("SERVER MESSAGE > " + message);
                 }
             }
         }
@@ -153,6 +86,186 @@ public class ServerConsole implements ChatIF {
         }
     }
 
+    /**
+     * This method registers the commands of the console.
+     */
+    private void registerCommands() {
+        this.commands.register("#quit", (args, line, none) -> System.exit(0))
+                .register("#stop", (args, line, none) -> this.engine.stopListening())
+                .register("#close", this::closeServer)
+                .register("#drain", this::drainServer)
+                .register("#setport", this::setPort)
+                .register("#start", this::startListening)
+                .register("#getport", (args, line, none) -> display("Your current port is " + this.engine.getPort() + "."))
+                .register("#slow", (args, line, none) -> displaySlowClients())
+                .register("#journal", this::displayJournal)
+                .register("#cluster", (args, line, none) -> display(this.server.getCluster() == null
+                        ? "This server is not part of a cluster." : this.server.getCluster().report()))
+                .register("#stats", (args, line, none) -> display(this.engine.getMetrics().report(this.engine)
+                        + "\n" + this.server.getPresence().report()))
+                .setFallback((args, line, none) -> display("'" + line + "' doesn't match any commands."));
+    }
+
+    /**
+     * This method handles "#close": the server stops listening for new
+     * connections and disconnects every user.
+     */
+    private void closeServer(String args, String line, Void none) throws IOException {
+        this.engine.sendToAllClients("WARNING - The server has stopped listening for connections\n"
+                + "SERVER SHUTTING DOWN! DISCONNECTING!");
+        this.engine.close();
+    }
+
+    /**
+     * This method handles "#drain [host:port] [seconds]": the server stops
+     * listening, tells the clients to connect to host:port from now on (or
+     * to this server again once it is back), writes what is queued for them
+     * and closes their connections over that many seconds, 5 by default.
+     */
+    private void drainServer(String args, String line, Void none) {
+        String host = null;
+        int port = 0;
+        int period = ConnectionDrainer.DEFAULT_PERIOD;
+        try {
+            for (String word : args.isEmpty() ? new String[0] : args.split(" +")) {
+                int colon = word.lastIndexOf(':');
+                if (colon >= 0) {
+                    host = colon == 0 ? null : word.substring(0, colon);
+                    port = Integer.parseInt(word.substring(colon + 1));
+                } else {
+                    period = Integer.parseInt(word);
+                }
+            }
+        } catch (NumberFormatException ex) {
+            display("Usage: #drain [host:port] [seconds]");
+            return;
+        }
+
+        if (!this.drainer.drain(host, port, period)) {
+            display("The server is already being drained.");
+            return;
+        }
+        display("Draining " + this.engine.getNumberOfClients() + " clients over " + period + " seconds"
+                + (port > 0 ? ", sending them to " + (host != null ? host : "this host") + ":" + port : "") + ".");
+    }
+
+    /**
+     * This method handles "#setport <port>". While the server listens, the new
+     * port is bound before the old one is closed, so connections are accepted
+     * all along; connected clients stay connected and are told to use the new
+     * port when they connect again. The ocsf engine cannot listen on two
+     * ports: it must be stopped first.
+     */
+    private void setPort(String args, String line, Void none) {
+        String port = CommandTable.firstWord(args);
+
+        // If no port number was added
+        if (port == null) {
+            display("Make sure to also include your desired port at the end of your command.");
+            return;
+        }
+
+        int number;
+        try {
+            number = Integer.parseInt(port);
+        } catch (NumberFormatException ex) {
+            display("There was a problem with the port number you entered. Make sure its a number.");
+            return;
+        }
+
+        // Displays the future port number
+        display("Setting port number to " + number);
+        try {
+            this.engine.switchPort(number);
+        } catch (IOException | IllegalArgumentException ex) {
+            display("Could not use port " + number + ": " + ex.getMessage());
+            return;
+        }
+
+        // The clients connect to the new port if they lose their connection
+        this.engine.sendToAllClients(ConnectionDrainer.redirect(null, number));
+
+        // Shows success
+        display("Done! Your port number is now set to " + this.engine.getPort()
+                + (this.engine.isListening() ? ", and the server listens on it." : "."));
+    }
+
+    /**
+     * This method handles "#start": the server listens for new connections
+     * again.
+     */
+    private void startListening(String args, String line, Void none) throws IOException {
+
+        // Makes the server listen for new connections
+        if (!this.engine.isListening()) {
+            this.engine.listen();
+        }
+
+        // If the server is already listening for new connections
+        else {
+            display("Server already listening for new connections on port " + this.engine.getPort());
+        }
+    }
+
+    /**
+     * This method handles "#journal [n]": describes the journal and shows its
+     * last n messages, 10 by default.
+     */
+    private void displayJournal(String args, String line, Void none) {
+        MessageJournal journal = this.server.getJournal();
+        if (journal == null) {
+            display("Messages are not kept. Start the server with '--journal=<directory>' to keep them.");
+            return;
+        }
+
+        int count;
+        try {
+            count = args.isEmpty() ? 10 : Integer.parseInt(CommandTable.firstWord(args));
+        } catch (NumberFormatException e) {
+            display("Usage: #journal [number of messages]");
+            return;
+        }
+
+        long last = journal.getLastSequence();
+        StringBuilder report = new StringBuilder("Journal in " + journal.getDirectory() + ": messages #"
+                + journal.getFirstSequence() + " to #" + last + " in " + journal.getSegmentCount()
+                + " files, on disk up to #" + journal.getDurableSequence());
+        for (JournalEntry entry : journal.read(Math.max(1, last - count + 1), count)) {
+            report.append('\n').append(entry);
+        }
+        display(report.toString());
+    }
+
+    /**
+     * This method displays the clients that have messages waiting or had some
+     * dropped, the most behind first.
+     */
+    private void displaySlowClients() {
+        // The depths are read once, as they keep changing while sorting
+        Map<ClientConnection, Integer> depths = new HashMap<>();
+        List<ClientConnection> slow = new ArrayList<>();
+        for (ClientConnection client : this.engine.getClientConnections()) {
+            OutboundQueue queue = client.getOutboundQueue();
+            if (queue != null && (queue.size() > 0 || queue.getDropped() > 0)) {
+                depths.put(client, queue.size());
+                slow.add(client);
+            }
+        }
+
+        if (slow.isEmpty()) {
+            display("No slow clients.");
+            return;
+        }
+
+        slow.sort((a, b) -> depths.get(b) - depths.get(a));
+        for (ClientConnection client : slow) {
+            OutboundQueue queue = client.getOutboundQueue();
+            String policy = queue.getPolicy().name().toLowerCase().replace('_', '-');
+            display(client.getInfo("loginID") + ": " + depths.get(client) + " waiting (" + queue.getMaxDepth()
+                    + " at most), " + queue.getDropped() + " dropped, " + policy + " when full");
+        }
+    }
+
     /**
      * This method overrides the method in the ChatIF interface. It displays a
      * message onto the screen.
@@ -160,6 +273,6 @@ public class ServerConsole implements ChatIF {
      * @param message The string to be displayed.
      */
     public void display(String message) {
-        System.out.println(message);
+        this.server.getLog().print(message);
     }
 }
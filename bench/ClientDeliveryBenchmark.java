@@ -0,0 +1,151 @@
+package bench;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import client.*;
+import common.*;
+import server.*;
+
+/**
+ * This benchmark measures ChatClient.handleMessageFromServer: a message read
+ * from the server being handed to the user interface, through the display
+ * queue that delivers it from another thread. Each invocation hands over a
+ * batch of messages, fewer than the queue holds, and waits for all of them
+ * to be displayed, so the time covers queueing and delivery and never the
+ * dropping of old messages. The client is really connected, to a server in
+ * this process that ignores it, and its interface only counts the
+ * characters displayed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientDeliveryBenchmark {
+    // Class variables *************************************************
+
+    /**
+     * The number of messages handed over per invocation.
+     */
+    private static final int BATCH = 1000;
+
+    // Instance variables **********************************************
+
+    /**
+     * The kind of message received: a chat line or a notice from the server.
+     */
+    @Param({ "chat", "text" })
+    public String kind;
+
+    /**
+     * The server the client is connected to.
+     */
+    private ServerEngine engine;
+
+    /**
+     * The client.
+     */
+    private ChatClient client;
+
+    /**
+     * The user interface of the client.
+     */
+    private CountingDisplay display;
+
+    /**
+     * The message received.
+     */
+    private Object message;
+
+    // Instance methods ************************************************
+
+    /**
+     * This method starts the server and connects the client.
+     */
+    @Setup
+    public void setUp() throws IOException {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        engine = new ThreadedServerEngine(port, new IgnoringHandler(), new EngineOptions(), true);
+        engine.listen();
+
+        display = new CountingDisplay();
+        client = new ChatClient("bench", "localhost", port, display, true);
+        message = kind.equals("chat") ? new ChatMessage("alice", "Hello everyone, how is the benchmark going?")
+                : "> alice has logged on.";
+    }
+
+    /**
+     * This method disconnects the client and stops the server, and checks
+     * that no message was dropped.
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        client.closeConnection();
+        engine.close();
+        if (client.getDisplayQueue().getDropped() > 0) {
+            throw new IllegalStateException(client.getDisplayQueue().getDropped() + " messages were dropped");
+        }
+    }
+
+    /**
+     * This method delivers a batch of messages to the user interface and
+     * waits for them to be displayed.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long deliver() throws InterruptedException {
+        for (int i = 0; i < BATCH; i++) {
+            client.handleMessageFromServer(message);
+        }
+        if (!client.getDisplayQueue().awaitEmpty(10000)) {
+            throw new IllegalStateException("The messages were not displayed in time");
+        }
+        return display.characters;
+    }
+
+    // Inner classes ***************************************************
+
+    /**
+     * A user interface counting what it would display. Only the thread of
+     * the display queue writes the count.
+     */
+    private static final class CountingDisplay implements ChatIF {
+        volatile long characters;
+
+        public void display(String message) {
+            characters += message.length();
+        }
+    }
+
+    /**
+     * A server that accepts clients and ignores them.
+     */
+    private static final class IgnoringHandler implements ServerHandler {
+        public void handleMessageFromClient(Object msg, ClientConnection client) {
+        }
+
+        public void clientConnected(ClientConnection client) {
+        }
+
+        public void clientDisconnected(ClientConnection client) {
+        }
+
+        public void clientException(ClientConnection client, Throwable exception) {
+        }
+
+        public void serverStarted() {
+        }
+
+        public void serverStopped() {
+        }
+    }
+}
+//End of ClientDeliveryBenchmark class
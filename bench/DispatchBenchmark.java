@@ -0,0 +1,104 @@
+package bench;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import common.*;
+import server.*;
+
+/**
+ * This benchmark measures EchoServer.handleMessageFromClient: recognizing a
+ * message, running a command or sending a chat line to the channel of the
+ * sender. The sender is alone in its channel, so the time is the handling
+ * itself rather than the fan-out (see FanOutBenchmark).
+ *
+ * EchoServer lives in the default package, which a benchmark cannot import:
+ * it is created by name and used through ServerHandler, the interface its
+ * engines call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatchBenchmark {
+    // Instance variables **********************************************
+
+    /**
+     * The kind of message handled.
+     */
+    @Param({ "chat", "command", "unknown" })
+    public String kind;
+
+    /**
+     * The server handling the messages.
+     */
+    private ServerHandler server;
+
+    /**
+     * The client sending the messages.
+     */
+    private SinkConnection client;
+
+    /**
+     * The message sent.
+     */
+    private String message;
+
+    /**
+     * The console, restored after the benchmark.
+     */
+    private PrintStream console;
+
+    // Instance methods ************************************************
+
+    /**
+     * This method creates the server and logs the client on.
+     */
+    @Setup
+    public void setUp() throws Exception {
+
+        // The server displays every message, which is part of the cost
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        server = (ServerHandler) Class.forName("EchoServer").getConstructor(int.class).newInstance(0);
+        client = new SinkConnection(true);
+        server.handleMessageFromClient("#login bench", client);
+
+        switch (kind) {
+
+        case "chat":
+            message = "Hello everyone, how is the benchmark going?";
+            break;
+
+        case "command":
+            message = "#channel general";
+            break;
+
+        default:
+            message = "#nosuchcommand with some arguments";
+        }
+    }
+
+    /**
+     * This method gives the console back.
+     */
+    @TearDown
+    public void tearDown() {
+        System.setOut(console);
+    }
+
+    /**
+     * This method handles one message.
+     */
+    @Benchmark
+    public long handleMessage() {
+        server.handleMessageFromClient(message, client);
+        return client.getBytes();
+    }
+}
+//End of DispatchBenchmark class
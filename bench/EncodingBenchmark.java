@@ -0,0 +1,130 @@
+package bench;
+
+import java.io.*;
+import java.nio.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import common.*;
+import server.*;
+
+/**
+ * This benchmark measures encoding and decoding one chat line in each wire
+ * format: the compact frames, compressed or not, the object stream written by
+ * the server engines, and a real ObjectOutputStream as ocsf's
+ * ConnectionToClient uses. Frames shorter than
+ * WireProtocol.COMPRESSION_THRESHOLD are left as they are.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncodingBenchmark {
+    // Instance variables **********************************************
+
+    /**
+     * The length of the text of the message.
+     */
+    @Param({ "16", "256", "4096" })
+    public int length;
+
+    /**
+     * The message encoded.
+     */
+    private ChatMessage message;
+
+    /**
+     * The message as the legacy clients display it.
+     */
+    private String legacy;
+
+    /**
+     * The legacy message encoded in each format, for the decoding benchmarks.
+     */
+    private ByteBuffer framedBytes;
+    private ByteBuffer deflatedBytes;
+    private ByteBuffer legacyBytes;
+
+    /**
+     * The stream written by ocsf, kept open between messages as ocsf does.
+     */
+    private ByteArrayOutputStream ocsfBytes;
+    private ObjectOutputStream ocsfOutput;
+
+    /**
+     * Decodes the object stream, keeping its state between messages.
+     */
+    private ObjectStreamCodec codec;
+
+    // Instance methods ************************************************
+
+    /**
+     * This method prepares the message and its encoded forms.
+     */
+    @Setup
+    public void setUp() throws IOException {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < length) {
+            text.append("Hello everyone! ");
+        }
+        message = new ChatMessage("bench", text.substring(0, length));
+        legacy = message.toString();
+
+        ocsfBytes = new ByteArrayOutputStream();
+        ocsfOutput = new ObjectOutputStream(ocsfBytes);
+        codec = new ObjectStreamCodec();
+        codec.decode(ByteBuffer.wrap(ObjectStreamCodec.STREAM_HEADER));
+
+        // The object stream is reset before every message
+        framedBytes = WireProtocol.encode(legacy);
+        deflatedBytes = WireProtocol.compress(framedBytes);
+        encodeOcsf();
+        legacyBytes = ByteBuffer.wrap(ocsfBytes.toByteArray());
+    }
+
+    @Benchmark
+    public ByteBuffer encodeFramed() throws IOException {
+        return WireProtocol.encode(message);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeDeflated() throws IOException {
+        return WireProtocol.compress(WireProtocol.encode(message));
+    }
+
+    @Benchmark
+    public ByteBuffer encodeLegacy() throws IOException {
+        return ObjectStreamCodec.encode(legacy);
+    }
+
+    /**
+     * This method writes the message the way ocsf's sendToClient does.
+     */
+    @Benchmark
+    public int encodeOcsf() throws IOException {
+        ocsfBytes.reset();
+        ocsfOutput.reset();
+        ocsfOutput.writeObject(legacy);
+        ocsfOutput.flush();
+        return ocsfBytes.size();
+    }
+
+    @Benchmark
+    public Object decodeFramed() throws IOException {
+        return WireProtocol.decode(framedBytes.duplicate());
+    }
+
+    @Benchmark
+    public Object decodeDeflated() throws IOException {
+        return WireProtocol.decode(deflatedBytes.duplicate());
+    }
+
+    @Benchmark
+    public Object decodeLegacy() throws IOException {
+        return codec.decode(legacyBytes.duplicate());
+    }
+}
+//End of EncodingBenchmark class
@@ -0,0 +1,90 @@
+package bench;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import common.*;
+import server.*;
+
+/**
+ * This benchmark measures sending one chat line to every member of a channel
+ * of 10, 100 or 1000 clients. "sharedEncoding" is the path used since
+ * messages are encoded once for all their recipients; "perClientEncoding"
+ * encodes the message again for every client, as ocsf's sendToAllClients
+ * does, and is the baseline to compare with.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmark {
+    // Instance variables **********************************************
+
+    /**
+     * The number of clients in the channel.
+     */
+    @Param({ "10", "100", "1000" })
+    public int clients;
+
+    /**
+     * true if the clients speak the compact protocol.
+     */
+    @Param({ "false", "true" })
+    public boolean framed;
+
+    /**
+     * The channel the clients joined.
+     */
+    private ChannelRegistry channels;
+
+    /**
+     * The clients.
+     */
+    private SinkConnection[] sinks;
+
+    /**
+     * The message sent.
+     */
+    private ChatMessage message;
+
+    // Instance methods ************************************************
+
+    /**
+     * This method creates the clients and makes them join the channel.
+     */
+    @Setup
+    public void setUp() {
+        channels = new ChannelRegistry();
+        sinks = new SinkConnection[clients];
+        for (int i = 0; i < clients; i++) {
+            sinks[i] = new SinkConnection(framed);
+            channels.join(ChannelRegistry.DEFAULT_CHANNEL, sinks[i]);
+        }
+        message = new ChatMessage("bench", "Hello everyone, how is the benchmark going?");
+    }
+
+    /**
+     * This method sends the message to the channel, encoded once.
+     */
+    @Benchmark
+    public long sharedEncoding() {
+        channels.sendToChannel(ChannelRegistry.DEFAULT_CHANNEL, message);
+        return sinks[0].getBytes();
+    }
+
+    /**
+     * This method sends the message to every client, encoded for each.
+     */
+    @Benchmark
+    public long perClientEncoding() throws IOException {
+        for (SinkConnection sink : sinks) {
+            sink.sendToClient(message);
+        }
+        return sinks[0].getBytes();
+    }
+}
+//End of FanOutBenchmark class
@@ -0,0 +1,78 @@
+package bench;
+
+import java.io.*;
+import java.net.*;
+
+import common.*;
+import server.*;
+
+/**
+ * This class is a client connection that goes nowhere: messages sent to it
+ * are encoded, as a real connection would, and their bytes are only counted.
+ * Benchmarks use it to measure the server without sockets.
+ */
+public class SinkConnection extends ClientConnection {
+    // Instance variables **********************************************
+
+    /**
+     * Tells if the fake client speaks the compact protocol.
+     */
+    private final boolean framed;
+
+    /**
+     * The number of bytes the messages sent would have taken.
+     */
+    private long bytes;
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs a fake connection.
+     *
+     * @param framed true for a client speaking the compact protocol.
+     */
+    public SinkConnection(boolean framed) {
+        this.framed = framed;
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * This method encodes the message for this client alone, as every
+     * connection did before messages were encoded once for all.
+     */
+    @Override
+    public void sendToClient(Object msg) throws IOException {
+        bytes += (framed ? WireProtocol.encode(msg) : ObjectStreamCodec.encode(msg)).remaining();
+    }
+
+    /**
+     * This method takes the bytes shared with the other clients.
+     */
+    @Override
+    public void send(EncodedMessage message) throws IOException {
+        bytes += message.getBytes(framed).remaining();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return InetAddress.getLoopbackAddress();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    /**
+     * @return The number of bytes the messages sent would have taken.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+}
+//End of SinkConnection class
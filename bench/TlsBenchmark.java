@@ -0,0 +1,242 @@
+package bench;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.Collections;
+import java.util.concurrent.*;
+import javax.net.ssl.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import client.*;
+import common.*;
+import server.*;
+
+/**
+ * This benchmark compares TLS with plain TCP, on a server in this process
+ * using the threads engine: connecting with a full handshake, connecting
+ * again with a resumed session, and a message going to the server and back
+ * on a connection already open. The key store of the server is made with
+ * keytool when the benchmark starts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsBenchmark {
+    // Class variables *************************************************
+
+    /**
+     * The password of the key stores made for the benchmark.
+     */
+    private static final String PASSWORD = "benchmark";
+
+    // Instance variables **********************************************
+
+    /**
+     * The transport: plain TCP or TLS.
+     */
+    @Param({ "plain", "tls" })
+    public String transport;
+
+    /**
+     * The directory of the key stores.
+     */
+    private Path directory;
+
+    /**
+     * The server.
+     */
+    private ServerEngine engine;
+
+    /**
+     * The port of the server.
+     */
+    private int port;
+
+    /**
+     * The TLS context of the clients, or null for plain TCP.
+     */
+    private SSLContext tls;
+
+    /**
+     * The client sending the messages.
+     */
+    private EchoClient client;
+
+    /**
+     * The message sent.
+     */
+    private String message;
+
+    // Instance methods ************************************************
+
+    /**
+     * This method makes the key stores, starts the server and connects the
+     * client.
+     */
+    @Setup
+    public void setUp() throws Exception {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        EngineOptions options = new EngineOptions();
+        if (transport.equals("tls")) {
+            directory = Files.createTempDirectory("tls-bench");
+            String keyStore = directory.resolve("server.p12").toString();
+            String certificate = directory.resolve("server.cer").toString();
+            String trustStore = directory.resolve("trust.p12").toString();
+            keytool("-genkeypair", "-keyalg", "EC", "-alias", "chat", "-dname", "CN=localhost", "-ext",
+                    "san=dns:localhost", "-validity", "2", "-keystore", keyStore, "-storepass", PASSWORD);
+            keytool("-exportcert", "-alias", "chat", "-keystore", keyStore, "-storepass", PASSWORD, "-file",
+                    certificate);
+            keytool("-importcert", "-noprompt", "-alias", "chat", "-file", certificate, "-keystore", trustStore,
+                    "-storepass", PASSWORD);
+            options.setTlsContext(Tls.forServer(keyStore, PASSWORD));
+            tls = Tls.forClient(trustStore, PASSWORD);
+        }
+        engine = new ThreadedServerEngine(port, new EchoingHandler(), options, false);
+        engine.listen();
+
+        client = new EchoClient(port, tls);
+        message = "Hello everyone, how is the benchmark going?";
+    }
+
+    /**
+     * This method disconnects the client, stops the server and deletes the
+     * key stores.
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        client.closeConnection();
+        engine.close();
+        if (directory != null) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * This method connects with a full handshake: the sessions kept by the
+     * client are forgotten first.
+     */
+    @Benchmark
+    public void connectFull() throws IOException {
+        if (tls != null) {
+            SSLSessionContext sessions = tls.getClientSessionContext();
+            for (byte[] id : Collections.list(sessions.getIds())) {
+                SSLSession session = sessions.getSession(id);
+                if (session != null) {
+                    session.invalidate();
+                }
+            }
+        }
+        connect();
+    }
+
+    /**
+     * This method connects again, resuming the session of the previous
+     * connection.
+     */
+    @Benchmark
+    public void connectResumed() throws IOException {
+        connect();
+    }
+
+    /**
+     * This method sends a message to the server and waits for it to come
+     * back.
+     */
+    @Benchmark
+    public Object roundTrip() throws Exception {
+        client.sendToServer(message);
+        return client.replies.take();
+    }
+
+    /**
+     * This method opens a connection of the compact protocol, waits for the
+     * server to answer the greeting and closes it. Reading the answer also
+     * reads the ticket the server sends to resume the session later.
+     */
+    private void connect() throws IOException {
+        Socket socket = tls == null ? new Socket("localhost", port)
+                : tls.getSocketFactory().createSocket("localhost", port);
+        try {
+            socket.setTcpNoDelay(true);
+            socket.getOutputStream().write(WireProtocol.HELLO);
+            WireProtocol.readHello(new DataInputStream(socket.getInputStream()));
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * This method runs the keytool of the running JVM.
+     */
+    private static void keytool(String... args) throws IOException, InterruptedException {
+        String[] command = new String[args.length + 1];
+        command[0] = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+        System.arraycopy(args, 0, command, 1, args.length);
+        Process process = new ProcessBuilder(command).redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool failed: " + String.join(" ", args));
+        }
+    }
+
+    // Inner classes ***************************************************
+
+    /**
+     * A client of the compact protocol handing over the messages it receives.
+     */
+    private static final class EchoClient extends ProtocolClient {
+        final BlockingQueue<Object> replies = new LinkedBlockingQueue<>();
+
+        EchoClient(int port, SSLContext tls) throws IOException {
+            super("localhost", port);
+            setFramed(true);
+            setTls(tls);
+            openConnection();
+        }
+
+        protected void handleMessageFromServer(Object msg) {
+            replies.add(msg);
+        }
+    }
+
+    /**
+     * A server sending every message back to its sender.
+     */
+    private static final class EchoingHandler implements ServerHandler {
+        public void handleMessageFromClient(Object msg, ClientConnection client) {
+            try {
+                client.sendToClient(msg);
+            } catch (IOException e) {
+                // The client is gone
+            }
+        }
+
+        public void clientConnected(ClientConnection client) {
+        }
+
+        public void clientDisconnected(ClientConnection client) {
+        }
+
+        public void clientException(ClientConnection client, Throwable exception) {
+        }
+
+        public void serverStarted() {
+        }
+
+        public void serverStopped() {
+        }
+    }
+}
+//End of TlsBenchmark class
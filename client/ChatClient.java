@@ -4,20 +4,28 @@
 
 package client;
 
-import ocsf.client.*;
 import common.*;
 import java.io.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
 
 /**
  * This class overrides some of the methods defined in the abstract superclass
  * in order to give more functionality to the client.
  *
+ * When the connection is lost, the client connects again by itself, waiting
+ * longer after every failed attempt, for a random part of that time so that
+ * the clients of a server that restarts do not all come back at once. It
+ * then resumes its session with the token the server gave it at login, and
+ * gets its channels and the messages it missed back.
+ *
  * @author Dr Timothy C. Lethbridge
  * @author Dr Robert Lagani&egrave;
  * @author Fran&ccedil;ois B&eacute;langer
  * @version July 2000
  */
-public class ChatClient extends AbstractClient {
+public class ChatClient extends ProtocolClient {
     // Instance variables **********************************************
 
     /**
@@ -26,11 +34,72 @@ public class ChatClient extends AbstractClient {
      */
     ChatIF clientUI;
 
+    /**
+     * The messages waiting for the interface, so the thread reading the
+     * server never waits for it.
+     */
+    private final DisplayQueue displayQueue;
+
     /**
      * The string that stores the loginID of the users
      */
     String loginID;
 
+    /**
+     * The default time before the first attempt to connect again, in
+     * milliseconds.
+     */
+    final public static int DEFAULT_RECONNECT_DELAY = 250;
+
+    /**
+     * The default longest time between two attempts to connect again, in
+     * milliseconds.
+     */
+    final public static int DEFAULT_MAX_RECONNECT_DELAY = 30000;
+
+    /**
+     * The number of failed attempts after which the client stops trying to
+     * connect again.
+     */
+    final public static int MAX_RECONNECT_ATTEMPTS = 12;
+
+    /**
+     * The time before the first attempt to connect again, in milliseconds; 0
+     * does not connect again.
+     */
+    private int reconnectDelay = DEFAULT_RECONNECT_DELAY;
+
+    /**
+     * The longest time between two attempts to connect again, in milliseconds.
+     */
+    private int maxReconnectDelay = DEFAULT_MAX_RECONNECT_DELAY;
+
+    /**
+     * The number of attempts to connect again since the last login.
+     */
+    private volatile int reconnectAttempts;
+
+    /**
+     * Tells if the connection was closed on purpose, which stops connecting
+     * again.
+     */
+    private volatile boolean closedOnPurpose;
+
+    /**
+     * The token of the session given by the server at login, or null.
+     */
+    private volatile String sessionToken;
+
+    /**
+     * Tells if the client asks the server to compress the long messages.
+     */
+    private boolean compression;
+
+    /**
+     * When the last message from the server arrived, from System.nanoTime().
+     */
+    private volatile long lastReceived = System.nanoTime();
+
     // Constructors ****************************************************
 
     /**
@@ -42,28 +111,182 @@ public class ChatClient extends AbstractClient {
      */
 
     public ChatClient(String loginID, String host, int port, ChatIF clientUI) throws IOException {
+        this(loginID, host, port, clientUI, false);
+    }
+
+    /**
+     * Constructs an instance of the chat client, choosing its protocol.
+     *
+     * @param host     The server to connect to.
+     * @param port     The port number to connect on.
+     * @param clientUI The interface type variable.
+     * @param framed   true to speak the compact protocol, which needs a server
+     *                 using the nio, threads or virtual engine.
+     */
+    public ChatClient(String loginID, String host, int port, ChatIF clientUI, boolean framed) throws IOException {
+        this(loginID, host, port, clientUI, framed, false);
+    }
+
+    /**
+     * Constructs an instance of the chat client, choosing its protocol and
+     * whether it asks for compression.
+     *
+     * @param host        The server to connect to.
+     * @param port        The port number to connect on.
+     * @param clientUI    The interface type variable.
+     * @param framed      true to speak the compact protocol, which needs a
+     *                    server using the nio, threads or virtual engine.
+     * @param compression true to ask the server to compress the long messages
+     *                    both ways; only with the compact protocol.
+     */
+    public ChatClient(String loginID, String host, int port, ChatIF clientUI, boolean framed, boolean compression)
+            throws IOException {
+        this(loginID, host, port, clientUI, framed, compression, null);
+    }
+
+    /**
+     * Constructs an instance of the chat client, choosing its protocol,
+     * whether it asks for compression and whether it uses TLS.
+     *
+     * @param host        The server to connect to.
+     * @param port        The port number to connect on.
+     * @param clientUI    The interface type variable.
+     * @param framed      true to speak the compact protocol, which needs a
+     *                    server using the nio, threads or virtual engine.
+     * @param compression true to ask the server to compress the long messages
+     *                    both ways; only with the compact protocol.
+     * @param tls         The TLS context, or null for plain TCP. The server
+     *                    must use the threads or virtual engine with a key
+     *                    store.
+     */
+    public ChatClient(String loginID, String host, int port, ChatIF clientUI, boolean framed, boolean compression,
+            SSLContext tls) throws IOException {
         super(host, port); // Call the superclass constructor
         this.clientUI = clientUI;
+        this.displayQueue = new DisplayQueue(clientUI, DisplayQueue.DEFAULT_CAPACITY);
         this.loginID = loginID;
+        this.compression = compression;
+        setFramed(framed);
+        setTls(tls);
         openConnection();
     }
 
     // Instance methods ************************************************
 
+    /**
+     * @return The loginID of the user.
+     */
+    public String getLoginID() {
+        return loginID;
+    }
+
     /**
      * This method sets the loginID
      */
     public void setLoginID(String loginID) {
+        if (!loginID.equals(this.loginID)) {
+            this.sessionToken = null;
+        }
         this.loginID = loginID;
     }
 
+    /**
+     * This method chooses how the client connects again when the connection
+     * is lost. The time between two attempts doubles after every failure, up
+     * to the longest time, and the client waits a random part of it.
+     *
+     * @param delay    The time before the first attempt, in milliseconds; 0
+     *                 does not connect again.
+     * @param maxDelay The longest time between two attempts, in milliseconds.
+     */
+    public void setReconnect(int delay, int maxDelay) {
+        this.reconnectDelay = Math.max(0, delay);
+        this.maxReconnectDelay = Math.max(this.reconnectDelay, maxDelay);
+    }
+
+    /**
+     * This method chooses whether the client asks, at login, for the long
+     * messages to be compressed both ways. Only the compact protocol can be
+     * compressed.
+     *
+     * @param compression true to ask for compression.
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
     /**
      * This method handles all data that comes in from the server.
      *
      * @param msg The message from the server.
      */
     public void handleMessageFromServer(Object msg) {
-        clientUI.display(msg.toString());
+        lastReceived = System.nanoTime();
+
+        // The token of the session is kept, not shown
+        if (msg instanceof String && ((String) msg).startsWith("#session ")) {
+            sessionToken = ((String) msg).substring("#session ".length());
+            reconnectAttempts = 0;
+            return;
+        }
+
+        // The login was refused: connecting again would be refused too
+        if (msg instanceof String && ((String) msg).startsWith("#refused ")) {
+            closedOnPurpose = true;
+            sessionToken = null;
+            show(((String) msg).substring("#refused ".length()));
+            return;
+        }
+
+        // The server moved, or wants the client to connect elsewhere next time
+        if (msg instanceof String && ((String) msg).startsWith("#redirect ")) {
+            redirect(((String) msg).substring("#redirect ".length()));
+            return;
+        }
+
+        // The server agreed to compress, and to read compressed messages
+        if ("#compress deflate".equals(msg)) {
+            setCompressing(true);
+            return;
+        }
+        show(msg.toString());
+    }
+
+    /**
+     * This method hands a message to the interface, from the thread of the
+     * display queue.
+     *
+     * @param message The message.
+     */
+    private void show(String message) {
+        displayQueue.offer(message);
+    }
+
+    /**
+     * @return The messages waiting for the interface.
+     */
+    public DisplayQueue getDisplayQueue() {
+        return displayQueue;
+    }
+
+    /**
+     * This method handles "#redirect <port> [host]" from the server: the next
+     * connections go to that port, and host if given. The current connection
+     * is left as it is; the server closes it if it is going down.
+     *
+     * @param args The port, and maybe the host.
+     */
+    private void redirect(String args) {
+        String[] words = args.trim().split(" +");
+        try {
+            int port = Integer.parseInt(words[0]);
+            if (words.length > 1) {
+                setHost(words[1]);
+            }
+            setPort(port);
+        } catch (NumberFormatException e) {
+            // Stays with the server it knows
+        }
     }
 
     /**
@@ -77,8 +300,12 @@ public class ChatClient extends AbstractClient {
         try {
             sendToServer(message);
         } catch (IOException e) {
-            clientUI.display("Could not send message to server. Terminating client.");
-            quit();
+            if (reconnectDelay > 0 && !closedOnPurpose) {
+                show("Not connected to the server, the message was not sent.");
+            } else {
+                show("Could not send message to server. Terminating client.");
+                quit();
+            }
         }
     }
 
@@ -90,6 +317,10 @@ public class ChatClient extends AbstractClient {
             closeConnection();
         } catch (IOException e) {
         }
+        try {
+            displayQueue.awaitEmpty(1000);
+        } catch (InterruptedException e) {
+        }
         System.exit(0);
     }
 
@@ -98,7 +329,9 @@ public class ChatClient extends AbstractClient {
      */
     @Override
     public void connectionClosed() {
-        clientUI.display("Connection was closed.");
+        closedOnPurpose = true;
+        sessionToken = null;
+        show("Connection was closed.");
     }
 
     /**
@@ -107,15 +340,64 @@ public class ChatClient extends AbstractClient {
      */
     @Override
     public void connectionException(Exception exception) {
-        clientUI.display("Abnormal termination of connection.");
+        if (reconnectDelay == 0 || closedOnPurpose) {
+            show("Abnormal termination of connection.");
+            return;
+        }
+        show("Abnormal termination of connection. Connecting again...");
+        Thread reader = Thread.currentThread();
+        Thread reconnector = new Thread(() -> reconnect(reader), "Reconnector");
+        reconnector.setDaemon(true);
+        reconnector.start();
     }
 
     /**
-     * This method is used to login the user each time he connects to the server
+     * This method is used to login the user each time he connects to the
+     * server. If the server gave it a session before, the client asks to
+     * resume it, telling how long ago it received its last message. It may
+     * also ask for compression.
      */
     @Override
     public void connectionEstablished() {
-        handleMessageFromClientUI("#login " + this.loginID);
+        closedOnPurpose = false;
+        String token = sessionToken;
+        long age = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastReceived);
+        handleMessageFromClientUI("#login " + this.loginID + (token == null ? "" : " " + token + " " + age)
+                + (compression && isFramed() ? " --compress=deflate" : ""));
+    }
+
+    /**
+     * This method connects again after the connection was lost, until it
+     * works, the user closes the connection or too many attempts failed.
+     *
+     * @param reader The thread that was reading the lost connection.
+     */
+    private void reconnect(Thread reader) {
+        try {
+            reader.join();
+            while (!closedOnPurpose && !isConnected()) {
+                if (reconnectAttempts >= MAX_RECONNECT_ATTEMPTS) {
+                    show("Could not connect to the server again. Use '#login' to try again.");
+                    return;
+                }
+
+                // Waits a random time, up to a ceiling doubling with every attempt
+                long ceiling = Math.min(maxReconnectDelay, (long) reconnectDelay << Math.min(reconnectAttempts, 20));
+                reconnectAttempts++;
+                Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+
+                if (!closedOnPurpose && !isConnected()) {
+                    try {
+                        openConnection();
+                        show("Connected to the server again.");
+                    } catch (IOException e) {
+                        // Tries again after a longer time
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stops trying
+        }
     }
 
 }
@@ -0,0 +1,178 @@
+package client;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import common.*;
+
+/**
+ * This class hands the messages of a client to its user interface from a
+ * thread of its own, so the thread reading the server never waits for the
+ * interface. Messages wait in a bounded queue and are displayed in order, in
+ * batches of whatever arrived meanwhile. When the interface falls so far
+ * behind that the queue is full, the oldest message is forgotten, and the
+ * interface is told how many were skipped.
+ *
+ * No thread is kept for an idle client: a thread of a shared pool delivers
+ * the messages waiting and goes back to the pool once the queue is empty, so
+ * programs running thousands of clients do not need thousands of threads.
+ */
+public class DisplayQueue {
+    // Class variables *************************************************
+
+    /**
+     * The default number of messages waiting for the interface.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * The largest number of messages displayed in one batch.
+     */
+    public static final int MAX_BATCH = 256;
+
+    /**
+     * The threads delivering the messages, shared by every client.
+     */
+    private static final ExecutorService DELIVERERS = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "Display");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Instance variables **********************************************
+
+    /**
+     * The interface the messages are displayed on.
+     */
+    private final ChatIF ui;
+
+    /**
+     * The messages waiting to be displayed.
+     */
+    private final BlockingQueue<String> waiting;
+
+    /**
+     * Tells if a thread is delivering the messages, or about to.
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /**
+     * The number of messages forgotten since the interface was last told.
+     */
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    /**
+     * The number of messages forgotten in total.
+     */
+    private final LongAdder dropped = new LongAdder();
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs a queue for an interface.
+     *
+     * @param ui       The interface the messages are displayed on.
+     * @param capacity The number of messages that can wait.
+     */
+    public DisplayQueue(ChatIF ui, int capacity) {
+        this.ui = ui;
+        this.waiting = new ArrayBlockingQueue<>(Math.max(1, capacity));
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * This method queues a message for the interface. It never waits.
+     *
+     * @param message The message.
+     */
+    public void offer(String message) {
+        while (!waiting.offer(message)) {
+            if (waiting.poll() != null) {
+                skipped.incrementAndGet();
+                dropped.increment();
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * This method waits until the messages queued so far are displayed, for
+     * instance before the program exits.
+     *
+     * @param millis The longest time to wait, in milliseconds.
+     * @return true if they were all displayed.
+     * @throws InterruptedException If the thread was interrupted.
+     */
+    public boolean awaitEmpty(long millis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        synchronized (this) {
+            while (scheduled.get() || !waiting.isEmpty()) {
+                long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (left <= 0) {
+                    return false;
+                }
+                wait(left);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of messages waiting.
+     */
+    public int size() {
+        return waiting.size();
+    }
+
+    /**
+     * @return The number of messages forgotten because the interface was too
+     *         slow.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * This method has a thread deliver the messages, unless one already is.
+     */
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            DELIVERERS.execute(this::deliver);
+        }
+    }
+
+    /**
+     * This method displays the messages waiting, a batch at a time, until
+     * there are none.
+     */
+    private void deliver() {
+        List<String> batch = new ArrayList<>();
+        do {
+            while (true) {
+                int count = skipped.getAndSet(0);
+                if (count > 0) {
+                    batch.add(count + " messages were skipped because the display is too slow.");
+                }
+                waiting.drainTo(batch, MAX_BATCH);
+                if (batch.isEmpty()) {
+                    break;
+                }
+                try {
+                    ui.displayAll(batch);
+                } catch (RuntimeException e) {
+                    // A failing interface must not stop the next messages
+                }
+                batch.clear();
+            }
+            scheduled.set(false);
+            synchronized (this) {
+                notifyAll();
+            }
+
+            // A message may have arrived after the queue was seen empty
+        } while (!waiting.isEmpty() && scheduled.compareAndSet(false, true));
+    }
+}
+//End of DisplayQueue class
@@ -0,0 +1,491 @@
+package client;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.net.ssl.*;
+
+import common.*;
+
+/**
+ * This class replaces ocsf's AbstractClient for ChatClient, with the same
+ * methods and hooks. It speaks either the object stream of ocsf, understood by
+ * every server, or the compact protocol of common.WireProtocol, which only the
+ * nio, threads and virtual engines of the server understand.
+ *
+ * A client sending many messages can batch them: a message then waits a few
+ * milliseconds for the next ones, and they are sent together in a
+ * MessageBatch, with one write instead of one per message.
+ */
+public abstract class ProtocolClient implements Runnable {
+    // Class variables *************************************************
+
+    /**
+     * The thread sending the batches of every client when their time is up.
+     */
+    private static final ScheduledExecutorService BATCH_FLUSHER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "Batch flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Instance variables **********************************************
+
+    /**
+     * The socket connected to the server, or null if not connected.
+     */
+    private volatile Socket clientSocket;
+
+    /**
+     * The stream used to read from the server with the object stream.
+     */
+    private volatile ObjectInputStream input;
+
+    /**
+     * The stream used to write to the server with the object stream.
+     */
+    private volatile ObjectOutputStream output;
+
+    /**
+     * The stream used to read from the server with the compact protocol.
+     */
+    private volatile DataInputStream framedInput;
+
+    /**
+     * The stream used to write to the server with the compact protocol.
+     */
+    private volatile OutputStream framedOutput;
+
+    /**
+     * The lock held while writing to the server.
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * The thread reading the messages of the server.
+     */
+    private volatile Thread clientReader;
+
+    /**
+     * Tells if the connection is being closed on purpose.
+     */
+    private volatile boolean readyToStop = false;
+
+    /**
+     * The server to connect to.
+     */
+    private String host;
+
+    /**
+     * The port of the server.
+     */
+    private int port;
+
+    /**
+     * Tells if the compact protocol is used.
+     */
+    private boolean framed;
+
+    /**
+     * Tells if the long messages sent are compressed. Only once the server
+     * agreed, for the current connection.
+     */
+    private volatile boolean compressing;
+
+    /**
+     * The TLS context of the connections, or null for plain TCP. The same
+     * context resumes the TLS session when connecting again.
+     */
+    private SSLContext tls;
+
+    /**
+     * How long a message waits for the next ones, in milliseconds; 0 sends
+     * every message right away.
+     */
+    private int batchDelay;
+
+    /**
+     * The size of the messages waiting at which they are sent without
+     * waiting longer.
+     */
+    private int batchSize;
+
+    /**
+     * The messages waiting to be sent together. Only used with the write lock
+     * held.
+     */
+    private final List<Object> batch = new ArrayList<>();
+
+    /**
+     * The size of the messages waiting, counted in characters for text.
+     */
+    private int batchedSize;
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs a client speaking the object stream.
+     *
+     * @param host The server to connect to.
+     * @param port The port number to connect on.
+     */
+    public ProtocolClient(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * This method chooses the protocol used by the next connections.
+     *
+     * @param framed true for the compact protocol, false for the object stream.
+     */
+    public void setFramed(boolean framed) {
+        this.framed = framed;
+    }
+
+    /**
+     * @return true if the compact protocol is used.
+     */
+    public boolean isFramed() {
+        return framed;
+    }
+
+    /**
+     * This method chooses whether the next connections use TLS. The server
+     * must accept TLS connections, and its certificate must be trusted by the
+     * context and name the host connected to.
+     *
+     * @param tls The TLS context, or null for plain TCP.
+     */
+    public void setTls(SSLContext tls) {
+        this.tls = tls;
+    }
+
+    /**
+     * @return The TLS context of the connections, or null for plain TCP.
+     */
+    public SSLContext getTls() {
+        return tls;
+    }
+
+    /**
+     * This method compresses the long messages sent on the current connection
+     * of the compact protocol. The server must have agreed to read them; the
+     * next connection starts without.
+     *
+     * @param compressing true to compress the long messages.
+     */
+    public void setCompressing(boolean compressing) {
+        this.compressing = compressing;
+    }
+
+    /**
+     * This method chooses whether messages are batched. The messages waiting
+     * when batching is turned off are sent at once.
+     *
+     * @param delay The time a message waits for the next ones, in
+     *              milliseconds; 0 sends every message right away.
+     * @param size  The size of the messages waiting at which they are sent
+     *              without waiting longer, counted in characters for text.
+     * @throws IOException If the messages waiting could not be sent.
+     */
+    public void setBatching(int delay, int size) throws IOException {
+        synchronized (writeLock) {
+            this.batchDelay = Math.max(0, delay);
+            this.batchSize = Math.max(1, size);
+            if (batchDelay == 0) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * @return The time a message waits for the next ones, in milliseconds; 0
+     *         if messages are not batched.
+     */
+    public int getBatchDelay() {
+        return batchDelay;
+    }
+
+    /**
+     * This method opens the connection with the server and starts the thread
+     * reading its messages.
+     *
+     * @throws IOException If the server could not be reached, or if it does not
+     *                     speak the chosen protocol.
+     */
+    final public void openConnection() throws IOException {
+        if (isConnected()) {
+            return;
+        }
+
+        compressing = false;
+        try {
+            if (tls == null) {
+                clientSocket = new Socket(host, port);
+            } else {
+                // Handshake now, so a refused certificate fails the connection
+                SSLSocket socket = (SSLSocket) tls.getSocketFactory().createSocket(host, port);
+                clientSocket = socket;
+                SSLParameters parameters = socket.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                socket.setSSLParameters(parameters);
+                socket.setTcpNoDelay(true);
+                socket.startHandshake();
+            }
+            clientSocket.setTcpNoDelay(true);
+            if (framed) {
+                framedOutput = clientSocket.getOutputStream();
+                framedOutput.write(WireProtocol.HELLO);
+                framedInput = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+                WireProtocol.readHello(framedInput);
+            } else {
+                output = new ObjectOutputStream(clientSocket.getOutputStream());
+                input = new ObjectInputStream(clientSocket.getInputStream());
+            }
+        } catch (IOException ex) {
+            closeAll();
+            throw ex;
+        }
+
+        clientReader = newReaderThread(this);
+        readyToStop = false;
+        clientReader.start();
+    }
+
+    /**
+     * This method sends a message to the server.
+     *
+     * @param msg The message to be sent.
+     * @throws IOException If the message could not be sent.
+     */
+    public void sendToServer(Object msg) throws IOException {
+        synchronized (writeLock) {
+            if (batchDelay == 0) {
+                write(msg);
+                return;
+            }
+
+            batch.add(msg);
+            batchedSize += msg instanceof String ? ((String) msg).length() : 64;
+            if (batchedSize >= batchSize) {
+                flush();
+            } else if (batch.size() == 1) {
+                BATCH_FLUSHER.schedule(this::flushBatch, batchDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * This method sends the messages waiting in the batch right away.
+     *
+     * @throws IOException If the messages could not be sent.
+     */
+    public void flush() throws IOException {
+        synchronized (writeLock) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            Object msg = batch.size() == 1 ? batch.get(0) : new MessageBatch(batch);
+            batch.clear();
+            batchedSize = 0;
+            write(msg);
+        }
+    }
+
+    /**
+     * This method sends the messages waiting in the batch once their time is
+     * up. If they cannot be sent, the connection is closed and the reader
+     * reports it.
+     */
+    private void flushBatch() {
+        try {
+            flush();
+        } catch (IOException e) {
+            closeAll();
+        }
+    }
+
+    /**
+     * This method writes a message, or a batch, to the server. Called with the
+     * write lock held.
+     */
+    private void write(Object msg) throws IOException {
+        OutputStream framedOutput = this.framedOutput;
+        ObjectOutputStream output = this.output;
+        if (framedOutput != null) {
+            ByteBuffer frame = WireProtocol.encode(msg);
+            if (compressing) {
+                frame = WireProtocol.compress(frame);
+            }
+            framedOutput.write(frame.array(), 0, frame.limit());
+        } else if (output != null) {
+            output.writeObject(msg);
+            output.reset();
+        } else {
+            throw new SocketException("socket does not exist");
+        }
+    }
+
+    /**
+     * This method closes the connection with the server.
+     *
+     * @throws IOException If the connection could not be closed properly.
+     */
+    final public void closeConnection() throws IOException {
+        readyToStop = true;
+        try {
+            flush();
+        } catch (IOException e) {
+            // The messages waiting are lost with the connection
+        }
+        try {
+            closeAll();
+        } finally {
+            connectionClosed();
+        }
+    }
+
+    /**
+     * @return true if the client is connected to the server.
+     */
+    final public boolean isConnected() {
+        Thread reader = clientReader;
+        return reader != null && reader.isAlive();
+    }
+
+    /**
+     * @return The port of the server.
+     */
+    final public int getPort() {
+        return port;
+    }
+
+    /**
+     * Sets the port of the server for the next connection.
+     *
+     * @param port The new port number.
+     */
+    final public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * @return The server to connect to.
+     */
+    final public String getHost() {
+        return host;
+    }
+
+    /**
+     * Sets the server to connect to for the next connection.
+     *
+     * @param host The new host name.
+     */
+    final public void setHost(String host) {
+        this.host = host;
+    }
+
+    /**
+     * @return The address of the server, or null if not connected.
+     */
+    final public InetAddress getInetAddress() {
+        Socket socket = clientSocket;
+        return socket == null ? null : socket.getInetAddress();
+    }
+
+    /**
+     * This method reads the messages of the server until the connection is
+     * closed.
+     */
+    final public void run() {
+        DataInputStream framedInput = this.framedInput;
+        ObjectInputStream input = this.input;
+        connectionEstablished();
+
+        try {
+            while (!readyToStop) {
+                Object msg = framedInput != null ? WireProtocol.read(framedInput) : input.readObject();
+
+                // The server checks that the client is still there
+                if ("#ping".equals(msg)) {
+                    sendToServer("#pong");
+                } else {
+                    handleMessageFromServer(msg);
+                }
+            }
+        } catch (Exception exception) {
+            if (!readyToStop) {
+                closeAll();
+                connectionException(exception);
+            }
+        } finally {
+            clientReader = null;
+        }
+    }
+
+    /**
+     * This method closes the socket and forgets the streams.
+     */
+    private void closeAll() {
+        Socket socket = clientSocket;
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            // The socket is unusable anyway
+        } finally {
+            clientSocket = null;
+            input = null;
+            output = null;
+            framedInput = null;
+            framedOutput = null;
+        }
+    }
+
+    // Hook methods ****************************************************
+
+    /**
+     * Called to create the thread reading the messages of the server. It may
+     * be called from the constructor of a subclass.
+     *
+     * @param reader What the thread runs.
+     * @return The thread, not started.
+     */
+    protected Thread newReaderThread(Runnable reader) {
+        return new Thread(reader);
+    }
+
+    /**
+     * Called after the connection has been closed.
+     */
+    protected void connectionClosed() {
+    }
+
+    /**
+     * Called when the connection with the server is lost.
+     *
+     * @param exception The exception raised.
+     */
+    protected void connectionException(Exception exception) {
+    }
+
+    /**
+     * Called after a connection has been established.
+     */
+    protected void connectionEstablished() {
+    }
+
+    /**
+     * Called for every message received from the server.
+     *
+     * @param msg The message received.
+     */
+    protected abstract void handleMessageFromServer(Object msg);
+}
+//End of ProtocolClient class
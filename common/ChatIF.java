@@ -4,6 +4,8 @@
 
 package common;
 
+import java.util.List;
+
 /**
  * This interface implements the abstract method used to display
  * objects onto the client or server UIs.
@@ -19,4 +21,17 @@ public interface ChatIF
    * a UI.
    */
   public abstract void display(String message);
+
+  /**
+   * Method used to display several messages that arrived together,
+   * in order. It displays them one by one unless overriden, for
+   * instance to render them all at once.
+   */
+  public default void displayAll(List<String> messages)
+  {
+    for (String message : messages)
+    {
+      display(message);
+    }
+  }
 }
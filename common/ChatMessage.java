@@ -0,0 +1,67 @@
+package common;
+
+import java.io.*;
+
+/**
+ * This class is a chat line written by a user. The compact protocol sends the
+ * login ID and the text separately; everywhere else the message is shown as
+ * "> loginID: text".
+ */
+public class ChatMessage implements Serializable {
+    // Class variables *************************************************
+
+    /**
+     * The version of the serialized form, sent by the object stream protocol.
+     */
+    private static final long serialVersionUID = 1L;
+
+    // Instance variables **********************************************
+
+    /**
+     * The loginID of the user who wrote the message.
+     */
+    private final String loginID;
+
+    /**
+     * The text of the message.
+     */
+    private final String text;
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs a chat message.
+     *
+     * @param loginID The loginID of the user who wrote the message.
+     * @param text    The text of the message.
+     */
+    public ChatMessage(String loginID, String text) {
+        this.loginID = String.valueOf(loginID);
+        this.text = text;
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * @return The loginID of the user who wrote the message.
+     */
+    public String getLoginID() {
+        return loginID;
+    }
+
+    /**
+     * @return The text of the message.
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * This method returns the message the way it is displayed.
+     */
+    @Override
+    public String toString() {
+        return "> " + loginID + ": " + text;
+    }
+}
+//End of ChatMessage class
@@ -0,0 +1,91 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * This class reads the command line of the server and the clients. Plain arguments keep their
+ * position (the port comes first) and options are written "--name=value", or
+ * "--name" for a switch.
+ */
+public class CommandLine {
+    // Instance variables **********************************************
+
+    /**
+     * The plain arguments, in order.
+     */
+    private final ArrayList<String> arguments = new ArrayList<>();
+
+    /**
+     * The options, by name.
+     */
+    private final HashMap<String, String> options = new HashMap<>();
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs the configuration from the command line.
+     *
+     * @param args The arguments of the command line.
+     */
+    public CommandLine(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int equals = arg.indexOf('=');
+                if (equals < 0) {
+                    options.put(arg.substring(2), "true");
+                } else {
+                    options.put(arg.substring(2, equals), arg.substring(equals + 1));
+                }
+            } else {
+                arguments.add(arg);
+            }
+        }
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * @param index The position of the argument.
+     * @return The plain argument at that position, or null if there is none.
+     */
+    public String getArgument(int index) {
+        return index < arguments.size() ? arguments.get(index) : null;
+    }
+
+    /**
+     * @param name         The name of the option.
+     * @param defaultValue The value if the option was not given.
+     * @return The value of the option.
+     */
+    public String get(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    /**
+     * @param name         The name of the option.
+     * @param defaultValue The value if the option was not given.
+     * @return The value of the option as a number.
+     * @throws IllegalArgumentException If the value is not a number.
+     */
+    public int getInt(String name, int defaultValue) {
+        String value = options.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("The option '--" + name + "' should be a number.");
+        }
+    }
+
+    /**
+     * @param name The name of the option.
+     * @return true if the switch was given.
+     */
+    public boolean getBoolean(String name) {
+        return Boolean.parseBoolean(options.get(name));
+    }
+}
+//End of CommandLine class
@@ -0,0 +1,219 @@
+package common;
+
+import java.io.*;
+
+/**
+ * This class finds the handler of a command such as "#join room" from its
+ * first word. The first word is compared in place with the registered names,
+ * so no regex runs and nothing is allocated to recognize a command, and a line
+ * that does not start with '#' is recognized as plain text with a single
+ * character test. Commands are added by registering them rather than by
+ * growing a switch.
+ *
+ * The table is read without locking: registering a command replaces the
+ * array of entries, which dispatching threads read through a volatile field.
+ *
+ * @param <C> What the handlers act on, for instance the client who sent the
+ *            command.
+ */
+public class CommandTable<C> {
+    // Class variables *************************************************
+
+    /**
+     * The character every command starts with.
+     */
+    public static final char PREFIX = '#';
+
+    /**
+     * What a command does.
+     *
+     * @param <C> What the command acts on.
+     */
+    public interface Command<C> {
+
+        /**
+         * This method runs the command.
+         *
+         * @param args    What follows the first word of the line, without
+         *                leading spaces; empty if nothing does.
+         * @param line    The whole line.
+         * @param context What the command acts on.
+         * @throws IOException If the command failed to send or receive.
+         */
+        void execute(String args, String line, C context) throws IOException;
+    }
+
+    /**
+     * A name and its command.
+     */
+    private static final class Entry<C> {
+        final String name;
+        final Command<C> command;
+
+        Entry(String name, Command<C> command) {
+            this.name = name;
+            this.command = command;
+        }
+    }
+
+    // Instance variables **********************************************
+
+    /**
+     * Every registered command. Replaced, never modified, when one is added.
+     */
+    private volatile Entry<C>[] entries = newEntries(0);
+
+    /**
+     * Runs the commands that are not registered, or null to ignore them.
+     */
+    private volatile Command<C> fallback;
+
+    // Instance methods ************************************************
+
+    /**
+     * This method registers a command, replacing any command with the same
+     * name.
+     *
+     * @param name    The first word of the command, including the '#'.
+     * @param command What the command does.
+     * @return This table, so registrations can be chained.
+     */
+    public synchronized CommandTable<C> register(String name, Command<C> command) {
+        Entry<C>[] current = entries;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].name.equals(name)) {
+                Entry<C>[] replaced = current.clone();
+                replaced[i] = new Entry<>(name, command);
+                entries = replaced;
+                return this;
+            }
+        }
+        Entry<C>[] added = newEntries(current.length + 1);
+        System.arraycopy(current, 0, added, 0, current.length);
+        added[current.length] = new Entry<>(name, command);
+        entries = added;
+        return this;
+    }
+
+    /**
+     * This method sets what happens with a command that is not registered.
+     *
+     * @param fallback What to do, or null to ignore such commands.
+     * @return This table.
+     */
+    public CommandTable<C> setFallback(Command<C> fallback) {
+        this.fallback = fallback;
+        return this;
+    }
+
+    /**
+     * This method tells if a command is registered.
+     *
+     * @param name The first word of the command, including the '#'.
+     * @return true if a command has that name.
+     */
+    public boolean contains(String name) {
+        return find(name, name.length()) != null;
+    }
+
+    /**
+     * This method runs the command on a line, if the line is one.
+     *
+     * @param line    The line typed or received.
+     * @param context What the command acts on.
+     * @return false if the line is plain text, which the caller handles.
+     * @throws IOException If the command failed to send or receive.
+     */
+    public boolean dispatch(String line, C context) throws IOException {
+        if (!isCommand(line)) {
+            return false;
+        }
+
+        int end = line.indexOf(' ');
+        if (end < 0) {
+            end = line.length();
+        }
+        Command<C> command = find(line, end);
+        if (command == null) {
+            command = fallback;
+            if (command == null) {
+                return true;
+            }
+        }
+        command.execute(arguments(line, end), line, context);
+        return true;
+    }
+
+    /**
+     * This method finds the command named by the start of a line.
+     *
+     * @param line The line.
+     * @param end  The length of the first word.
+     * @return The command, or null if none is registered with that name.
+     */
+    private Command<C> find(String line, int end) {
+        for (Entry<C> entry : entries) {
+            if (entry.name.length() == end && line.regionMatches(0, entry.name, 0, end)) {
+                return entry.command;
+            }
+        }
+        return null;
+    }
+
+    // Class methods ***************************************************
+
+    /**
+     * @param line A line typed or received.
+     * @return true if the line is a command rather than plain text.
+     */
+    public static boolean isCommand(String line) {
+        return !line.isEmpty() && line.charAt(0) == PREFIX;
+    }
+
+    /**
+     * This method returns the first word of some arguments, for commands
+     * taking a single one.
+     *
+     * @param args The arguments of a command.
+     * @return The first word, or null if there are no arguments.
+     */
+    public static String firstWord(String args) {
+        if (args.isEmpty()) {
+            return null;
+        }
+        int end = args.indexOf(' ');
+        return end < 0 ? args : args.substring(0, end);
+    }
+
+    /**
+     * This method returns what follows the first word of some arguments.
+     *
+     * @param args The arguments of a command.
+     * @return What follows the first word without leading spaces, empty if
+     *         nothing does.
+     */
+    public static String rest(String args) {
+        int end = args.indexOf(' ');
+        return end < 0 ? "" : arguments(args, end);
+    }
+
+    /**
+     * @return What follows position end in a line, without leading spaces.
+     */
+    private static String arguments(String line, int end) {
+        int start = end;
+        while (start < line.length() && line.charAt(start) == ' ') {
+            start++;
+        }
+        return start == line.length() ? "" : line.substring(start);
+    }
+
+    /**
+     * @return An empty array of entries of the given length.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static <C> Entry<C>[] newEntries(int length) {
+        return (Entry<C>[]) new Entry[length];
+    }
+}
+//End of CommandTable class
@@ -0,0 +1,161 @@
+package common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.*;
+import java.util.zip.*;
+
+/**
+ * This class compresses the frames of the compact protocol with Deflate. Both
+ * sides start from the same preset dictionary, made of words and notices
+ * that chat lines are full of, so even a line of a few hundred bytes shrinks.
+ *
+ * Deflaters and inflaters hold native memory and are slow to create, so they
+ * are kept in pools and reused from one message to the next. The pools are
+ * shared by every thread rather than kept per thread: a server engine may
+ * send from thousands of virtual threads, which would each keep their own.
+ */
+public class Compression {
+    // Class variables *************************************************
+
+    /**
+     * The compression level: the fastest, as most messages are short.
+     */
+    private static final int LEVEL = Deflater.BEST_SPEED;
+
+    /**
+     * The largest number of deflaters, and of inflaters, kept for reuse.
+     */
+    private static final int POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The smallest buffer bytes are decompressed into. It grows as they are,
+     * rather than being allocated at the size the frame claims.
+     */
+    private static final int INFLATE_BUFFER = 1024;
+
+    /**
+     * The preset dictionary. Deflate looks for matches at the end of it
+     * first, so the most frequent strings come last.
+     */
+    private static final byte[] DICTIONARY = ("https://www. .com .org .net http:// "
+            + "because would could should about there their which those these after before again "
+            + "really think know just what when where with from have this that will your you "
+            + "The login ID is already in use. Terminating connection. "
+            + " messages were written in # while you were away: "
+            + "You are now writing in #. You left #. [private to ] [private] "
+            + " has left #. has joined #. has disconnected. has logged on. > [#general] [#")
+            .getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * The deflaters ready to be reused.
+     */
+    private static final Pool<Deflater> DEFLATERS = new Pool<>(() -> new Deflater(LEVEL, true), Deflater::end);
+
+    /**
+     * The inflaters ready to be reused.
+     */
+    private static final Pool<Inflater> INFLATERS = new Pool<>(() -> new Inflater(true), Inflater::end);
+
+    // Class methods ***************************************************
+
+    /**
+     * This method compresses bytes, unless it is not worth it.
+     *
+     * @param bytes  The bytes.
+     * @param offset Where they start.
+     * @param length How many there are.
+     * @return The compressed bytes, or null if they are not smaller.
+     */
+    public static byte[] deflate(byte[] bytes, int offset, int length) {
+        Deflater deflater = DEFLATERS.take();
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(bytes, offset, length);
+            deflater.finish();
+            byte[] compressed = new byte[length];
+            int size = 0;
+            while (!deflater.finished() && size < compressed.length) {
+                size += deflater.deflate(compressed, size, compressed.length - size);
+            }
+            return deflater.finished() && size < length ? Arrays.copyOf(compressed, size) : null;
+        } finally {
+            deflater.reset();
+            DEFLATERS.give(deflater);
+        }
+    }
+
+    /**
+     * This method decompresses bytes compressed by deflate().
+     *
+     * @param bytes  The compressed bytes.
+     * @param offset Where they start.
+     * @param length How many there are.
+     * @param size   The number of bytes once decompressed.
+     * @return The decompressed bytes.
+     * @throws DataFormatException If the bytes are not compressed, or do not
+     *                             give that many bytes.
+     */
+    public static byte[] inflate(byte[] bytes, int offset, int length, int size) throws DataFormatException {
+        Inflater inflater = INFLATERS.take();
+        try {
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(bytes, offset, length);
+            byte[] inflated = new byte[Math.min(size, Math.max(INFLATE_BUFFER, 4 * length))];
+            int done = 0;
+            while (done < size) {
+                if (done == inflated.length) {
+                    inflated = Arrays.copyOf(inflated, (int) Math.min(size, 2L * inflated.length));
+                }
+                int count = inflater.inflate(inflated, done, inflated.length - done);
+                if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                done += count;
+            }
+            if (done != size || inflater.getRemaining() > 0) {
+                throw new DataFormatException("The compressed frame does not give " + size + " bytes");
+            }
+            return inflated;
+        } finally {
+            inflater.reset();
+            INFLATERS.give(inflater);
+        }
+    }
+
+    /**
+     * Objects kept for reuse, up to POOL_SIZE of them.
+     */
+    private static final class Pool<T> {
+        final Queue<T> ready = new ConcurrentLinkedQueue<>();
+        final AtomicInteger size = new AtomicInteger();
+        final Supplier<T> factory;
+        final Consumer<T> disposer;
+
+        Pool(Supplier<T> factory, Consumer<T> disposer) {
+            this.factory = factory;
+            this.disposer = disposer;
+        }
+
+        T take() {
+            T item = ready.poll();
+            if (item == null) {
+                return factory.get();
+            }
+            size.decrementAndGet();
+            return item;
+        }
+
+        void give(T item) {
+            if (size.incrementAndGet() <= POOL_SIZE) {
+                ready.offer(item);
+            } else {
+                size.decrementAndGet();
+                disposer.accept(item);
+            }
+        }
+    }
+}
+//End of Compression class
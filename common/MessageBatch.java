@@ -0,0 +1,60 @@
+package common;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * This class is several messages sent to the server at once by a client that
+ * batches what it sends. The server handles them one by one, in order, as if
+ * they had been sent separately. The compact protocol sends a batch as a
+ * single BATCH frame holding the frame of every message.
+ */
+public class MessageBatch implements Serializable {
+    // Class variables *************************************************
+
+    /**
+     * The version of the serialized form, sent by the object stream protocol.
+     */
+    private static final long serialVersionUID = 1L;
+
+    // Instance variables **********************************************
+
+    /**
+     * The messages, in the order they were sent.
+     */
+    private final ArrayList<Object> messages;
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs a batch.
+     *
+     * @param messages The messages, in the order they were sent. None of them
+     *                 may be a batch.
+     */
+    public MessageBatch(List<Object> messages) {
+        this.messages = new ArrayList<>(messages);
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * @return The messages, in the order they were sent.
+     */
+    public List<Object> getMessages() {
+        return Collections.unmodifiableList(messages);
+    }
+
+    /**
+     * This method returns the messages of the batch, one per line.
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (Object msg : messages) {
+            text.append(text.length() == 0 ? "" : "\n").append(msg);
+        }
+        return text.toString();
+    }
+}
+//End of MessageBatch class
@@ -0,0 +1,96 @@
+package common;
+
+import java.io.*;
+import java.security.*;
+import java.security.cert.CertificateException;
+import javax.net.ssl.*;
+
+/**
+ * This class prepares the TLS contexts of the server and of the clients,
+ * from key stores in local files (PKCS12 or JKS). A self-signed certificate
+ * will do for tests, for instance:
+ * "keytool -genkeypair -keyalg EC -alias chat -dname CN=localhost
+ * -ext san=dns:localhost -validity 365 -keystore server.p12 -storepass secret",
+ * then "keytool -exportcert -alias chat -keystore server.p12 -storepass secret
+ * -file chat.cer" and "keytool -importcert -noprompt -alias chat -file chat.cer
+ * -keystore trust.p12 -storepass secret" for the clients.
+ *
+ * A client connecting again to the same server with the same context resumes
+ * its TLS session (with a session ticket in TLS 1.3) instead of going through
+ * a full handshake, which keeps the reconnections after a server restart
+ * cheap. Sessions are kept for SESSION_TIMEOUT seconds on both sides.
+ */
+public class Tls {
+    // Class variables *************************************************
+
+    /**
+     * The time a TLS session can be resumed, in seconds.
+     */
+    public static final int SESSION_TIMEOUT = 24 * 60 * 60;
+
+    /**
+     * The number of sessions the server keeps for resumption.
+     */
+    public static final int SESSION_CACHE_SIZE = 20000;
+
+    // Class methods ***************************************************
+
+    /**
+     * This method prepares the context of a server.
+     *
+     * @param keyStore The file holding the key and certificate of the server.
+     * @param password The password of the file and of the key.
+     * @return The context.
+     * @throws IOException If the file cannot be read or the key cannot be
+     *                     used.
+     */
+    public static SSLContext forServer(String keyStore, String password) throws IOException {
+        try {
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(load(keyStore, password), password == null ? new char[0] : password.toCharArray());
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keys.getKeyManagers(), null, null);
+            context.getServerSessionContext().setSessionTimeout(SESSION_TIMEOUT);
+            context.getServerSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not use the key store '" + keyStore + "': " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * This method prepares the context of a client. Connections made with the
+     * same context resume their sessions.
+     *
+     * @param trustStore The file holding the certificates trusted, or null to
+     *                   trust the usual authorities of the JVM.
+     * @param password   The password of the file.
+     * @return The context.
+     * @throws IOException If the file cannot be read.
+     */
+    public static SSLContext forClient(String trustStore, String password) throws IOException {
+        try {
+            TrustManager[] trusted = null;
+            if (trustStore != null) {
+                TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                trust.init(load(trustStore, password));
+                trusted = trust.getTrustManagers();
+            }
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trusted, null);
+            context.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not use the trust store '" + trustStore + "': " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * This method reads a key store, whatever its type.
+     */
+    private static KeyStore load(String file, String password)
+            throws IOException, KeyStoreException, NoSuchAlgorithmException, CertificateException {
+        return KeyStore.getInstance(new File(file), password == null ? null : password.toCharArray());
+    }
+}
+//End of Tls class
@@ -0,0 +1,311 @@
+package common;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.DataFormatException;
+
+/**
+ * This class encodes the compact protocol spoken between ChatClient and the
+ * server engines, as an alternative to Java serialization.
+ *
+ * A client asks for it by sending HELLO instead of the header of an object
+ * stream, and the server answers HELLO back. After that, every message is a
+ * frame: the length of the rest of the frame (4 bytes), the type of the
+ * message (1 byte), the length of the login ID (2 bytes), the login ID and the
+ * payload, both in UTF-8. A BATCH frame has no login ID; its payload is the
+ * frames of several messages, one after the other. A DEFLATED frame has no
+ * login ID either; its payload is the length of another frame once
+ * decompressed (4 bytes), then that frame, without its length, compressed.
+ */
+public class WireProtocol {
+    // Class variables *************************************************
+
+    /**
+     * The bytes exchanged to agree on the compact protocol: "SCHT" and the
+     * version of the protocol.
+     */
+    public static final byte[] HELLO = { 'S', 'C', 'H', 'T', 1 };
+
+    /**
+     * The largest frame accepted.
+     */
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * A plain text message or command, without login ID.
+     */
+    public static final byte TEXT = 1;
+
+    /**
+     * A ChatMessage: the login ID of the sender and the text.
+     */
+    public static final byte CHAT = 2;
+
+    /**
+     * Any other object, serialized.
+     */
+    public static final byte OBJECT = 3;
+
+    /**
+     * A MessageBatch: the frames of its messages.
+     */
+    public static final byte BATCH = 4;
+
+    /**
+     * Another frame, compressed with Deflate.
+     */
+    public static final byte DEFLATED = 5;
+
+    /**
+     * The smallest frame compressed: shorter ones gain too little.
+     */
+    public static final int COMPRESSION_THRESHOLD = 256;
+
+    /**
+     * The size of the length and type of a frame, and of the login ID length.
+     */
+    private static final int HEADER_SIZE = 4 + 1 + 2;
+
+    // Class methods ***************************************************
+
+    /**
+     * This method encodes a message into a frame.
+     *
+     * @param msg The message to encode.
+     * @return The frame, ready to be written.
+     * @throws IOException If the message is an object that cannot be
+     *                     serialized.
+     */
+    public static ByteBuffer encode(Object msg) throws IOException {
+        byte type;
+        String loginID = "";
+        byte[] payload;
+
+        if (msg instanceof MessageBatch) {
+            type = BATCH;
+            ByteArrayOutputStream frames = new ByteArrayOutputStream();
+            for (Object message : ((MessageBatch) msg).getMessages()) {
+                if (message instanceof MessageBatch) {
+                    throw new IOException("A batch cannot hold another batch");
+                }
+                ByteBuffer frame = encode(message);
+                frames.write(frame.array(), 0, frame.limit());
+            }
+            payload = frames.toByteArray();
+        } else if (msg instanceof ChatMessage) {
+            type = CHAT;
+            loginID = ((ChatMessage) msg).getLoginID();
+            payload = ((ChatMessage) msg).getText().getBytes(StandardCharsets.UTF_8);
+        } else if (msg instanceof String) {
+            type = TEXT;
+            payload = ((String) msg).getBytes(StandardCharsets.UTF_8);
+        } else {
+            type = OBJECT;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+                output.writeObject(msg);
+            }
+            payload = bytes.toByteArray();
+        }
+
+        byte[] login = loginID.getBytes(StandardCharsets.UTF_8);
+        if (login.length > 0xFFFF) {
+            throw new IOException("Login ID too long");
+        }
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + login.length + payload.length);
+        frame.putInt(frame.capacity() - 4).put(type).putShort((short) login.length).put(login).put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * This method compresses a frame, if it is long enough and compressing
+     * makes it shorter.
+     *
+     * @param frame A frame returned by encode().
+     * @return The DEFLATED frame, or the frame itself.
+     */
+    public static ByteBuffer compress(ByteBuffer frame) {
+        if (frame.limit() < COMPRESSION_THRESHOLD) {
+            return frame;
+        }
+        int length = frame.limit() - 4;
+        byte[] deflated = Compression.deflate(frame.array(), 4, length);
+        if (deflated == null || deflated.length + 4 >= length) {
+            return frame;
+        }
+        ByteBuffer compressed = ByteBuffer.allocate(HEADER_SIZE + 4 + deflated.length);
+        compressed.putInt(compressed.capacity() - 4).put(DEFLATED).putShort((short) 0).putInt(length).put(deflated);
+        compressed.flip();
+        return compressed;
+    }
+
+    /**
+     * This method reads the next message from the bytes received so far,
+     * compressed or not. If the frame is not complete, nothing is consumed
+     * and null is returned.
+     *
+     * @param in The bytes received, ready to be read.
+     * @return The message, or null if more bytes are needed.
+     * @throws IOException If the frame is invalid.
+     */
+    public static Object decode(ByteBuffer in) throws IOException {
+        return decode(in, true);
+    }
+
+    /**
+     * This method reads the next message from the bytes received so far. If the
+     * frame is not complete, nothing is consumed and null is returned.
+     *
+     * @param in         The bytes received, ready to be read.
+     * @param compressed true if the other side agreed to compress, so
+     *                   DEFLATED frames are accepted.
+     * @return The message, or null if more bytes are needed.
+     * @throws IOException If the frame is invalid.
+     */
+    public static Object decode(ByteBuffer in, boolean compressed) throws IOException {
+        if (in.remaining() < 4) {
+            return null;
+        }
+        int length = checkLength(in.getInt(in.position()));
+        if (in.remaining() < 4 + length) {
+            return null;
+        }
+
+        byte[] body = new byte[length];
+        in.position(in.position() + 4);
+        in.get(body);
+        return decodeBody(body, compressed);
+    }
+
+    /**
+     * This method reads the next message from a stream, compressed or not,
+     * waiting for it.
+     *
+     * @param in The stream to read from.
+     * @return The message.
+     * @throws IOException If the stream is closed or the frame is invalid.
+     */
+    public static Object read(DataInputStream in) throws IOException {
+        return read(in, true);
+    }
+
+    /**
+     * This method reads the next message from a stream, waiting for it.
+     *
+     * @param in         The stream to read from.
+     * @param compressed true if the other side agreed to compress, so
+     *                   DEFLATED frames are accepted.
+     * @return The message.
+     * @throws IOException If the stream is closed or the frame is invalid.
+     */
+    public static Object read(DataInputStream in, boolean compressed) throws IOException {
+        byte[] body = new byte[checkLength(in.readInt())];
+        in.readFully(body);
+        return decodeBody(body, compressed);
+    }
+
+    /**
+     * This method reads the HELLO sent by the other side.
+     *
+     * @param in The stream to read from.
+     * @throws IOException If the other side does not speak the protocol.
+     */
+    public static void readHello(DataInputStream in) throws IOException {
+        byte[] hello = new byte[HELLO.length];
+        in.readFully(hello);
+        checkHello(ByteBuffer.wrap(hello));
+    }
+
+    /**
+     * This method checks the HELLO sent by the other side.
+     *
+     * @param in The bytes received, starting with the HELLO.
+     * @throws IOException If the other side does not speak the protocol.
+     */
+    public static void checkHello(ByteBuffer in) throws IOException {
+        for (byte b : HELLO) {
+            if (in.get() != b) {
+                throw new StreamCorruptedException("Unsupported protocol");
+            }
+        }
+    }
+
+    /**
+     * This method checks the length announced by a frame.
+     */
+    private static int checkLength(int length) throws IOException {
+        if (length < HEADER_SIZE - 4 || length > MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("Invalid frame length: " + length);
+        }
+        return length;
+    }
+
+    /**
+     * This method decodes the content of a frame, after its length.
+     */
+    private static Object decodeBody(byte[] body, boolean compressed) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(body);
+        byte type = in.get();
+        int loginLength = in.getShort() & 0xFFFF;
+        if (loginLength > in.remaining()) {
+            throw new StreamCorruptedException("Invalid login ID length: " + loginLength);
+        }
+        String loginID = new String(body, in.position(), loginLength, StandardCharsets.UTF_8);
+        int payload = in.position() + loginLength;
+
+        switch (type) {
+
+        case TEXT:
+            return new String(body, payload, body.length - payload, StandardCharsets.UTF_8);
+
+        case CHAT:
+            return new ChatMessage(loginID, new String(body, payload, body.length - payload, StandardCharsets.UTF_8));
+
+        case BATCH:
+            ByteBuffer frames = ByteBuffer.wrap(body, payload, body.length - payload);
+            List<Object> messages = new ArrayList<>();
+            while (frames.hasRemaining()) {
+                Object message = decode(frames, compressed);
+                if (message == null || message instanceof MessageBatch) {
+                    throw new StreamCorruptedException("Invalid batch");
+                }
+                messages.add(message);
+            }
+            return new MessageBatch(messages);
+
+        case DEFLATED:
+            if (!compressed) {
+                throw new StreamCorruptedException("Compression was not agreed on");
+            }
+            if (body.length - payload < 4) {
+                throw new StreamCorruptedException("Invalid compressed frame");
+            }
+            int size = checkLength(ByteBuffer.wrap(body, payload, 4).getInt());
+            byte[] inflated;
+            try {
+                inflated = Compression.inflate(body, payload + 4, body.length - payload - 4, size);
+            } catch (DataFormatException e) {
+                throw new StreamCorruptedException("Invalid compressed frame: " + e.getMessage());
+            }
+            if (inflated[0] == DEFLATED) {
+                throw new StreamCorruptedException("A compressed frame cannot hold another one");
+            }
+            return decodeBody(inflated, compressed);
+
+        case OBJECT:
+            try (ObjectInputStream input = new ObjectInputStream(
+                    new ByteArrayInputStream(body, payload, body.length - payload))) {
+                return input.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new InvalidClassException(e.getMessage());
+            }
+
+        default:
+            throw new StreamCorruptedException("Unknown frame type: " + type);
+        }
+    }
+}
+//End of WireProtocol class
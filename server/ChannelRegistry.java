@@ -0,0 +1,184 @@
+package server;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class keeps the members of every chat channel. A message written in a
+ * channel is sent to its members only, instead of to every connected client.
+ * Members are kept in concurrent sets: sending to a channel never blocks
+ * clients joining or leaving it. A client joins and leaves on its own lock,
+ * and a client already closed cannot join, so a join racing with the
+ * cleanup of a disconnected client never adds it back.
+ */
+public class ChannelRegistry {
+    // Class variables *************************************************
+
+    /**
+     * The channel every client joins when logging in.
+     */
+    public static final String DEFAULT_CHANNEL = "general";
+
+    /**
+     * The longest name a channel can have.
+     */
+    public static final int MAX_NAME_LENGTH = 32;
+
+    // Instance variables **********************************************
+
+    /**
+     * The members of every channel that has at least one.
+     */
+    private final ConcurrentHashMap<String, Set<ClientConnection>> channels = new ConcurrentHashMap<>();
+
+    /**
+     * The channels joined by every client that joined one.
+     */
+    private final ConcurrentHashMap<ClientConnection, Set<String>> memberships = new ConcurrentHashMap<>();
+
+    // Instance methods ************************************************
+
+    /**
+     * This method adds a client to a channel, creating the channel if needed.
+     *
+     * @param channel The name of the channel.
+     * @param client  The client joining.
+     * @return false if the client was already a member, or is closed.
+     */
+    public boolean join(String channel, ClientConnection client) {
+        synchronized (client) {
+            if (!client.isConnected()) {
+                return false;
+            }
+            boolean[] added = new boolean[1];
+            channels.compute(channel, (name, members) -> {
+                if (members == null) {
+                    members = ConcurrentHashMap.newKeySet();
+                }
+                added[0] = members.add(client);
+                return members;
+            });
+            memberships.computeIfAbsent(client, c -> ConcurrentHashMap.newKeySet()).add(channel);
+            return added[0];
+        }
+    }
+
+    /**
+     * This method removes a client from a channel. The channel is forgotten
+     * when its last member leaves.
+     *
+     * @param channel The name of the channel.
+     * @param client  The client leaving.
+     * @return false if the client was not a member.
+     */
+    public boolean leave(String channel, ClientConnection client) {
+        synchronized (client) {
+            boolean[] removed = new boolean[1];
+            channels.computeIfPresent(channel, (name, members) -> {
+                removed[0] = members.remove(client);
+                return members.isEmpty() ? null : members;
+            });
+            Set<String> joined = memberships.get(client);
+            if (joined != null) {
+                joined.remove(channel);
+            }
+            return removed[0];
+        }
+    }
+
+    /**
+     * This method removes a client from every channel it joined, when it
+     * disconnects.
+     *
+     * @param client The client leaving.
+     */
+    public void leaveAll(ClientConnection client) {
+        synchronized (client) {
+            Set<String> joined = memberships.remove(client);
+            if (joined != null) {
+                for (String channel : joined) {
+                    leave(channel, client);
+                }
+            }
+        }
+    }
+
+    /**
+     * This method tells if a client is a member of a channel.
+     *
+     * @param channel The name of the channel.
+     * @param client  The client.
+     * @return true if the client joined the channel.
+     */
+    public boolean isMember(String channel, ClientConnection client) {
+        Set<ClientConnection> members = channels.get(channel);
+        return members != null && members.contains(client);
+    }
+
+    /**
+     * @param client The client.
+     * @return The names of the channels the client joined, sorted.
+     */
+    public SortedSet<String> getChannels(ClientConnection client) {
+        Set<String> joined = memberships.get(client);
+        return joined == null ? new TreeSet<>() : new TreeSet<>(joined);
+    }
+
+    /**
+     * @return The number of members of every channel, sorted by name.
+     */
+    public SortedMap<String, Integer> getChannelSizes() {
+        SortedMap<String, Integer> sizes = new TreeMap<>();
+        channels.forEach((name, members) -> sizes.put(name, members.size()));
+        return sizes;
+    }
+
+    /**
+     * This method sends a message to every member of a channel. The message is
+     * encoded once for all of them.
+     *
+     * @param channel The name of the channel.
+     * @param msg     The message to send.
+     */
+    public void sendToChannel(String channel, Object msg) {
+        Set<ClientConnection> members = channels.get(channel);
+        if (members == null) {
+            return;
+        }
+        EncodedMessage message = new EncodedMessage(msg);
+        for (ClientConnection member : members) {
+            try {
+                member.send(message);
+            } catch (IOException e) {
+                // The client is leaving, it is removed when it disconnects
+            }
+        }
+    }
+
+    // Class methods ***************************************************
+
+    /**
+     * This method checks the name of a channel typed by a user. A leading '#'
+     * is ignored.
+     *
+     * @param name The name typed.
+     * @return The name of the channel, or null if it is not a valid name.
+     */
+    public static String channelName(String name) {
+        if (name.startsWith("#")) {
+            name = name.substring(1);
+        }
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+            return null;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_') {
+                return null;
+            }
+        }
+        return name.toLowerCase();
+    }
+}
+//End of ChannelRegistry class
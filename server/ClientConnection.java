@@ -0,0 +1,118 @@
+package server;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class represents one client connected to a server engine. It exposes
+ * the same operations as ocsf's ConnectionToClient so the command handling in
+ * EchoServer does not depend on how the connection is actually served.
+ */
+public abstract class ClientConnection {
+    // Instance variables **********************************************
+
+    /**
+     * The information saved about this client (loginID, ...).
+     */
+    private final ConcurrentHashMap<String, Object> savedInfo = new ConcurrentHashMap<>();
+
+    // Instance methods ************************************************
+
+    /**
+     * This method sends a message to the client.
+     *
+     * @param msg The message to be sent.
+     * @throws IOException If the message could not be sent.
+     */
+    public abstract void sendToClient(Object msg) throws IOException;
+
+    /**
+     * This method sends a message shared with other clients. Connections able
+     * to write the bytes encoded once for everyone do so; the others send the
+     * message itself.
+     *
+     * @param message The message to be sent.
+     * @throws IOException If the message could not be sent.
+     */
+    public void send(EncodedMessage message) throws IOException {
+        sendToClient(message.getMessage());
+    }
+
+    /**
+     * This method asks for the long messages sent to the client to be
+     * compressed, once the client said it can read them.
+     *
+     * @param compressed true to compress the long messages.
+     * @return false if the connection cannot compress its messages.
+     */
+    public boolean setCompressed(boolean compressed) {
+        return false;
+    }
+
+    /**
+     * @return The queue of the messages waiting to be written to the client,
+     *         or null if messages are written right away.
+     */
+    public OutboundQueue getOutboundQueue() {
+        return null;
+    }
+
+    /**
+     * This method closes the connection with the client.
+     *
+     * @throws IOException If the connection could not be closed properly.
+     */
+    public abstract void close() throws IOException;
+
+    /**
+     * This method closes the connection right away, dropping the messages not
+     * written yet, for a client that stopped answering. It is reported as a
+     * disconnection.
+     *
+     * @throws IOException If the connection could not be closed properly.
+     */
+    public void abort() throws IOException {
+        close();
+    }
+
+    /**
+     * This method returns the address of the client.
+     *
+     * @return The address of the client, or null if the connection is closed.
+     */
+    public abstract InetAddress getInetAddress();
+
+    /**
+     * This method tells if the connection with the client is still open.
+     *
+     * @return true if the client is still connected.
+     */
+    public abstract boolean isConnected();
+
+    /**
+     * This method saves a piece of information about the client. A null value
+     * removes the information.
+     *
+     * @param infoType The name of the information.
+     * @param info     The information itself.
+     */
+    public void setInfo(String infoType, Object info) {
+        if (info == null) {
+            savedInfo.remove(infoType);
+        } else {
+            savedInfo.put(infoType, info);
+        }
+    }
+
+    /**
+     * This method returns a piece of information saved about the client.
+     *
+     * @param infoType The name of the information.
+     * @return The information, or null if it was never set.
+     */
+    public Object getInfo(String infoType) {
+        return savedInfo.get(infoType);
+    }
+}
+//End of ClientConnection class
@@ -0,0 +1,707 @@
+package server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * This class links a chat server to the other nodes of a cluster, so users
+ * connected to different nodes chat together. Every node listens for the
+ * other nodes on a port of its own and connects to every node it is told
+ * about; every node is told about all the others. What a node sends goes over
+ * the connections it opened, what it receives comes over the ones it
+ * accepted, so nothing is ever forwarded twice.
+ *
+ * Nodes send each other the chat lines written in channels, the notices such
+ * as "> bob has logged on.", the private messages to users connected
+ * elsewhere, and who logs on and off. When a link is opened, the node first
+ * tells who is logged on to it; when a link is lost, the users of that node
+ * are forgotten until it comes back.
+ *
+ * Only the nodes given as peers may link to this one: a link coming from any
+ * other address is closed at once. With a shared secret, a node must also
+ * prove in its hello that it knows the secret, by signing its name and the
+ * time with it. The port is only listened on at the address given, the
+ * loopback one by default, and a message longer than MAX_FRAME is refused.
+ *
+ * A message is encoded once for every node. Each node the server sends to
+ * has a queue of its own and a thread writing it, so a slow node never holds
+ * a client up: messages are dropped and counted when the queue is full, and
+ * while the node cannot be reached.
+ */
+public class ClusterLink {
+    // Class variables *************************************************
+
+    /**
+     * The number of messages waiting for a node before they are dropped.
+     */
+    public static final int DEFAULT_QUEUE = 16384;
+
+    /**
+     * The longest message between nodes, in bytes. Longer ones are not sent,
+     * and a node sending one is disconnected.
+     */
+    public static final int MAX_FRAME = 4 * 1024 * 1024;
+
+    /**
+     * The time between two attempts to reach a node, in milliseconds.
+     */
+    private static final int RETRY_DELAY = 1000;
+
+    /**
+     * How far the time in a hello may be from the time here, in
+     * milliseconds.
+     */
+    private static final long HELLO_MAX_SKEW = 5 * 60 * 1000;
+
+    /**
+     * The kinds of messages between nodes.
+     */
+    private static final byte HELLO = 1;
+    private static final byte LOGIN = 2;
+    private static final byte LOGOFF = 3;
+    private static final byte CHAT = 4;
+    private static final byte NOTICE = 5;
+    private static final byte PRIVATE = 6;
+    private static final byte PRESENCE = 7;
+
+    /**
+     * What the server does with the messages of the other nodes.
+     */
+    public interface Handler {
+
+        /**
+         * This method is called when a chat line was written in a channel on
+         * another node.
+         *
+         * @param channel The channel.
+         * @param loginID The loginID of the user who wrote the line.
+         * @param text    The line.
+         */
+        void chatReceived(String channel, String loginID, String text);
+
+        /**
+         * This method is called when another node sends a notice.
+         *
+         * @param channel The channel the notice is for, or null if it is for
+         *                every user.
+         * @param text    The notice.
+         */
+        void noticeReceived(String channel, String text);
+
+        /**
+         * This method is called when another node sends the presence notices
+         * of a window, for each user here to get them in a single message.
+         *
+         * @param everyone The lines for every user, or null if there are
+         *                 none.
+         * @param channels The lines for the members of each channel, by
+         *                 channel.
+         */
+        void presenceReceived(String everyone, Map<String, String> channels);
+
+        /**
+         * This method is called when a user of another node sends a private
+         * message to a user of this one.
+         *
+         * @param recipient The loginID of the user the message is for.
+         * @param sender    The loginID of the user who sent it.
+         * @param text      The message.
+         */
+        void privateReceived(String recipient, String sender, String text);
+
+        /**
+         * @return The loginIDs of the users logged on to this node.
+         */
+        Collection<String> getLocalUsers();
+    }
+
+    /**
+     * A node this one sends to.
+     */
+    private final class Peer implements Runnable {
+        final String host;
+        final int port;
+        final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(queueSize);
+        volatile boolean connected;
+
+        Peer(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        /**
+         * This method connects to the node, then writes what is queued for
+         * it, as much as is waiting at once; it connects again when the
+         * connection is lost.
+         */
+        public void run() {
+            while (!closed) {
+                try (Socket socket = new Socket(host, port)) {
+                    socket.setTcpNoDelay(true);
+                    OutputStream output = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+
+                    // What is sent from now on is queued, then the node learns who is here
+                    connected = true;
+                    String time = Long.toString(System.currentTimeMillis());
+                    output.write(encode(HELLO, node, time, sign(node + "|" + time)));
+                    for (String loginID : handler.getLocalUsers()) {
+                        output.write(encode(LOGIN, loginID));
+                    }
+                    output.flush();
+                    log.info("Linked to the node at {}:{}.", host, port);
+
+                    // The node never writes on this link, it is only read to notice it closed
+                    socket.setSoTimeout(1);
+                    while (!closed) {
+                        byte[] frame = queue.poll(RETRY_DELAY, TimeUnit.MILLISECONDS);
+                        if (frame == null) {
+                            if (isClosedByNode(socket)) {
+                                throw new EOFException("closed by the node");
+                            }
+                            continue;
+                        }
+                        for (; frame != null; frame = queue.poll()) {
+                            output.write(frame);
+                        }
+                        output.flush();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    if (connected) {
+                        log.warn("Lost the link to the node at {}:{}: {}", host, port, e.getMessage());
+                    }
+                } finally {
+                    connected = false;
+                    queue.clear();
+                }
+
+                try {
+                    Thread.sleep(RETRY_DELAY);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return true if the node closed the link.
+         */
+        boolean isClosedByNode(Socket socket) throws IOException {
+            try {
+                return socket.getInputStream().read() < 0;
+            } catch (SocketTimeoutException e) {
+                return false;
+            }
+        }
+
+        /**
+         * This method queues a message for the node, or drops it if the node
+         * cannot take it.
+         */
+        void send(byte[] frame) {
+            if (!connected || frame.length > 4 + MAX_FRAME || !queue.offer(frame)) {
+                dropped.increment();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    // Instance variables **********************************************
+
+    /**
+     * The name of this node.
+     */
+    private final String node;
+
+    /**
+     * The number of messages waiting for a node before they are dropped.
+     */
+    private final int queueSize;
+
+    /**
+     * What the server does with the messages of the other nodes.
+     */
+    private final Handler handler;
+
+    /**
+     * Where the links are logged.
+     */
+    private final ServerLog log;
+
+    /**
+     * The secret the nodes sign their hello with, or null if they do not.
+     */
+    private final byte[] secret;
+
+    /**
+     * Accepts the links of the other nodes.
+     */
+    private final ServerSocket listener;
+
+    /**
+     * The nodes this one sends to.
+     */
+    private final List<Peer> peers = new CopyOnWriteArrayList<>();
+
+    /**
+     * The link each node currently sends to this one over, by name.
+     */
+    private final Map<String, Socket> links = new ConcurrentHashMap<>();
+
+    /**
+     * The node every user logged on elsewhere is connected to, by loginID.
+     */
+    private final Map<String, String> remoteUsers = new ConcurrentHashMap<>();
+
+    /**
+     * The number of messages that could not be sent to a node.
+     */
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Tells if the link was closed.
+     */
+    private volatile boolean closed;
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs the link of a node and starts listening for the other nodes.
+     *
+     * @param node      The name of this node, unique in the cluster.
+     * @param bind      The address the other nodes connect to, or null for
+     *                  the loopback address.
+     * @param port      The port the other nodes connect to.
+     * @param secret    The secret shared by the nodes, or null if they do not
+     *                  sign their hello.
+     * @param queueSize The number of messages waiting for a node before they
+     *                  are dropped.
+     * @param handler   What the server does with the messages of the other
+     *                  nodes.
+     * @param log       Where the links are logged.
+     * @throws IOException If the port cannot be listened on.
+     */
+    public ClusterLink(String node, InetAddress bind, int port, String secret, int queueSize, Handler handler,
+            ServerLog log) throws IOException {
+        this.node = node;
+        this.secret = secret == null ? null : secret.getBytes(StandardCharsets.UTF_8);
+        this.queueSize = Math.max(1, queueSize);
+        this.handler = handler;
+        this.log = log;
+        this.listener = new ServerSocket(port, 50, bind != null ? bind : InetAddress.getLoopbackAddress());
+        daemon(this::accept, "Cluster listener").start();
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * This method starts sending to another node, connecting to it now and
+     * again whenever the connection is lost.
+     *
+     * @param address The node, as "host:port".
+     * @throws IllegalArgumentException If the address is not valid.
+     */
+    public void addPeer(String address) {
+        int colon = address.lastIndexOf(':');
+        Peer peer;
+        try {
+            peer = new Peer(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid node address '" + address + "', expected host:port.");
+        }
+        peers.add(peer);
+        daemon(peer, "Cluster link to " + peer).start();
+    }
+
+    /**
+     * This method tells the other nodes that a user logged on to this one.
+     *
+     * @param loginID The loginID of the user.
+     */
+    public void loggedOn(String loginID) {
+        sendToPeers(encode(LOGIN, loginID));
+    }
+
+    /**
+     * This method tells the other nodes that a user left this one.
+     *
+     * @param loginID The loginID of the user.
+     */
+    public void loggedOff(String loginID) {
+        sendToPeers(encode(LOGOFF, loginID));
+    }
+
+    /**
+     * This method sends a chat line written in a channel to the other nodes.
+     *
+     * @param channel The channel.
+     * @param loginID The loginID of the user who wrote it.
+     * @param text    The line.
+     */
+    public void sendChat(String channel, String loginID, String text) {
+        sendToPeers(encode(CHAT, channel, loginID, text));
+    }
+
+    /**
+     * This method sends a notice to the other nodes.
+     *
+     * @param channel The channel the notice is for, or null if it is for every
+     *                user.
+     * @param text    The notice.
+     */
+    public void sendNotice(String channel, String text) {
+        sendToPeers(encode(NOTICE, channel == null ? "" : channel, text));
+    }
+
+    /**
+     * This method sends the presence notices of a window to the other nodes:
+     * the lines for every user, then the channels and their lines.
+     *
+     * @param everyone The lines for every user, or null if there are none.
+     * @param channels The lines for the members of each channel, by channel.
+     */
+    public void sendPresence(String everyone, Map<String, String> channels) {
+        String[] fields = new String[1 + 2 * channels.size()];
+        fields[0] = everyone == null ? "" : everyone;
+        int i = 1;
+        for (Map.Entry<String, String> channel : channels.entrySet()) {
+            fields[i++] = channel.getKey();
+            fields[i++] = channel.getValue();
+        }
+        sendToPeers(encode(PRESENCE, fields));
+    }
+
+    /**
+     * This method sends a private message to a user of another node.
+     *
+     * @param recipient The loginID of the user the message is for.
+     * @param sender    The loginID of the user who sent it.
+     * @param text      The message.
+     * @return false if the user is not logged on to another node.
+     */
+    public boolean sendPrivate(String recipient, String sender, String text) {
+        if (!remoteUsers.containsKey(recipient)) {
+            return false;
+        }
+        sendToPeers(encode(PRIVATE, recipient, sender, text));
+        return true;
+    }
+
+    /**
+     * @param loginID The loginID of a user.
+     * @return The node the user is logged on to, or null if it is not another
+     *         node.
+     */
+    public String findNode(String loginID) {
+        return remoteUsers.get(loginID);
+    }
+
+    /**
+     * @return The name of this node.
+     */
+    public String getNode() {
+        return node;
+    }
+
+    /**
+     * @return The number of users logged on to the other nodes.
+     */
+    public int getRemoteUserCount() {
+        return remoteUsers.size();
+    }
+
+    /**
+     * @return The number of messages that could not be sent to a node.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return A line per node this one sends to, telling if it is reached,
+     *         and the names of the nodes sending to this one.
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder("Node " + node + ", " + remoteUsers.size()
+                + " users on the other nodes, " + dropped.sum() + " messages dropped");
+        for (Peer peer : peers) {
+            report.append("\n  to ").append(peer).append(peer.connected ? ": linked, " : ": not linked, ")
+                    .append(peer.queue.size()).append(" waiting");
+        }
+        report.append("\n  from: ").append(links.isEmpty() ? "none" : String.join(", ", new TreeSet<>(links.keySet())));
+        return report.toString();
+    }
+
+    /**
+     * This method stops listening for the other nodes and closes every link.
+     */
+    public void close() {
+        closed = true;
+        try {
+            listener.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        for (Socket socket : links.values()) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    /**
+     * This method accepts the links of the other nodes, each read by a thread
+     * of its own.
+     */
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = listener.accept();
+                if (!isPeer(socket.getInetAddress())) {
+                    log.warn("Refused a link from {}, which is not a peer.", socket.getRemoteSocketAddress());
+                    socket.close();
+                    continue;
+                }
+                daemon(() -> read(socket), "Cluster link from " + socket.getRemoteSocketAddress()).start();
+            } catch (IOException e) {
+                if (!closed) {
+                    log.error("Could not accept a node: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * @param address The address a link comes from.
+     * @return true if one of the peers has that address.
+     */
+    private boolean isPeer(InetAddress address) {
+        for (Peer peer : peers) {
+            try {
+                for (InetAddress known : InetAddress.getAllByName(peer.host)) {
+                    if (known.equals(address)) {
+                        return true;
+                    }
+                }
+            } catch (UnknownHostException e) {
+                // That peer cannot be the one
+            }
+        }
+        return false;
+    }
+
+    /**
+     * This method reads what another node sends until the link is lost, then
+     * forgets the users of that node.
+     */
+    private void read(Socket socket) {
+        String name = null;
+        try (socket) {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            int helloLength = input.readInt();
+            if (helloLength < 1 || helloLength > MAX_FRAME || input.readByte() != HELLO) {
+                throw new StreamCorruptedException("The node did not say hello.");
+            }
+            String claimed = readText(input);
+            String time = readText(input);
+            String signature = readText(input);
+            if (!isSigned(claimed, time, signature)) {
+                log.warn("Refused a link from {}: wrong secret or clock.", socket.getRemoteSocketAddress());
+                return;
+            }
+            name = claimed;
+            Socket previous = links.put(name, socket);
+            if (previous != null) {
+                previous.close();
+            }
+            log.info("The node {} linked to this one.", name);
+
+            while (true) {
+                int length = input.readInt();
+                if (length < 1 || length > MAX_FRAME) {
+                    throw new StreamCorruptedException("Invalid message length " + length + ".");
+                }
+                switch (input.readByte()) {
+
+                case LOGIN:
+                    remoteUsers.put(readText(input), name);
+                    break;
+
+                case LOGOFF:
+                    remoteUsers.remove(readText(input), name);
+                    break;
+
+                case CHAT:
+                    handler.chatReceived(readText(input), readText(input), readText(input));
+                    break;
+
+                case NOTICE:
+                    String channel = readText(input);
+                    handler.noticeReceived(channel.isEmpty() ? null : channel, readText(input));
+                    break;
+
+                case PRIVATE:
+                    handler.privateReceived(readText(input), readText(input), readText(input));
+                    break;
+
+                case PRESENCE:
+                    readPresence(input, length);
+                    break;
+
+                default:
+
+                    // Sent by a newer node, skipped
+                    input.skipNBytes(length - 1);
+                }
+            }
+        } catch (IOException e) {
+            if (name != null && links.remove(name, socket)) {
+                String lost = name;
+                remoteUsers.values().removeIf(lost::equals);
+                if (!closed) {
+                    log.warn("Lost the link from the node {}.", name);
+                }
+            }
+        }
+    }
+
+    /**
+     * This method reads the presence notices of a window, the fields filling
+     * the rest of the message, and hands them to the handler.
+     *
+     * @param input  The stream of the link.
+     * @param length The length of the message, its kind included.
+     */
+    private void readPresence(DataInputStream input, int length) throws IOException {
+        int left = length - 1;
+        byte[] everyone = readField(input);
+        left -= 4 + everyone.length;
+        Map<String, String> channels = new HashMap<>();
+        while (left > 0) {
+            byte[] channel = readField(input);
+            byte[] text = readField(input);
+            left -= 8 + channel.length + text.length;
+            channels.put(new String(channel, StandardCharsets.UTF_8), new String(text, StandardCharsets.UTF_8));
+        }
+        if (left < 0) {
+            throw new StreamCorruptedException("Invalid presence message.");
+        }
+        handler.presenceReceived(everyone.length == 0 ? null : new String(everyone, StandardCharsets.UTF_8),
+                channels);
+    }
+
+    /**
+     * This method signs a text with the shared secret.
+     *
+     * @param text The text.
+     * @return The signature, or "" without a secret.
+     */
+    private String sign(String text) {
+        if (secret == null) {
+            return "";
+        }
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            return Base64.getEncoder().encodeToString(mac.doFinal(text.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    /**
+     * @return true if a hello is signed with the shared secret, at about the
+     *         time here; always true without a secret.
+     */
+    private boolean isSigned(String name, String time, String signature) {
+        if (secret == null) {
+            return true;
+        }
+        try {
+            if (Math.abs(System.currentTimeMillis() - Long.parseLong(time)) > HELLO_MAX_SKEW) {
+                return false;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return MessageDigest.isEqual(sign(name + "|" + time).getBytes(StandardCharsets.UTF_8),
+                signature.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * This method queues a message for every node this one sends to.
+     */
+    private void sendToPeers(byte[] frame) {
+        for (Peer peer : peers) {
+            peer.send(frame);
+        }
+    }
+
+    // Class methods ***************************************************
+
+    /**
+     * This method encodes a message between nodes: its length, its kind, then
+     * its fields, each as its length and its UTF-8 bytes.
+     */
+    private static byte[] encode(byte kind, String... fields) {
+        byte[][] texts = new byte[fields.length][];
+        int length = 1;
+        for (int i = 0; i < fields.length; i++) {
+            texts[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+            length += 4 + texts[i].length;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(4 + length).putInt(length).put(kind);
+        for (byte[] text : texts) {
+            frame.putInt(text.length).put(text);
+        }
+        return frame.array();
+    }
+
+    /**
+     * This method reads a field of a message between nodes.
+     */
+    private static String readText(DataInputStream input) throws IOException {
+        return new String(readField(input), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * This method reads the bytes of a field of a message between nodes.
+     */
+    private static byte[] readField(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0 || length > MAX_FRAME) {
+            throw new StreamCorruptedException("Invalid field length " + length + ".");
+        }
+        return input.readNBytes(length);
+    }
+
+    /**
+     * @return A daemon thread running a task.
+     */
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
+//End of ClusterLink class
@@ -0,0 +1,161 @@
+package server;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class empties a server before it is stopped, without dropping its
+ * users all at once. The server stops accepting connections, tells its
+ * clients where to connect next, waits for the messages still queued for them
+ * to be written, then closes their connections one by one over a period of
+ * time. Clients connect again by themselves, each after a random wait; spread
+ * over the period, they do not all reach their next server together.
+ */
+public class ConnectionDrainer {
+    // Class variables *************************************************
+
+    /**
+     * The default time the connections are closed over, in seconds.
+     */
+    public static final int DEFAULT_PERIOD = 5;
+
+    /**
+     * The longest time waited for the queued messages to be written, in
+     * milliseconds.
+     */
+    public static final int FLUSH_TIMEOUT = 5000;
+
+    /**
+     * The command telling a client where to connect from now on:
+     * "#redirect <port> [host]", the host being the same when not given.
+     */
+    public static final String REDIRECT = "#redirect";
+
+    // Instance variables **********************************************
+
+    /**
+     * The engine drained.
+     */
+    private final ServerEngine engine;
+
+    /**
+     * The log of the server.
+     */
+    private final ServerLog log;
+
+    /**
+     * The thread draining the server, or null if it is not being drained.
+     */
+    private Thread drainer;
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs a drainer for an engine.
+     *
+     * @param engine The engine.
+     * @param log    The log of the server.
+     */
+    public ConnectionDrainer(ServerEngine engine, ServerLog log) {
+        this.engine = engine;
+        this.log = log;
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * This method starts draining the server, in the background.
+     *
+     * @param host   The server the clients should connect to next, or null
+     *               for the same host.
+     * @param port   The port they should connect to next, or 0 to connect
+     *               again to this server once it is back.
+     * @param period The time the connections are closed over, in seconds.
+     * @return false if the server was already being drained.
+     */
+    public synchronized boolean drain(String host, int port, int period) {
+        if (isDraining()) {
+            return false;
+        }
+        engine.stopListening();
+        engine.sendToAllClients("WARNING - The server has stopped listening for connections\n"
+                + "SERVER GOING DOWN! You will be connected again"
+                + (port > 0 ? " to " + (host != null ? host + ":" : "port ") + port : "") + ".");
+        if (port > 0) {
+            engine.sendToAllClients(redirect(host, port));
+        }
+        drainer = new Thread(() -> closeAll(Math.max(0, period)), "Drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+        return true;
+    }
+
+    /**
+     * @return true if the server is being drained.
+     */
+    public synchronized boolean isDraining() {
+        return drainer != null && drainer.isAlive();
+    }
+
+    /**
+     * This method waits for the messages queued for the clients to be
+     * written, then closes their connections evenly over the period.
+     *
+     * @param period The time the connections are closed over, in seconds.
+     */
+    private void closeAll(int period) {
+        ClientConnection[] clients = engine.getClientConnections();
+        long start = System.nanoTime();
+        long flushDeadline = start + TimeUnit.MILLISECONDS.toNanos(FLUSH_TIMEOUT);
+        try {
+            while (isQueued(clients) && System.nanoTime() < flushDeadline) {
+                Thread.sleep(10);
+            }
+
+            long closing = System.nanoTime();
+            long spacing = clients.length == 0 ? 0 : TimeUnit.SECONDS.toNanos(period) / clients.length;
+            for (int i = 0; i < clients.length; i++) {
+                long wait = closing + i * spacing - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                try {
+                    clients[i].close();
+                } catch (IOException e) {
+                    // The client is gone already
+                }
+            }
+        } catch (InterruptedException e) {
+            log.warn("Draining was interrupted.");
+            return;
+        }
+        log.info("Drained {} clients in {} ms.", clients.length,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * @return true if messages are still queued for one of the clients.
+     */
+    private static boolean isQueued(ClientConnection[] clients) {
+        for (ClientConnection client : clients) {
+            OutboundQueue queue = client.getOutboundQueue();
+            if (client.isConnected() && queue != null && !queue.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Class methods ***************************************************
+
+    /**
+     * @param host The server the clients should connect to, or null for the
+     *             same host.
+     * @param port The port they should connect to.
+     * @return The command telling the clients.
+     */
+    public static String redirect(String host, int port) {
+        return REDIRECT + " " + port + (host != null ? " " + host : "");
+    }
+}
+//End of ConnectionDrainer class
@@ -0,0 +1,176 @@
+package server;
+
+import java.io.*;
+import java.nio.*;
+
+import common.*;
+
+/**
+ * This class is a message sent to many clients. It is encoded at most once
+ * per protocol, the first time a client speaking that protocol needs it, and
+ * the same bytes are then written to every client.
+ */
+public class EncodedMessage {
+    // Instance variables **********************************************
+
+    /**
+     * The message itself.
+     */
+    private final Object message;
+
+    /**
+     * The message encoded for the object stream, or null until needed.
+     */
+    private ByteBuffer legacy;
+
+    /**
+     * The message encoded for the compact protocol, or null until needed.
+     */
+    private ByteBuffer framed;
+
+    /**
+     * The message encoded for the compact protocol and compressed, or null
+     * until needed. The same as framed if the message is too short to be
+     * compressed.
+     */
+    private ByteBuffer deflated;
+
+    /**
+     * When the message was created, from System.nanoTime().
+     */
+    private final long created = System.nanoTime();
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs a message to be sent to many clients.
+     *
+     * @param message The message.
+     */
+    public EncodedMessage(Object message) {
+        this.message = message;
+    }
+
+    /**
+     * Constructs a message made of raw bytes, the same in both protocols.
+     *
+     * @param bytes The bytes.
+     */
+    private EncodedMessage(byte[] bytes) {
+        this.message = null;
+        this.legacy = ByteBuffer.wrap(bytes);
+        this.framed = this.legacy;
+        this.deflated = this.legacy;
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * @return The message itself.
+     */
+    public Object getMessage() {
+        return message;
+    }
+
+    /**
+     * @return When the message was created, from System.nanoTime().
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * This method returns the encoded message. The bytes are shared: the buffer
+     * returned is read-only and has its own position.
+     *
+     * @param framedProtocol true for the compact protocol, false for the object
+     *                       stream.
+     * @return The encoded message, ready to be written.
+     * @throws IOException If the message cannot be encoded.
+     */
+    public ByteBuffer getBytes(boolean framedProtocol) throws IOException {
+        return getBytes(framedProtocol, false);
+    }
+
+    /**
+     * This method returns the encoded message, compressed for the clients of
+     * the compact protocol that asked for it.
+     *
+     * @param framedProtocol true for the compact protocol, false for the object
+     *                       stream.
+     * @param compressed     true to compress the message if it is long enough;
+     *                       ignored for the object stream.
+     * @return The encoded message, ready to be written.
+     * @throws IOException If the message cannot be encoded.
+     */
+    public ByteBuffer getBytes(boolean framedProtocol, boolean compressed) throws IOException {
+        return encoded(framedProtocol, compressed).asReadOnlyBuffer();
+    }
+
+    /**
+     * This method writes the encoded message to a stream.
+     *
+     * @param out            The stream to write to.
+     * @param framedProtocol true for the compact protocol, false for the object
+     *                       stream.
+     * @return The number of bytes written.
+     * @throws IOException If the message cannot be encoded or written.
+     */
+    public int writeTo(OutputStream out, boolean framedProtocol) throws IOException {
+        return writeTo(out, framedProtocol, false);
+    }
+
+    /**
+     * This method writes the encoded message to a stream, compressed for the
+     * clients of the compact protocol that asked for it.
+     *
+     * @param out            The stream to write to.
+     * @param framedProtocol true for the compact protocol, false for the object
+     *                       stream.
+     * @param compressed     true to compress the message if it is long enough;
+     *                       ignored for the object stream.
+     * @return The number of bytes written.
+     * @throws IOException If the message cannot be encoded or written.
+     */
+    public int writeTo(OutputStream out, boolean framedProtocol, boolean compressed) throws IOException {
+        ByteBuffer bytes = encoded(framedProtocol, compressed);
+        out.write(bytes.array(), 0, bytes.limit());
+        return bytes.limit();
+    }
+
+    /**
+     * This method encodes the message the first time it is needed.
+     */
+    private synchronized ByteBuffer encoded(boolean framedProtocol, boolean compressed) throws IOException {
+        if (framedProtocol && compressed) {
+            if (deflated == null) {
+                deflated = WireProtocol.compress(encoded(true, false));
+            }
+            return deflated;
+        }
+        if (framedProtocol) {
+            if (framed == null) {
+                framed = WireProtocol.encode(message);
+            }
+            return framed;
+        }
+        if (legacy == null) {
+            legacy = ObjectStreamCodec.encode(message);
+        }
+        return legacy;
+    }
+
+    // Class methods ***************************************************
+
+    /**
+     * This method wraps bytes written as they are whatever the protocol, such
+     * as the header a connection starts with.
+     *
+     * @param bytes The bytes.
+     * @return The message made of these bytes.
+     */
+    public static EncodedMessage ofBytes(byte[] bytes) {
+        return new EncodedMessage(bytes);
+    }
+}
+//End of EncodedMessage class
@@ -0,0 +1,157 @@
+package server;
+
+import java.io.*;
+import javax.net.ssl.SSLContext;
+
+import common.*;
+
+/**
+ * This class holds the settings of the nio, threads and virtual engines, read
+ * from the command line of the server.
+ */
+public class EngineOptions {
+    // Instance variables **********************************************
+
+    /**
+     * The number of event loops of the nio engine.
+     */
+    private int loops = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The number of messages waiting for a client before the overflow policy
+     * applies.
+     */
+    private int queueCapacity = OutboundQueue.DEFAULT_CAPACITY;
+
+    /**
+     * What to do when a client reads too slowly.
+     */
+    private OutboundQueue.Policy overflowPolicy = OutboundQueue.Policy.DROP_OLDEST;
+
+    /**
+     * The time messages for a client are gathered before being written
+     * together, in milliseconds; 0 writes them right away.
+     */
+    private int flushInterval;
+
+    /**
+     * The TLS context the clients are served with, or null for plain TCP.
+     */
+    private SSLContext tlsContext;
+
+    // Instance methods ************************************************
+
+    /**
+     * @return The number of event loops of the nio engine.
+     */
+    public int getLoops() {
+        return loops;
+    }
+
+    /**
+     * @param loops The number of event loops of the nio engine.
+     */
+    public void setLoops(int loops) {
+        this.loops = Math.max(1, loops);
+    }
+
+    /**
+     * @return The number of messages waiting for a client before the overflow
+     *         policy applies.
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @param queueCapacity The number of messages waiting for a client before
+     *                      the overflow policy applies.
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = Math.max(1, queueCapacity);
+    }
+
+    /**
+     * @return What to do when a client reads too slowly.
+     */
+    public OutboundQueue.Policy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @param overflowPolicy What to do when a client reads too slowly.
+     */
+    public void setOverflowPolicy(OutboundQueue.Policy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @return The time messages for a client are gathered before being written
+     *         together, in milliseconds; 0 if they are written right away.
+     */
+    public int getFlushInterval() {
+        return flushInterval;
+    }
+
+    /**
+     * @param flushInterval The time messages for a client are gathered before
+     *                      being written together, in milliseconds; 0 writes
+     *                      them right away.
+     */
+    public void setFlushInterval(int flushInterval) {
+        this.flushInterval = Math.max(0, flushInterval);
+    }
+
+    /**
+     * @return The TLS context the clients are served with, or null for plain
+     *         TCP.
+     */
+    public SSLContext getTlsContext() {
+        return tlsContext;
+    }
+
+    /**
+     * @param tlsContext The TLS context the clients are served with, or null
+     *                   for plain TCP.
+     */
+    public void setTlsContext(SSLContext tlsContext) {
+        this.tlsContext = tlsContext;
+    }
+
+    /**
+     * @return A new outbound queue for a client.
+     */
+    public OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(queueCapacity, overflowPolicy);
+    }
+
+    // Class methods ***************************************************
+
+    /**
+     * This method reads the settings from the command line: "--loops=N",
+     * "--queue=N", "--overflow=drop-oldest|coalesce|disconnect",
+     * "--flush-tick=MS", "--tls-keystore=FILE" and "--tls-password=PW".
+     *
+     * @param line The command line of the server.
+     * @return The settings.
+     * @throws IllegalArgumentException If a setting is invalid.
+     */
+    public static EngineOptions from(CommandLine line) {
+        EngineOptions options = new EngineOptions();
+        options.setLoops(line.getInt("loops", options.getLoops()));
+        options.setQueueCapacity(line.getInt("queue", options.getQueueCapacity()));
+        options.setOverflowPolicy(OutboundQueue.Policy.parse(line.get("overflow", "drop-oldest")));
+        options.setFlushInterval(line.getInt("flush-tick", options.getFlushInterval()));
+
+        String keyStore = line.get("tls-keystore", null);
+        if (keyStore != null) {
+            try {
+                options.setTlsContext(Tls.forServer(keyStore, line.get("tls-password", "")));
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+        }
+        return options;
+    }
+}
+//End of EngineOptions class
@@ -0,0 +1,220 @@
+package server;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * This class finds the clients that stopped answering, such as those whose
+ * connection was lost without the server being told. A client that sent
+ * nothing for a whole period is sent "#ping", which ChatClient answers with
+ * "#pong"; a client leaving several pings in a row unanswered is handed to
+ * the reaper.
+ *
+ * Clients are not given a timer each: a single thread turns a wheel of slots,
+ * one slot per tick, and every client sits in a slot, checked once per turn.
+ * Clients joining are spread over the slots as the wheel turns, so the pings
+ * of many clients are spread over the period too.
+ */
+public class HeartbeatMonitor {
+    // Class variables *************************************************
+
+    /**
+     * The default time between two checks of a client, in seconds: none, as
+     * the clients of the original ocsf framework cannot answer a ping.
+     */
+    public static final int DEFAULT_INTERVAL = 0;
+
+    /**
+     * The default number of pings in a row a client may leave unanswered.
+     */
+    public static final int DEFAULT_MISSES = 3;
+
+    /**
+     * What the server sends to a silent client.
+     */
+    public static final String PING = "#ping";
+
+    /**
+     * What the client answers.
+     */
+    public static final String PONG = "#pong";
+
+    /**
+     * The number of slots of the wheel.
+     */
+    private static final int SLOTS = 32;
+
+    /**
+     * A client watched by the monitor.
+     */
+    private static final class Beat {
+        final ClientConnection client;
+        final int slot;
+        volatile boolean heard = true;
+        int missed;
+
+        Beat(ClientConnection client, int slot) {
+            this.client = client;
+            this.slot = slot;
+        }
+    }
+
+    // Instance variables **********************************************
+
+    /**
+     * The clients, by slot of the wheel.
+     */
+    private final List<Set<Beat>> slots = new ArrayList<>();
+
+    /**
+     * The slot checked at the next tick.
+     */
+    private volatile int cursor;
+
+    /**
+     * The time between two ticks, in nanoseconds.
+     */
+    private final long tick;
+
+    /**
+     * The number of pings in a row a client may leave unanswered.
+     */
+    private final int misses;
+
+    /**
+     * What is done with a client that stopped answering.
+     */
+    private final Consumer<ClientConnection> reaper;
+
+    /**
+     * The number of clients handed to the reaper.
+     */
+    private final LongAdder reaped = new LongAdder();
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs a monitor and starts its wheel.
+     *
+     * @param interval The time between two checks of a client, in seconds.
+     * @param misses   The number of pings in a row a client may leave
+     *                 unanswered.
+     * @param reaper   What is done with a client that stopped answering.
+     */
+    public HeartbeatMonitor(int interval, int misses, Consumer<ClientConnection> reaper) {
+        this.tick = TimeUnit.SECONDS.toNanos(Math.max(1, interval)) / SLOTS;
+        this.misses = Math.max(1, misses);
+        this.reaper = reaper;
+        for (int i = 0; i < SLOTS; i++) {
+            slots.add(ConcurrentHashMap.newKeySet());
+        }
+
+        Thread wheel = new Thread(this::turn, "Heartbeat wheel");
+        wheel.setDaemon(true);
+        wheel.start();
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * This method starts watching a client. It is first checked a whole
+     * period later.
+     *
+     * @param client The client.
+     */
+    public void watch(ClientConnection client) {
+        Beat beat = new Beat(client, (cursor + SLOTS - 1) % SLOTS);
+        client.setInfo("heartbeat", beat);
+        slots.get(beat.slot).add(beat);
+    }
+
+    /**
+     * This method stops watching a client.
+     *
+     * @param client The client.
+     */
+    public void unwatch(ClientConnection client) {
+        Object beat = client.getInfo("heartbeat");
+        if (beat instanceof Beat) {
+            slots.get(((Beat) beat).slot).remove(beat);
+            client.setInfo("heartbeat", null);
+        }
+    }
+
+    /**
+     * This method records that a client sent something, which shows it is
+     * still there.
+     *
+     * @param client The client.
+     */
+    public void heard(ClientConnection client) {
+        Object beat = client.getInfo("heartbeat");
+        if (beat instanceof Beat) {
+            ((Beat) beat).heard = true;
+        }
+    }
+
+    /**
+     * @return The number of clients handed to the reaper.
+     */
+    public long getReaped() {
+        return reaped.sum();
+    }
+
+    /**
+     * This method turns the wheel, one slot per tick.
+     */
+    private void turn() {
+        long next = System.nanoTime() + tick;
+        while (true) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            next += tick;
+
+            int slot = cursor;
+            for (Beat beat : slots.get(slot)) {
+                check(beat);
+            }
+            cursor = (slot + 1) % SLOTS;
+        }
+    }
+
+    /**
+     * This method checks a client: pings it if it was silent for the last
+     * period, or hands it to the reaper if it was silent for too long.
+     */
+    private void check(Beat beat) {
+        if (!beat.client.isConnected()) {
+            slots.get(beat.slot).remove(beat);
+            return;
+        }
+        if (beat.heard) {
+            beat.heard = false;
+            beat.missed = 0;
+            return;
+        }
+
+        if (++beat.missed > misses) {
+            slots.get(beat.slot).remove(beat);
+            reaped.increment();
+            reaper.accept(beat.client);
+            return;
+        }
+        try {
+            beat.client.sendToClient(PING);
+        } catch (IOException e) {
+            // The connection is being closed, it is reaped at a later turn
+        }
+    }
+}
+//End of HeartbeatMonitor class
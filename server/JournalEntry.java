@@ -0,0 +1,97 @@
+package server;
+
+/**
+ * This class is a chat message as kept by the journal: its sequence number,
+ * when it was written, who wrote it, in which channel, and its text.
+ */
+public class JournalEntry {
+    // Instance variables **********************************************
+
+    /**
+     * The sequence number of the message, unique and increasing.
+     */
+    private final long sequence;
+
+    /**
+     * When the message was written, in milliseconds since the epoch.
+     */
+    private final long time;
+
+    /**
+     * The loginID of the user who wrote the message.
+     */
+    private final String loginID;
+
+    /**
+     * The channel the message was written in.
+     */
+    private final String channel;
+
+    /**
+     * The text of the message.
+     */
+    private final String text;
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs an entry.
+     *
+     * @param sequence The sequence number of the message.
+     * @param time     When the message was written, in milliseconds since the
+     *                 epoch.
+     * @param loginID  The loginID of the user who wrote the message.
+     * @param channel  The channel the message was written in.
+     * @param text     The text of the message.
+     */
+    public JournalEntry(long sequence, long time, String loginID, String channel, String text) {
+        this.sequence = sequence;
+        this.time = time;
+        this.loginID = loginID;
+        this.channel = channel;
+        this.text = text;
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * @return The sequence number of the message.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return When the message was written, in milliseconds since the epoch.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return The loginID of the user who wrote the message.
+     */
+    public String getLoginID() {
+        return loginID;
+    }
+
+    /**
+     * @return The channel the message was written in.
+     */
+    public String getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return The text of the message.
+     */
+    public String getText() {
+        return text;
+    }
+
+    @Override
+    public String toString() {
+        return "#" + sequence + " [#" + channel + "] " + loginID + ": " + text;
+    }
+}
+//End of JournalEntry class
@@ -0,0 +1,130 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * This class counts durations in buckets whose width grows with the value, as
+ * HdrHistogram does: every power of two is split into 16 buckets, so any
+ * percentile is known within about 6% while the whole range of a long fits in
+ * under a thousand counters. Recording is a single atomic increment and never
+ * blocks, so it can be done on every message.
+ */
+public class LatencyHistogram {
+    // Class variables *************************************************
+
+    /**
+     * The number of buckets each power of two is split into.
+     */
+    private static final int SUB_BUCKETS = 16;
+
+    /**
+     * Values below this one have a bucket each.
+     */
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+
+    /**
+     * The number of buckets needed for every positive long.
+     */
+    private static final int BUCKET_COUNT = LINEAR_LIMIT + (63 - 5 + 1) * SUB_BUCKETS;
+
+    // Instance variables **********************************************
+
+    /**
+     * The number of values recorded in every bucket.
+     */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * The largest value recorded.
+     */
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    // Instance methods ************************************************
+
+    /**
+     * This method records a value.
+     *
+     * @param value The value, for instance a duration in nanoseconds. Negative
+     *              values count as 0.
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        buckets.incrementAndGet(bucketOf(value));
+        max.accumulate(value);
+    }
+
+    /**
+     * @return The number of values recorded.
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return The largest value recorded, 0 if none was.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * This method returns a percentile of the values recorded. Values recorded
+     * meanwhile may or may not be taken into account.
+     *
+     * @param percentile The percentile, between 0 and 100, such as 99.9.
+     * @return The highest value of the bucket holding the percentile, never
+     *         more than the largest value recorded; 0 if nothing was recorded.
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    // Class methods ***************************************************
+
+    /**
+     * @return The bucket holding a value.
+     */
+    static int bucketOf(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 4;
+        return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @return The highest value a bucket holds.
+     */
+    static long highestValueOf(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        int shift = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+        long first = (long) ((bucket - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return first + (1L << shift) - 1;
+    }
+}
+//End of LatencyHistogram class
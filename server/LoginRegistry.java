@@ -0,0 +1,76 @@
+package server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class finds the connection of a user from their loginID, without
+ * looking through every connected client. It is updated when users log on,
+ * log off and disconnect.
+ */
+public class LoginRegistry {
+    // Instance variables **********************************************
+
+    /**
+     * The connection of every user logged on.
+     */
+    private final ConcurrentHashMap<String, ClientConnection> users = new ConcurrentHashMap<>();
+
+    // Instance methods ************************************************
+
+    /**
+     * This method records that a user logged on.
+     *
+     * @param loginID The loginID of the user.
+     * @param client  The connection of the user.
+     * @return false if another connection already uses that loginID.
+     */
+    public boolean register(String loginID, ClientConnection client) {
+        ClientConnection previous = users.putIfAbsent(loginID, client);
+        return previous == null || previous == client;
+    }
+
+    /**
+     * This method records that a user logged off or disconnected. Nothing
+     * happens if the loginID now belongs to another connection.
+     *
+     * @param loginID The loginID of the user, may be null.
+     * @param client  The connection of the user.
+     */
+    public void unregister(String loginID, ClientConnection client) {
+        if (loginID != null) {
+            users.remove(loginID, client);
+        }
+    }
+
+    /**
+     * @param loginID The loginID of a user.
+     * @return The connection of the user, or null if they are not logged on.
+     */
+    public ClientConnection find(String loginID) {
+        return users.get(loginID);
+    }
+
+    /**
+     * @param loginID The loginID of a user.
+     * @return true if the user is logged on.
+     */
+    public boolean isOnline(String loginID) {
+        return users.containsKey(loginID);
+    }
+
+    /**
+     * @return The loginIDs of the users logged on.
+     */
+    public Set<String> getLoginIDs() {
+        return Collections.unmodifiableSet(users.keySet());
+    }
+
+    /**
+     * @return The number of users logged on.
+     */
+    public int size() {
+        return users.size();
+    }
+}
+//End of LoginRegistry class
@@ -0,0 +1,417 @@
+package server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * This class keeps the last chat lines of every channel in memory, so a user
+ * who comes back can be sent what was said while they were away without
+ * reading the journal. Every channel has a ring of its own, and a line leaves
+ * it when the ring is full, when it gets too old, or when the lines of every
+ * channel together use more memory than allowed. Memory is given back by the
+ * oldest lines, whatever their channel, down to a little below the limit so
+ * that the channels are not looked through for every line. The rings of
+ * channels where nothing was said for longer than the age limit are dropped.
+ *
+ * Lines are numbered in the order they are kept. When a user leaves, the
+ * number of the last line is remembered under their loginID, and the lines
+ * after it are what they missed when they log in again.
+ */
+public class MessageHistory {
+    // Class variables *************************************************
+
+    /**
+     * The default number of lines kept per channel.
+     */
+    public static final int DEFAULT_SIZE = 100;
+
+    /**
+     * The default age after which a line is forgotten, in minutes.
+     */
+    public static final int DEFAULT_MAX_AGE = 60;
+
+    /**
+     * The default memory the lines may use, in megabytes.
+     */
+    public static final int DEFAULT_MAX_MEMORY = 16;
+
+    /**
+     * The memory used by a line besides its characters, estimated.
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    /**
+     * The share of the memory limit the lines are brought back to once they
+     * use more, in percent.
+     */
+    private static final int LOW_WATER = 90;
+
+    /**
+     * The time between two looks for the channels where nothing was said for
+     * too long, in milliseconds.
+     */
+    private static final long SWEEP_INTERVAL = 1000;
+
+    /**
+     * The lines of a channel, oldest first.
+     */
+    private static final class Ring {
+        final JournalEntry[] entries;
+        int head;
+        int count;
+        boolean dropped;
+
+        Ring(int size) {
+            entries = new JournalEntry[size];
+        }
+
+        JournalEntry get(int index) {
+            return entries[(head + index) % entries.length];
+        }
+    }
+
+    /**
+     * A ring of a channel, ordered by the number of its oldest line.
+     */
+    private static final class Oldest implements Comparable<Oldest> {
+        final String channel;
+        final Ring ring;
+        final long sequence;
+
+        Oldest(String channel, Ring ring, long sequence) {
+            this.channel = channel;
+            this.ring = ring;
+            this.sequence = sequence;
+        }
+
+        public int compareTo(Oldest other) {
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    // Instance variables **********************************************
+
+    /**
+     * The number of lines kept per channel.
+     */
+    private final int size;
+
+    /**
+     * The age after which a line is forgotten, in milliseconds.
+     */
+    private final long maxAge;
+
+    /**
+     * The memory the lines may use, in bytes.
+     */
+    private final long maxMemory;
+
+    /**
+     * The lines of every channel.
+     */
+    private final Map<String, Ring> rings = new ConcurrentHashMap<>();
+
+    /**
+     * The number of the last line kept.
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * The memory used by the lines kept, estimated.
+     */
+    private final AtomicLong memory = new AtomicLong();
+
+    /**
+     * When the rings were last looked through for old lines, in milliseconds.
+     */
+    private final AtomicLong swept = new AtomicLong();
+
+    /**
+     * Held while memory is given back from every channel, so only one thread
+     * does it at a time.
+     */
+    private final Object evicting = new Object();
+
+    /**
+     * For every user who left, the number of the last line before they did.
+     */
+    private final Map<String, Departure> departures = new ConcurrentHashMap<>();
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs an empty history.
+     *
+     * @param size      The number of lines kept per channel.
+     * @param maxAge    The age after which a line is forgotten, in minutes.
+     * @param maxMemory The memory the lines may use, in megabytes.
+     */
+    public MessageHistory(int size, int maxAge, int maxMemory) {
+        this.size = Math.max(1, size);
+        this.maxAge = TimeUnit.MINUTES.toMillis(maxAge);
+        this.maxMemory = maxMemory * 1024L * 1024L;
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * This method keeps a chat line, evicting the oldest lines of its channel
+     * if needed, and the oldest lines of every channel if they use too much
+     * memory.
+     *
+     * @param loginID The loginID of the user who wrote the line.
+     * @param channel The channel it was written in.
+     * @param text    The text of the line.
+     */
+    public void add(String loginID, String channel, String text) {
+        long now = System.currentTimeMillis();
+        while (true) {
+            Ring ring = rings.computeIfAbsent(channel, name -> new Ring(size));
+            synchronized (ring) {
+
+                // The ring was dropped meanwhile, the channel gets a new one
+                if (ring.dropped) {
+                    continue;
+                }
+                JournalEntry entry = new JournalEntry(sequence.incrementAndGet(), now, loginID, channel, text);
+                if (ring.count == ring.entries.length) {
+                    evictOldest(ring);
+                }
+                ring.entries[(ring.head + ring.count) % ring.entries.length] = entry;
+                ring.count++;
+                memory.addAndGet(sizeOf(entry));
+                evictExpired(ring, now);
+            }
+            break;
+        }
+
+        long last = swept.get();
+        if (memory.get() > maxMemory || (now - last >= SWEEP_INTERVAL && swept.compareAndSet(last, now))) {
+            evictEverywhere(now);
+        }
+    }
+
+    /**
+     * This method returns the lines of a channel written after a given one.
+     *
+     * @param channel       The channel.
+     * @param afterSequence The number of the last line already seen.
+     * @return The lines still kept, oldest first.
+     */
+    public List<JournalEntry> since(String channel, long afterSequence) {
+        return select(channel, entry -> entry.getSequence() > afterSequence);
+    }
+
+    /**
+     * This method returns the lines of a channel written after a given time.
+     *
+     * @param channel The channel.
+     * @param time    The time, in milliseconds since the epoch.
+     * @return The lines still kept, oldest first.
+     */
+    public List<JournalEntry> after(String channel, long time) {
+        return select(channel, entry -> entry.getTime() > time);
+    }
+
+    /**
+     * This method remembers that a user left, so what is said from now on can
+     * be replayed to them. Only the first departure counts until they log in
+     * again.
+     *
+     * @param loginID The loginID of the user.
+     */
+    public void departed(String loginID) {
+        if (loginID == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        departures.putIfAbsent(loginID, new Departure(sequence.get(), now));
+
+        // Users who never come back are forgotten with the lines they missed
+        if (departures.size() > 1024) {
+            departures.values().removeIf(departure -> now - departure.time > maxAge);
+        }
+    }
+
+    /**
+     * This method returns what a user missed in a channel since they left,
+     * and forgets their departure.
+     *
+     * @param loginID The loginID of the user logging in.
+     * @param channel The channel.
+     * @return The lines written since the user left, empty if they never did.
+     */
+    public List<JournalEntry> missed(String loginID, String channel) {
+        Departure departure = departures.remove(loginID);
+        return departure == null ? Collections.emptyList() : since(channel, departure.sequence);
+    }
+
+    /**
+     * This method forgets that a user left, once what they missed was sent
+     * to them another way, such as when they resume their session.
+     *
+     * @param loginID The loginID of the user.
+     */
+    public void forget(String loginID) {
+        departures.remove(loginID);
+    }
+
+    /**
+     * @return The number of the last line kept, 0 if none was.
+     */
+    public long getLastSequence() {
+        return sequence.get();
+    }
+
+    /**
+     * @return The number of lines kept, in every channel.
+     */
+    public int getCount() {
+        int count = 0;
+        for (Ring ring : rings.values()) {
+            synchronized (ring) {
+                count += ring.count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The memory used by the lines kept, estimated in bytes.
+     */
+    public long getMemory() {
+        return memory.get();
+    }
+
+    /**
+     * @return The lines of a channel still kept that match a condition,
+     *         oldest first.
+     */
+    private List<JournalEntry> select(String channel, Predicate<JournalEntry> condition) {
+        Ring ring = rings.get(channel);
+        if (ring == null) {
+            return Collections.emptyList();
+        }
+        List<JournalEntry> entries = new ArrayList<>();
+        synchronized (ring) {
+            evictExpired(ring, System.currentTimeMillis());
+            for (int i = 0; i < ring.count; i++) {
+                JournalEntry entry = ring.get(i);
+                if (condition.test(entry)) {
+                    entries.add(entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * This method forgets the lines that are too old in every channel, drops
+     * the rings left empty, then forgets the oldest lines of any channel
+     * until the lines use a little less memory than allowed. The rings are
+     * locked one at a time.
+     *
+     * @param now The time, in milliseconds since the epoch.
+     */
+    private void evictEverywhere(long now) {
+        synchronized (evicting) {
+            for (Map.Entry<String, Ring> channel : rings.entrySet()) {
+                Ring ring = channel.getValue();
+                synchronized (ring) {
+                    evictExpired(ring, now);
+                    dropIfEmpty(channel.getKey(), ring);
+                }
+            }
+
+            if (memory.get() <= maxMemory) {
+                return;
+            }
+
+            // The rings by their oldest line, looked through once for many lines
+            PriorityQueue<Oldest> oldest = new PriorityQueue<>();
+            for (Map.Entry<String, Ring> channel : rings.entrySet()) {
+                Ring ring = channel.getValue();
+                synchronized (ring) {
+                    if (ring.count > 0) {
+                        oldest.add(new Oldest(channel.getKey(), ring, ring.get(0).getSequence()));
+                    }
+                }
+            }
+            long target = maxMemory * LOW_WATER / 100;
+            while (memory.get() > target && !oldest.isEmpty()) {
+                Oldest next = oldest.poll();
+                synchronized (next.ring) {
+                    if (next.ring.count == 0) {
+                        dropIfEmpty(next.channel, next.ring);
+                        continue;
+                    }
+                    evictOldest(next.ring);
+                    if (next.ring.count > 0) {
+                        oldest.add(new Oldest(next.channel, next.ring, next.ring.get(0).getSequence()));
+                    } else {
+                        dropIfEmpty(next.channel, next.ring);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * This method drops the ring of a channel that keeps no line. Called with
+     * the lock of the ring held.
+     */
+    private void dropIfEmpty(String channel, Ring ring) {
+        if (ring.count == 0 && rings.remove(channel, ring)) {
+            ring.dropped = true;
+        }
+    }
+
+    /**
+     * This method forgets the lines of a channel that are too old. Called with
+     * the lock of the ring held.
+     */
+    private void evictExpired(Ring ring, long now) {
+        while (ring.count > 0 && now - ring.get(0).getTime() > maxAge) {
+            evictOldest(ring);
+        }
+    }
+
+    /**
+     * This method forgets the oldest line of a channel. Called with the lock
+     * of the ring held.
+     */
+    private void evictOldest(Ring ring) {
+        JournalEntry entry = ring.entries[ring.head];
+        ring.entries[ring.head] = null;
+        ring.head = (ring.head + 1) % ring.entries.length;
+        ring.count--;
+        memory.addAndGet(-sizeOf(entry));
+    }
+
+    // Class methods ***************************************************
+
+    /**
+     * @return The memory used by a line, estimated in bytes.
+     */
+    private static long sizeOf(JournalEntry entry) {
+        return ENTRY_OVERHEAD + 2L * (entry.getLoginID().length() + entry.getChannel().length()
+                + entry.getText().length());
+    }
+
+    /**
+     * When a user left.
+     */
+    private static final class Departure {
+        final long sequence;
+        final long time;
+
+        Departure(long sequence, long time) {
+            this.sequence = sequence;
+            this.time = time;
+        }
+    }
+}
+//End of MessageHistory class
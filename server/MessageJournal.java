@@ -0,0 +1,658 @@
+package server;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * This class keeps every chat message in an append-only journal on disk, so
+ * the history survives a restart of the server. The journal is a directory of
+ * segment files of a fixed size, each named after the sequence number of its
+ * first message. Segments are memory-mapped: appending a message only copies
+ * its bytes into memory, and a background thread forces the written pages to
+ * disk at a fixed interval, for every message appended meanwhile at once.
+ *
+ * A message is stored as a record: [int size][int crc][long sequence]
+ * [long time][u16 length][loginID][u16 length][channel][text]. The size is
+ * written last, and a segment ends at the first record whose size is zero or
+ * whose crc is wrong, so a record torn by a crash is ignored when the journal
+ * is opened again. The offset of every record is kept in memory, so a message
+ * is found from its sequence number without reading the segments.
+ *
+ * Only the segment messages are appended to stays mapped. Once a new one is
+ * started, the previous one is forced to disk and unmapped, and the rare
+ * reads of older messages go through the file. Past a number of segments,
+ * the oldest ones are deleted.
+ */
+public class MessageJournal {
+    // Class variables *************************************************
+
+    /**
+     * The default size of a segment, in bytes.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The default time between two syncs, in milliseconds.
+     */
+    public static final int DEFAULT_SYNC_INTERVAL = 10;
+
+    /**
+     * The default number of segments kept.
+     */
+    public static final int DEFAULT_MAX_SEGMENTS = 16;
+
+    /**
+     * The size of a record without its strings.
+     */
+    private static final int RECORD_HEADER = 4 + 4 + 8 + 8 + 2 + 2;
+
+    /**
+     * How segment files are named, from their first sequence number.
+     */
+    private static final String SEGMENT_NAME = "journal-%020d.seg";
+
+    /**
+     * A segment file, mapped in memory while messages are appended to it.
+     */
+    private static final class Segment {
+
+        /**
+         * The sequence number of the first message of the segment.
+         */
+        final long firstSequence;
+
+        /**
+         * The file.
+         */
+        final Path path;
+
+        /**
+         * The content of the file, or null once it is unmapped.
+         */
+        MappedByteBuffer buffer;
+
+        /**
+         * Tells if messages are no longer appended to the segment: it is
+         * unmapped at the next sync.
+         */
+        boolean sealed;
+
+        /**
+         * Tells if the segment is no longer kept: its file is deleted once
+         * it is unmapped.
+         */
+        boolean expired;
+
+        /**
+         * The offset of every record, by sequence number.
+         */
+        int[] offsets = new int[1024];
+
+        /**
+         * The number of records.
+         */
+        int count;
+
+        /**
+         * Where the next record goes.
+         */
+        int position;
+
+        Segment(long firstSequence, Path path, MappedByteBuffer buffer) {
+            this.firstSequence = firstSequence;
+            this.path = path;
+            this.buffer = buffer;
+        }
+
+        void add(int offset) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = offset;
+        }
+    }
+
+    // Instance variables **********************************************
+
+    /**
+     * The directory holding the segments.
+     */
+    private final Path directory;
+
+    /**
+     * The size of a new segment, in bytes.
+     */
+    private final int segmentSize;
+
+    /**
+     * The largest number of segments kept, 0 for no limit.
+     */
+    private final int maxSegments;
+
+    /**
+     * Every segment, by the sequence number of its first message.
+     */
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+
+    /**
+     * The segment messages are appended to.
+     */
+    private Segment current;
+
+    /**
+     * The sequence number of the next message.
+     */
+    private long nextSequence = 1;
+
+    /**
+     * The segments written since the last sync.
+     */
+    private final Set<Segment> unsynced = new LinkedHashSet<>();
+
+    /**
+     * The highest sequence number forced to disk.
+     */
+    private volatile long durableSequence;
+
+    /**
+     * The lock held while appending and reading.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Computes the checksum of the records. Only used under the lock.
+     */
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * The thread forcing the written pages to disk.
+     */
+    private final Thread syncer;
+
+    /**
+     * Tells if the journal was closed.
+     */
+    private volatile boolean closed;
+
+    // Constructors ****************************************************
+
+    /**
+     * Opens the journal in a directory, keeping every segment.
+     *
+     * @param directory    The directory holding the segments.
+     * @param segmentSize  The size of a new segment, in bytes.
+     * @param syncInterval The time between two syncs, in milliseconds.
+     * @throws IOException If the directory or a segment cannot be opened.
+     */
+    public MessageJournal(Path directory, int segmentSize, int syncInterval) throws IOException {
+        this(directory, segmentSize, syncInterval, 0);
+    }
+
+    /**
+     * Opens the journal in a directory, creating it if needed. The segments
+     * already there are read again, so appending resumes after their last
+     * message.
+     *
+     * @param directory    The directory holding the segments.
+     * @param segmentSize  The size of a new segment, in bytes.
+     * @param syncInterval The time between two syncs, in milliseconds.
+     * @param maxSegments  The largest number of segments kept, the oldest
+     *                     being deleted; 0 keeps them all.
+     * @throws IOException If the directory or a segment cannot be opened.
+     */
+    public MessageJournal(Path directory, int segmentSize, int syncInterval, int maxSegments) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(0, maxSegments);
+        Files.createDirectories(directory);
+        recover();
+        expire();
+        durableSequence = nextSequence - 1;
+
+        syncer = new Thread(() -> syncEvery(syncInterval), "Journal syncer");
+        syncer.setDaemon(true);
+        syncer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "Journal closer"));
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * This method appends a chat message. It returns once the message is in
+     * memory; it reaches the disk at the next sync.
+     *
+     * @param loginID The loginID of the user who wrote the message.
+     * @param channel The channel the message was written in.
+     * @param text    The text of the message.
+     * @return The sequence number of the message.
+     * @throws IOException If the journal is closed, the message is larger than
+     *                     a segment or a new segment cannot be created.
+     */
+    public long append(String loginID, String channel, String text) throws IOException {
+        byte[] login = loginID.getBytes(StandardCharsets.UTF_8);
+        byte[] name = channel.getBytes(StandardCharsets.UTF_8);
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        if (login.length > 0xFFFF || name.length > 0xFFFF) {
+            throw new IOException("The loginID or channel is too long for the journal");
+        }
+        int size = RECORD_HEADER + login.length + name.length + body.length;
+        if (size > segmentSize) {
+            throw new IOException("The message is too large for the journal");
+        }
+
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IOException("The journal is closed");
+            }
+            // A recovered segment keeps the size it was created with
+            if (current == null || current.position + size > current.buffer.capacity()) {
+                roll();
+            }
+
+            long sequence = nextSequence;
+            ByteBuffer buffer = current.buffer;
+            int start = current.position;
+            buffer.putLong(start + 8, sequence);
+            buffer.putLong(start + 16, System.currentTimeMillis());
+            buffer.position(start + 24);
+            buffer.putShort((short) login.length).put(login);
+            buffer.putShort((short) name.length).put(name);
+            buffer.put(body);
+
+            buffer.putInt(start + 4, checksum(buffer, start, size));
+            buffer.putInt(start, size);
+
+            // The number is only taken once the record is complete, leaving no gap
+            nextSequence++;
+            current.add(start);
+            current.position += size;
+            unsynced.add(current);
+            return sequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * This method reads messages from the journal, in order.
+     *
+     * @param fromSequence The sequence number of the first message to read.
+     * @param max          The largest number of messages to read.
+     * @return The messages, empty if there are none from that sequence number.
+     */
+    public List<JournalEntry> read(long fromSequence, int max) {
+        List<JournalEntry> entries = new ArrayList<>();
+        Segment opened = null;
+        FileChannel file = null;
+        lock.lock();
+        try {
+            long sequence = Math.max(fromSequence, getFirstSequence());
+            while (entries.size() < max && sequence < nextSequence) {
+                Map.Entry<Long, Segment> found = segments.floorEntry(sequence);
+                if (found == null) {
+                    break;
+                }
+                Segment segment = found.getValue();
+                int index = (int) (sequence - segment.firstSequence);
+                if (index >= segment.count) {
+
+                    // Nothing was written in that segment after this one
+                    Long next = segments.higherKey(sequence);
+                    if (next == null) {
+                        break;
+                    }
+                    sequence = next;
+                    continue;
+                }
+                if (segment.buffer != null) {
+                    entries.add(decode(segment.buffer, segment.offsets[index]));
+                } else {
+                    if (opened != segment) {
+                        if (file != null) {
+                            file.close();
+                        }
+                        file = FileChannel.open(segment.path, StandardOpenOption.READ);
+                        opened = segment;
+                    }
+                    entries.add(readRecord(file, segment.offsets[index]));
+                }
+                sequence++;
+            }
+        } catch (IOException e) {
+
+            // The messages read so far are returned
+        } finally {
+            lock.unlock();
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // Only read from
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @return The sequence number of the oldest message kept, or of the next
+     *         message if there is none.
+     */
+    public long getFirstSequence() {
+        lock.lock();
+        try {
+            return segments.isEmpty() ? nextSequence : segments.firstKey();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The sequence number of the last message appended, 0 if there is
+     *         none.
+     */
+    public long getLastSequence() {
+        lock.lock();
+        try {
+            return nextSequence - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The sequence number of the last message forced to disk.
+     */
+    public long getDurableSequence() {
+        return durableSequence;
+    }
+
+    /**
+     * @return The number of segment files.
+     */
+    public int getSegmentCount() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The directory holding the segments.
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * This method forces what was appended to disk, stops the syncs and
+     * unmaps the segments. Appending afterwards fails; reading still works.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+        syncer.interrupt();
+        try {
+            syncer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        sync();
+
+        lock.lock();
+        try {
+            for (Segment segment : segments.values()) {
+                release(segment);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * This method forces the segments written since the last sync to disk, at
+     * a fixed interval, until the journal is closed.
+     */
+    private void syncEvery(int interval) {
+        try {
+            while (!closed) {
+                Thread.sleep(interval);
+                sync();
+            }
+        } catch (InterruptedException e) {
+            // The journal is closed
+        }
+    }
+
+    /**
+     * This method forces the segments written since the last sync to disk.
+     * Messages keep being appended meanwhile.
+     */
+    private void sync() {
+        List<Segment> toSync;
+        long sequence;
+        lock.lock();
+        try {
+            if (unsynced.isEmpty()) {
+                return;
+            }
+            toSync = new ArrayList<>(unsynced);
+            unsynced.clear();
+            sequence = nextSequence - 1;
+        } finally {
+            lock.unlock();
+        }
+
+        for (Segment segment : toSync) {
+            if (segment.buffer != null) {
+                segment.buffer.force();
+            }
+        }
+        durableSequence = sequence;
+
+        // The segments no longer appended to are on disk now
+        lock.lock();
+        try {
+            for (Segment segment : toSync) {
+                if (segment.sealed) {
+                    release(segment);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * This method unmaps a segment, and deletes its file if it is no longer
+     * kept. Called with the lock held, by the only thread forcing segments to
+     * disk or once it has stopped.
+     */
+    private void release(Segment segment) {
+        if (segment.buffer != null) {
+            unmap(segment.buffer);
+            segment.buffer = null;
+        }
+        if (segment.expired) {
+            try {
+                Files.deleteIfExists(segment.path);
+            } catch (IOException e) {
+                // Deleted with the next segment that expires
+            }
+        }
+    }
+
+    /**
+     * This method forgets the oldest segments past the largest number kept.
+     * Their files are deleted right away if they are unmapped, otherwise by
+     * the next sync. Called with the lock held.
+     */
+    private void expire() {
+        while (maxSegments > 0 && segments.size() > maxSegments) {
+            Segment oldest = segments.pollFirstEntry().getValue();
+            oldest.expired = true;
+            if (oldest.buffer == null) {
+                release(oldest);
+            }
+        }
+    }
+
+    /**
+     * This method starts a new segment, named after the next sequence number.
+     * The previous one is unmapped by the next sync. Called with the lock
+     * held.
+     */
+    private void roll() throws IOException {
+        Path path = directory.resolve(String.format(SEGMENT_NAME, nextSequence));
+        Segment next;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            next = new Segment(nextSequence, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+        }
+        if (current != null) {
+            current.sealed = true;
+            unsynced.add(current);
+        }
+        current = next;
+        segments.put(current.firstSequence, current);
+        expire();
+    }
+
+    /**
+     * This method reads the segments already in the directory and finds where
+     * to append the next message. Only the last one stays mapped.
+     */
+    private void recover() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "journal-*.seg")) {
+            files.forEach(paths::add);
+        }
+        Collections.sort(paths);
+
+        for (Path path : paths) {
+            String name = path.getFileName().toString();
+            long first = Long.parseLong(name.substring("journal-".length(), name.length() - ".seg".length()));
+            MappedByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            }
+
+            Segment segment = new Segment(first, path, buffer);
+            int position = 0;
+            while (position + RECORD_HEADER <= buffer.capacity()) {
+                int size = buffer.getInt(position);
+                if (size < RECORD_HEADER || position + size > buffer.capacity()
+                        || buffer.getInt(position + 4) != checksum(buffer, position, size)
+                        || buffer.getLong(position + 8) != first + segment.count) {
+                    break;
+                }
+                segment.add(position);
+                position += size;
+            }
+            segment.position = position;
+
+            if (current != null) {
+                current.sealed = true;
+                release(current);
+            }
+            segments.put(first, segment);
+            current = segment;
+            nextSequence = Math.max(nextSequence, first + segment.count);
+        }
+    }
+
+    /**
+     * @return The checksum of a record, from its sequence number to its end.
+     */
+    private int checksum(ByteBuffer buffer, int start, int size) {
+        ByteBuffer record = buffer.duplicate();
+        record.limit(start + size).position(start + 8);
+        crc.reset();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    // Class methods ***************************************************
+
+    /**
+     * @return The message stored at an offset of a segment file.
+     */
+    private static JournalEntry readRecord(FileChannel file, int offset) throws IOException {
+        ByteBuffer size = ByteBuffer.allocate(4);
+        readFully(file, size, offset);
+        ByteBuffer record = ByteBuffer.allocate(size.getInt(0));
+        readFully(file, record, offset);
+        return decode(record, 0);
+    }
+
+    /**
+     * This method fills a buffer from a position of a file.
+     */
+    private static void readFully(FileChannel file, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("The journal segment ends early");
+            }
+        }
+    }
+
+    /**
+     * This method unmaps a buffer right away rather than when it is garbage
+     * collected, through sun.misc.Unsafe since the JDK has no public way to.
+     * The buffer must no longer be used. If Unsafe is not available, the
+     * garbage collector unmaps it later.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Unmapped by the garbage collector instead
+        }
+    }
+
+    /**
+     * @return The message stored at an offset of a segment.
+     */
+    private static JournalEntry decode(ByteBuffer buffer, int offset) {
+        ByteBuffer record = buffer.duplicate();
+        int size = record.getInt(offset);
+        record.position(offset + 8);
+        long sequence = record.getLong();
+        long time = record.getLong();
+        String loginID = readString(record, record.getShort() & 0xFFFF);
+        String channel = readString(record, record.getShort() & 0xFFFF);
+        String text = readString(record, offset + size - record.position());
+        return new JournalEntry(sequence, time, loginID, channel, text);
+    }
+
+    /**
+     * @return The UTF-8 string of the next bytes of a buffer.
+     */
+    private static String readString(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+//End of MessageJournal class
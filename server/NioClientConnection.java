@@ -0,0 +1,437 @@
+package server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import common.*;
+
+/**
+ * This class is a client served by the NIO engine. Reads happen on the event
+ * loop owning the connection; messages sent from any thread are queued and
+ * written by that same loop, several at a time with a gathering write. The
+ * client may speak either the object stream of ocsf or the compact protocol.
+ */
+public class NioClientConnection extends ClientConnection {
+    // Class variables *************************************************
+
+    /**
+     * The initial size of the read buffer.
+     */
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * The largest number of messages written at once.
+     */
+    private static final int GATHER_SIZE = 64;
+
+    // Instance variables **********************************************
+
+    /**
+     * The engine that accepted this connection.
+     */
+    private final NioServerEngine engine;
+
+    /**
+     * The event loop serving this connection.
+     */
+    private final NioEventLoop loop;
+
+    /**
+     * The socket of the client.
+     */
+    private final SocketChannel channel;
+
+    /**
+     * The address of the client, kept once the socket is closed.
+     */
+    private final InetAddress address;
+
+    /**
+     * The key of the channel in the selector of the loop.
+     */
+    private SelectionKey key;
+
+    /**
+     * The bytes received and not handled yet.
+     */
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    /**
+     * The decoder of the messages received from a client speaking the object
+     * stream.
+     */
+    private final ObjectStreamCodec codec = new ObjectStreamCodec();
+
+    /**
+     * Tells if the protocol of the client is known.
+     */
+    private volatile boolean negotiated;
+
+    /**
+     * Tells if the client speaks the compact protocol.
+     */
+    private volatile boolean framed;
+
+    /**
+     * Tells if the long messages are compressed for the client.
+     */
+    private volatile boolean compressed;
+
+    /**
+     * The messages waiting to be written to the client.
+     */
+    private final OutboundQueue queue;
+
+    /**
+     * The header of the protocol, written before any message and outside the
+     * queue, so no overflow policy can drop it; null once written. Only used
+     * by the loop.
+     */
+    private ByteBuffer header;
+
+    /**
+     * The messages being written. Only used by the loop.
+     */
+    private final EncodedMessage[] writing = new EncodedMessage[GATHER_SIZE];
+
+    /**
+     * The bytes of the messages being written. Only used by the loop.
+     */
+    private final ByteBuffer[] buffers = new ByteBuffer[GATHER_SIZE];
+
+    /**
+     * The first message being written that is not fully written yet, and the
+     * end of the messages being written. Only used by the loop.
+     */
+    private int first;
+    private int last;
+
+    /**
+     * Tells if the loop already has to flush the pending bytes.
+     */
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    /**
+     * Tells if close() was called. The socket is closed once the pending bytes
+     * are written.
+     */
+    private final AtomicBoolean closing = new AtomicBoolean();
+
+    /**
+     * Tells if the socket was closed.
+     */
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs a connection for a socket accepted by the engine.
+     *
+     * @param engine  The engine that accepted the socket.
+     * @param loop    The event loop that will serve the socket.
+     * @param channel The socket, in non-blocking mode.
+     * @param queue   The queue of the messages waiting to be written.
+     */
+    NioClientConnection(NioServerEngine engine, NioEventLoop loop, SocketChannel channel, OutboundQueue queue) {
+        this.engine = engine;
+        this.loop = loop;
+        this.channel = channel;
+        this.address = channel.socket().getInetAddress();
+        this.queue = queue;
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * This method registers the connection with its loop. The client becomes
+     * connected once its first bytes tell which protocol it speaks.
+     */
+    void start() {
+        loop.execute(() -> {
+            try {
+                key = loop.register(channel, this);
+            } catch (IOException e) {
+                fail(e);
+            }
+        });
+    }
+
+    /**
+     * This method finds out which protocol the client speaks from its first
+     * bytes and answers with the header of that protocol.
+     *
+     * @return true if the protocol is known, false if more bytes are needed.
+     * @throws IOException If the client does not speak a known protocol.
+     */
+    private boolean negotiate() throws IOException {
+        if (!readBuffer.hasRemaining()) {
+            return false;
+        }
+        if (readBuffer.get(readBuffer.position()) == WireProtocol.HELLO[0]) {
+            if (readBuffer.remaining() < WireProtocol.HELLO.length) {
+                return false;
+            }
+            WireProtocol.checkHello(readBuffer);
+            framed = true;
+            header = ByteBuffer.wrap(WireProtocol.HELLO);
+        } else {
+            header = ByteBuffer.wrap(ObjectStreamCodec.STREAM_HEADER);
+        }
+        flushScheduled.set(true);
+        flush();
+        if (closed.get()) {
+            throw new EOFException("Connection lost while answering the client");
+        }
+        negotiated = true;
+        engine.addConnection(this);
+        engine.getHandler().clientConnected(this);
+        return true;
+    }
+
+    /**
+     * This method compresses the long messages for a client of the compact
+     * protocol.
+     */
+    @Override
+    public boolean setCompressed(boolean compressed) {
+        if (!framed) {
+            return false;
+        }
+        this.compressed = compressed;
+        return true;
+    }
+
+    /**
+     * This method queues a message to be written to the client.
+     */
+    @Override
+    public void sendToClient(Object msg) throws IOException {
+        send(new EncodedMessage(msg));
+    }
+
+    /**
+     * This method queues a message shared with other clients. Its bytes are
+     * encoded once for every client speaking the same protocol.
+     */
+    @Override
+    public void send(EncodedMessage message) throws IOException {
+        if (!negotiated || closing.get() || closed.get()) {
+            throw new SocketException("socket does not exist");
+        }
+
+        // Encodes now, so a message that cannot be encoded fails for the sender
+        message.getBytes(framed);
+        write(message);
+    }
+
+    /**
+     * This method queues a message and makes sure the loop will write it. If
+     * the client is too slow and the policy says so, it is disconnected.
+     *
+     * @param message The message to write.
+     */
+    private void write(EncodedMessage message) {
+        if (!queue.offer(message)) {
+            fail(new IOException("The client reads too slowly"));
+            return;
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.flushSoon(this);
+        }
+    }
+
+    /**
+     * This method writes as many queued messages as the socket accepts, up to
+     * GATHER_SIZE of them with each system call. It is called by the loop,
+     * either when messages were queued or when the socket can accept more
+     * bytes.
+     */
+    void flush() {
+        if (closed.get() || key == null) {
+            return;
+        }
+        try {
+            if (header != null) {
+                channel.write(header);
+                if (header.hasRemaining()) {
+                    key.interestOps(interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                header = null;
+            }
+            while (true) {
+                if (first == last) {
+                    first = 0;
+                    last = 0;
+                    EncodedMessage message;
+                    while (last < GATHER_SIZE && (message = queue.poll()) != null) {
+                        writing[last] = message;
+                        buffers[last] = message.getBytes(framed, compressed);
+                        last++;
+                    }
+                    if (last == 0) {
+                        break;
+                    }
+                }
+                channel.write(buffers, first, last - first);
+
+                while (first < last && !buffers[first].hasRemaining()) {
+                    engine.getMetrics().messageWritten(writing[first], buffers[first].limit());
+                    writing[first] = null;
+                    buffers[first] = null;
+                    first++;
+                }
+
+                // The socket is full, wait until it can accept more bytes
+                if (first < last) {
+                    key.interestOps(interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(interestOps());
+            flushScheduled.set(false);
+
+            if (closing.get()) {
+                closeChannel();
+            } else if (!queue.isEmpty() && flushScheduled.compareAndSet(false, true)) {
+                loop.flushSoon(this);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * @return The queue of the messages waiting to be written to the client.
+     */
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return queue;
+    }
+
+    /**
+     * @return The interest of the selector in the channel, apart from writing.
+     */
+    private int interestOps() {
+        return closing.get() ? 0 : SelectionKey.OP_READ;
+    }
+
+    /**
+     * This method reads the bytes available and handles every complete
+     * message. It is called by the loop.
+     */
+    void read() {
+        try {
+            if (channel.read(readBuffer) < 0) {
+                throw new EOFException("Connection closed by the client");
+            }
+            readBuffer.flip();
+            if (negotiated || negotiate()) {
+                Object msg;
+                while (!closing.get() && (msg = decode()) != null) {
+                    engine.getHandler().handleMessageFromClient(msg, this);
+                }
+            }
+            readBuffer.compact();
+
+            // A message larger than the buffer is being received
+            if (!readBuffer.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * @return The next message received, or null if more bytes are needed.
+     */
+    private Object decode() throws IOException {
+        return framed ? WireProtocol.decode(readBuffer, compressed) : codec.decode(readBuffer);
+    }
+
+    /**
+     * This method closes the connection with the client once the messages
+     * already sent are written.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closing.compareAndSet(false, true)) {
+            engine.removeConnection(this);
+            loop.execute(this::flush);
+            engine.getHandler().clientDisconnected(this);
+        }
+    }
+
+    /**
+     * This method closes the socket right away, without waiting for the
+     * pending bytes to be written.
+     */
+    @Override
+    public void abort() {
+        if (closing.compareAndSet(false, true)) {
+            closeChannel();
+            engine.getHandler().clientDisconnected(this);
+        } else {
+            closeChannel();
+        }
+    }
+
+    /**
+     * This method closes the socket after a problem and reports it.
+     *
+     * @param exception The problem that occurred.
+     */
+    private void fail(Exception exception) {
+        if (closeChannel()) {
+            engine.getHandler().clientException(this, exception);
+        }
+    }
+
+    /**
+     * This method closes the socket right away.
+     *
+     * @return true if the socket was still open.
+     */
+    private boolean closeChannel() {
+        if (!closed.compareAndSet(false, true)) {
+            return false;
+        }
+        engine.removeConnection(this);
+        queue.clear();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // The socket is unusable anyway
+        }
+        return true;
+    }
+
+    /**
+     * This method returns the address of the client.
+     */
+    @Override
+    public InetAddress getInetAddress() {
+        return address;
+    }
+
+    /**
+     * This method tells if the connection was neither closed nor lost.
+     */
+    @Override
+    public boolean isConnected() {
+        return !closing.get() && !closed.get();
+    }
+
+    @Override
+    public String toString() {
+        return address.getHostName() + " (" + address.getHostAddress() + ")";
+    }
+}
+//End of NioClientConnection class
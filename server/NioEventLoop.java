@@ -0,0 +1,235 @@
+package server;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class is one event-loop thread of the NIO engine. It owns a selector
+ * and serves every connection registered with it. Other threads hand work to
+ * the loop through execute().
+ *
+ * With a flush tick, connections given new messages are not flushed right
+ * away: the loop flushes them all once per tick, so the messages a client got
+ * during the tick are written together.
+ *
+ * The thread is a daemon, and shutdown() stops it once its connections are
+ * closed, so a closed engine never keeps the program running.
+ */
+class NioEventLoop implements Runnable {
+    // Class variables *************************************************
+
+    /**
+     * The longest time a stopping loop keeps writing to the connections
+     * being closed, in milliseconds.
+     */
+    static final int STOP_TIMEOUT = 2000;
+
+    // Instance variables **********************************************
+
+    /**
+     * The selector waiting for the connections of this loop.
+     */
+    private final Selector selector;
+
+    /**
+     * The work handed to this loop by other threads.
+     */
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The thread running this loop.
+     */
+    private final Thread thread;
+
+    /**
+     * The time between two flushes, in nanoseconds; 0 flushes right away.
+     */
+    private final long flushInterval;
+
+    /**
+     * The connections to flush at the next tick.
+     */
+    private final ConcurrentLinkedQueue<NioClientConnection> toFlush = new ConcurrentLinkedQueue<>();
+
+    /**
+     * When the next tick is due, from System.nanoTime(). Only used by the loop.
+     */
+    private long nextFlush;
+
+    /**
+     * Tells if the loop was told to stop.
+     */
+    private volatile boolean stopping;
+
+    /**
+     * When the loop stops even if connections are still open, from
+     * System.nanoTime().
+     */
+    private volatile long stopBy;
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs and starts an event loop.
+     *
+     * @param name          The name of the loop thread.
+     * @param flushInterval The time between two flushes, in milliseconds; 0
+     *                      flushes connections as soon as they have messages.
+     * @throws IOException If the selector could not be opened.
+     */
+    NioEventLoop(String name, int flushInterval) throws IOException {
+        this.selector = Selector.open();
+        this.flushInterval = TimeUnit.MILLISECONDS.toNanos(flushInterval);
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * This method runs a task on the loop thread.
+     *
+     * @param task The task to run.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * This method has a connection flushed, right away or at the next tick.
+     *
+     * @param connection The connection that has messages to write.
+     */
+    void flushSoon(NioClientConnection connection) {
+        if (flushInterval == 0) {
+            execute(connection::flush);
+        } else {
+            toFlush.add(connection);
+        }
+    }
+
+    /**
+     * This method registers a channel with the selector of this loop. It must
+     * be called from the loop thread.
+     *
+     * @param channel    The channel to register.
+     * @param connection The connection served through the channel.
+     * @return The key of the channel.
+     * @throws ClosedChannelException If the channel was closed meanwhile.
+     */
+    SelectionKey register(SocketChannel channel, NioClientConnection connection) throws ClosedChannelException {
+        return channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    /**
+     * This method has the loop stop once the connections it serves are
+     * closed, or after STOP_TIMEOUT. The connections still open then are
+     * closed without being flushed.
+     */
+    void shutdown() {
+        stopBy = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STOP_TIMEOUT);
+        stopping = true;
+        selector.wakeup();
+    }
+
+    /**
+     * This method waits for the thread of a stopping loop to end.
+     *
+     * @throws InterruptedException If the thread was interrupted while
+     *                              waiting.
+     */
+    void awaitStopped() throws InterruptedException {
+        if (Thread.currentThread() != thread) {
+            thread.join(STOP_TIMEOUT + 1000);
+        }
+    }
+
+    /**
+     * @return true if the loop was told to stop.
+     */
+    boolean isStopping() {
+        return stopping;
+    }
+
+    /**
+     * This method waits for events and dispatches them to the connections,
+     * until the loop is stopped.
+     */
+    public void run() {
+        while (!stopping || (!selector.keys().isEmpty() && System.nanoTime() - stopBy < 0)) {
+            try {
+
+                // Tasks queued by the loop itself did not wake the selector
+                if (!tasks.isEmpty()) {
+                    selector.selectNow();
+                } else if (stopping) {
+
+                    // The keys of closed channels only go away at the next select
+                    selector.select(10);
+                } else if (flushInterval > 0) {
+                    long wait = nextFlush - System.nanoTime();
+                    if (wait > 0) {
+                        selector.select(TimeUnit.NANOSECONDS.toMillis(wait + 999_999));
+                    } else {
+                        selector.selectNow();
+                    }
+                } else {
+                    selector.select();
+                }
+            } catch (IOException e) {
+                continue;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                NioClientConnection connection = (NioClientConnection) key.attachment();
+                try {
+                    if (key.isValid() && key.isWritable()) {
+                        connection.flush();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        connection.read();
+                    }
+                } catch (CancelledKeyException e) {
+                    // The connection was closed by another thread
+                }
+            }
+
+            if (flushInterval > 0 && System.nanoTime() - nextFlush >= 0) {
+                NioClientConnection connection;
+                while ((connection = toFlush.poll()) != null) {
+                    connection.flush();
+                }
+                nextFlush = System.nanoTime() + flushInterval;
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // The socket is unusable anyway
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Nothing else to release
+        }
+    }
+}
+//End of NioEventLoop class
@@ -0,0 +1,277 @@
+package server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class serves every client from a few event-loop threads using
+ * java.nio selectors, instead of dedicating a thread to each client. It
+ * speaks the same object stream as ocsf, so existing clients keep working, as
+ * well as the compact protocol.
+ */
+public class NioServerEngine implements ServerEngine {
+    // Instance variables **********************************************
+
+    /**
+     * The hooks called while serving the clients.
+     */
+    private final ServerHandler handler;
+
+    /**
+     * The port to listen on.
+     */
+    private int port;
+
+    /**
+     * The settings of the engine.
+     */
+    private final EngineOptions options;
+
+    /**
+     * The event loops serving the clients, started the first time the server
+     * listens and stopped when it is closed.
+     */
+    private volatile NioEventLoop[] loops;
+
+    /**
+     * The index of the loop that gets the next client.
+     */
+    private int nextLoop;
+
+    /**
+     * The socket accepting new connections, or null if not listening.
+     */
+    private volatile ServerSocketChannel serverChannel;
+
+    /**
+     * The last socket let go of by switchPort(): its acceptor ends without
+     * the server having stopped listening.
+     */
+    private volatile ServerSocketChannel switched;
+
+    /**
+     * Every client currently connected.
+     */
+    private final Set<NioClientConnection> connections = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The counters of the engine.
+     */
+    private final ServerMetrics metrics = new ServerMetrics();
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs the NIO engine.
+     *
+     * @param port    The port to listen on.
+     * @param handler The hooks called while serving the clients.
+     * @param options The settings of the engine.
+     */
+    public NioServerEngine(int port, ServerHandler handler, EngineOptions options) {
+        this.port = port;
+        this.handler = handler;
+        this.options = options;
+    }
+
+    // Instance methods ************************************************
+
+    public synchronized void listen() throws IOException {
+        if (isListening()) {
+            return;
+        }
+        if (loops == null) {
+            NioEventLoop[] started = new NioEventLoop[options.getLoops()];
+            for (int i = 0; i < started.length; i++) {
+                started[i] = new NioEventLoop("NIO event loop " + i, options.getFlushInterval());
+            }
+            loops = started;
+        }
+
+        ServerSocketChannel channel = bind(port);
+        serverChannel = channel;
+        new Thread(() -> acceptConnections(channel), "NIO acceptor").start();
+    }
+
+    public synchronized void switchPort(int port) throws IOException {
+        ServerSocketChannel previous = serverChannel;
+        if (previous == null) {
+            this.port = port;
+            return;
+        }
+        ServerSocketChannel channel = bind(port);
+        this.port = port;
+        serverChannel = channel;
+        switched = previous;
+        new Thread(() -> acceptConnections(channel), "NIO acceptor").start();
+        previous.close();
+    }
+
+    /**
+     * This method opens the socket accepting new connections.
+     *
+     * @param port The port to listen on.
+     * @return The socket.
+     * @throws IOException If the port could not be bound.
+     */
+    private static ServerSocketChannel bind(int port) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * This method accepts new connections until the server stops listening and
+     * hands each of them to an event loop.
+     *
+     * @param channel The socket accepting the connections.
+     */
+    private void acceptConnections(ServerSocketChannel channel) {
+        handler.serverStarted();
+        try {
+            while (true) {
+                SocketChannel socket = channel.accept();
+                try {
+                    socket.configureBlocking(false);
+                    socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                } catch (IOException e) {
+                    socket.close();
+                    continue;
+                }
+                NioEventLoop loop = nextLoop();
+                if (loop == null) {
+
+                    // The engine was closed meanwhile
+                    socket.close();
+                    continue;
+                }
+                new NioClientConnection(this, loop, socket, options.newOutboundQueue()).start();
+            }
+        } catch (IOException e) {
+            // The socket was closed by stopListening() or switchPort()
+        } finally {
+            if (channel != switched) {
+                handler.serverStopped();
+            }
+        }
+    }
+
+    /**
+     * @return The event loop that gets the next client, or null if the loops
+     *         were stopped.
+     */
+    private NioEventLoop nextLoop() {
+        NioEventLoop[] current = loops;
+        if (current == null || current[0].isStopping()) {
+            return null;
+        }
+        nextLoop = (nextLoop + 1) % current.length;
+        return current[nextLoop];
+    }
+
+    public synchronized void stopListening() {
+        ServerSocketChannel channel = serverChannel;
+        serverChannel = null;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // The socket is unusable anyway
+            }
+        }
+    }
+
+    /**
+     * The connections are closed once what was sent to them is written, then
+     * the event loops are stopped; listen() starts new ones.
+     */
+    public synchronized void close() throws IOException {
+        stopListening();
+        for (NioClientConnection connection : connections) {
+            connection.close();
+        }
+        NioEventLoop[] stopped = loops;
+        loops = null;
+        if (stopped != null) {
+            for (NioEventLoop loop : stopped) {
+                loop.shutdown();
+            }
+            try {
+                for (NioEventLoop loop : stopped) {
+                    loop.awaitStopped();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public boolean isListening() {
+        return serverChannel != null;
+    }
+
+    public int getNumberOfClients() {
+        return connections.size();
+    }
+
+    public ClientConnection[] getClientConnections() {
+        return connections.toArray(new ClientConnection[0]);
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public void sendToAllClients(Object msg) {
+        EncodedMessage message = new EncodedMessage(msg);
+        for (NioClientConnection connection : connections) {
+            try {
+                connection.send(message);
+            } catch (IOException e) {
+                // The client is leaving, it is cleaned up by its own loop
+            }
+        }
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return The hooks called while serving the clients.
+     */
+    ServerHandler getHandler() {
+        return handler;
+    }
+
+    /**
+     * This method adds a connection once its protocol is known.
+     *
+     * @param connection The connection that started.
+     */
+    void addConnection(NioClientConnection connection) {
+        connections.add(connection);
+    }
+
+    /**
+     * This method forgets a connection that was closed.
+     *
+     * @param connection The connection that was closed.
+     */
+    void removeConnection(NioClientConnection connection) {
+        connections.remove(connection);
+    }
+}
+//End of NioServerEngine class
@@ -0,0 +1,293 @@
+package server;
+
+import java.io.*;
+import java.nio.*;
+import java.util.ArrayList;
+
+import common.*;
+
+/**
+ * This class reads and writes the Java serialization stream spoken by ocsf
+ * clients, without blocking. Strings, which is what chat clients send, are
+ * handled directly; any other object goes through an ObjectInputStream or
+ * ObjectOutputStream.
+ */
+public class ObjectStreamCodec {
+    // Class variables *************************************************
+
+    /**
+     * The header written at the start of every object stream.
+     */
+    public static final byte[] STREAM_HEADER = { (byte) 0xAC, (byte) 0xED, 0x00, 0x05 };
+
+    /**
+     * The largest message accepted from a client.
+     */
+    public static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+    private static final byte TC_NULL = 0x70;
+    private static final byte TC_REFERENCE = 0x71;
+    private static final byte TC_STRING = 0x74;
+    private static final byte TC_RESET = 0x79;
+    private static final byte TC_LONGSTRING = 0x7C;
+    private static final int BASE_WIRE_HANDLE = 0x7E0000;
+
+    // Instance variables **********************************************
+
+    /**
+     * Tells if the stream header of the client was already read.
+     */
+    private boolean headerRead;
+
+    /**
+     * The strings read since the last reset, indexed by their stream handle.
+     */
+    private final ArrayList<Object> handles = new ArrayList<>();
+
+    // Instance methods ************************************************
+
+    /**
+     * This method reads the next message from the bytes received so far. If the
+     * message is not complete, nothing is consumed and null is returned.
+     *
+     * @param in The bytes received, ready to be read.
+     * @return The message, or null if more bytes are needed.
+     * @throws IOException If the stream is corrupted.
+     */
+    public Object decode(ByteBuffer in) throws IOException {
+        if (!headerRead) {
+            if (in.remaining() < STREAM_HEADER.length) {
+                return null;
+            }
+            for (byte b : STREAM_HEADER) {
+                if (in.get() != b) {
+                    throw new StreamCorruptedException("Invalid stream header");
+                }
+            }
+            headerRead = true;
+        }
+
+        // The client resets its stream after every message, and null
+        // messages carry nothing to handle
+        while (in.hasRemaining() && (in.get(in.position()) == TC_RESET || in.get(in.position()) == TC_NULL)) {
+            if (in.get() == TC_RESET) {
+                handles.clear();
+            }
+        }
+        if (!in.hasRemaining()) {
+            return null;
+        }
+
+        int start = in.position();
+        switch (in.get(start)) {
+
+        case TC_STRING:
+            if (in.remaining() < 3) {
+                return null;
+            }
+            return readString(in, start, 3, in.getShort(start + 1) & 0xFFFF);
+
+        case TC_LONGSTRING:
+            if (in.remaining() < 9) {
+                return null;
+            }
+            long length = in.getLong(start + 1);
+            if (length > MAX_MESSAGE_SIZE) {
+                throw new StreamCorruptedException("Message too large: " + length + " bytes");
+            }
+            return readString(in, start, 9, (int) length);
+
+        case TC_REFERENCE:
+            if (in.remaining() < 5) {
+                return null;
+            }
+            int handle = in.getInt(start + 1) - BASE_WIRE_HANDLE;
+            if (handle < 0 || handle >= handles.size()) {
+                throw new StreamCorruptedException("Unknown handle: " + handle);
+            }
+            in.position(start + 5);
+            return handles.get(handle);
+
+        default:
+            return readObject(in);
+        }
+    }
+
+    /**
+     * This method reads a string once its whole content is available.
+     */
+    private Object readString(ByteBuffer in, int start, int headerSize, int length) throws IOException {
+        if (in.remaining() < headerSize + length) {
+            return null;
+        }
+        in.position(start + headerSize);
+        String s = readModifiedUtf(in, length);
+        handles.add(s);
+        return s;
+    }
+
+    /**
+     * This method reads any other object with an ObjectInputStream. If the
+     * object is incomplete, the position of the buffer is restored.
+     */
+    private Object readObject(ByteBuffer in) throws IOException {
+        int start = in.position();
+        ByteBufferInputStream body = new ByteBufferInputStream(in);
+        try (ObjectInputStream input = new ObjectInputStream(
+                new SequenceInputStream(new ByteArrayInputStream(STREAM_HEADER), body))) {
+            Object msg = input.readObject();
+
+            // Handles of objects read this way are not tracked
+            handles.clear();
+            return msg;
+        } catch (EOFException e) {
+            if (in.limit() - start > MAX_MESSAGE_SIZE) {
+                throw new StreamCorruptedException("Message too large");
+            }
+            in.position(start);
+            return null;
+        } catch (ClassNotFoundException e) {
+            throw new InvalidClassException(e.getMessage());
+        }
+    }
+
+    // Class methods ***************************************************
+
+    /**
+     * This method encodes a message the way an ObjectOutputStream would,
+     * without the stream header. Objects other than strings are preceded by a
+     * reset so the receiver does not mix up their handles with earlier ones.
+     *
+     * @param msg The message to encode.
+     * @return The encoded message, ready to be written.
+     * @throws IOException If the message cannot be serialized.
+     */
+    public static ByteBuffer encode(Object msg) throws IOException {
+        msg = toLegacy(msg);
+        if (msg instanceof String) {
+            String s = (String) msg;
+            int length = modifiedUtfLength(s);
+            ByteBuffer out;
+            if (length <= 0xFFFF) {
+                out = ByteBuffer.allocate(3 + length);
+                out.put(TC_STRING).putShort((short) length);
+            } else {
+                out = ByteBuffer.allocate(9 + length);
+                out.put(TC_LONGSTRING).putLong(length);
+            }
+            writeModifiedUtf(out, s);
+            out.flip();
+            return out;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+            output.writeObject(msg);
+        }
+        byte[] serialized = bytes.toByteArray();
+        ByteBuffer out = ByteBuffer.allocate(1 + serialized.length - STREAM_HEADER.length);
+        out.put(TC_RESET).put(serialized, STREAM_HEADER.length, serialized.length - STREAM_HEADER.length);
+        out.flip();
+        return out;
+    }
+
+    /**
+     * This method returns the form of a message understood by clients speaking
+     * the object stream, which only know about strings: a ChatMessage is sent
+     * as the text it displays.
+     *
+     * @param msg The message to send.
+     * @return The message to serialize.
+     */
+    public static Object toLegacy(Object msg) {
+        return msg instanceof ChatMessage ? msg.toString() : msg;
+    }
+
+    /**
+     * This method computes the length of a string in modified UTF-8.
+     */
+    private static int modifiedUtfLength(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length += 1;
+            } else if (c <= 0x07FF) {
+                length += 2;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * This method writes a string in modified UTF-8.
+     */
+    private static void writeModifiedUtf(ByteBuffer out, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                out.put((byte) c);
+            } else if (c <= 0x07FF) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * This method reads a string written in modified UTF-8.
+     */
+    private static String readModifiedUtf(ByteBuffer in, int length) throws UTFDataFormatException {
+        char[] chars = new char[length];
+        int count = 0;
+        int end = in.position() + length;
+        while (in.position() < end) {
+            int b = in.get() & 0xFF;
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+            } else if ((b & 0xE0) == 0xC0 && in.position() < end) {
+                chars[count++] = (char) (((b & 0x1F) << 6) | (in.get() & 0x3F));
+            } else if ((b & 0xF0) == 0xE0 && in.position() + 1 < end) {
+                chars[count++] = (char) (((b & 0x0F) << 12) | ((in.get() & 0x3F) << 6) | (in.get() & 0x3F));
+            } else {
+                throw new UTFDataFormatException("Malformed string");
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    // Inner classes ***************************************************
+
+    /**
+     * This class reads a ByteBuffer as an InputStream, moving its position.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer in;
+
+        ByteBufferInputStream(ByteBuffer in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() {
+            return in.hasRemaining() ? in.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!in.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, in.remaining());
+            in.get(b, off, len);
+            return len;
+        }
+    }
+}
+//End of ObjectStreamCodec class
@@ -0,0 +1,128 @@
+package server;
+
+import java.io.*;
+import java.net.*;
+
+import ocsf.server.*;
+
+/**
+ * This class adapts an ocsf ConnectionToClient to a ClientConnection. The
+ * adapter is saved in the information of the ConnectionToClient so every hook
+ * sees the same instance.
+ */
+public class OcsfClientConnection extends ClientConnection {
+    // Class variables *************************************************
+
+    /**
+     * The information type under which the adapter is saved.
+     */
+    private static final String ADAPTER_INFO = "ocsf.adapter";
+
+    // Instance variables **********************************************
+
+    /**
+     * The ocsf connection served by this adapter.
+     */
+    private final ConnectionToClient client;
+
+    /**
+     * Tells if close() was called.
+     */
+    private volatile boolean closed;
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs an adapter for an ocsf connection.
+     *
+     * @param client The ocsf connection.
+     */
+    private OcsfClientConnection(ConnectionToClient client) {
+        this.client = client;
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * This method sends a message through the ocsf connection.
+     */
+    @Override
+    public void sendToClient(Object msg) throws IOException {
+        client.sendToClient(ObjectStreamCodec.toLegacy(msg));
+    }
+
+    /**
+     * This method closes the ocsf connection.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        client.close();
+    }
+
+    /**
+     * This method returns the address of the client.
+     */
+    @Override
+    public InetAddress getInetAddress() {
+        return client.getInetAddress();
+    }
+
+    /**
+     * This method tells if the connection was not closed and its ocsf thread
+     * is still running.
+     */
+    @Override
+    public boolean isConnected() {
+        return !closed && client.isAlive();
+    }
+
+    /**
+     * This method saves the information in the ocsf connection.
+     */
+    @Override
+    public void setInfo(String infoType, Object info) {
+        client.setInfo(infoType, info);
+    }
+
+    /**
+     * This method reads the information from the ocsf connection.
+     */
+    @Override
+    public Object getInfo(String infoType) {
+        return client.getInfo(infoType);
+    }
+
+    /**
+     * @return The ocsf connection served by this adapter.
+     */
+    public ConnectionToClient getConnectionToClient() {
+        return client;
+    }
+
+    @Override
+    public String toString() {
+        return client.toString();
+    }
+
+    // Class methods ***************************************************
+
+    /**
+     * This method returns the adapter of an ocsf connection, creating it the
+     * first time.
+     *
+     * @param client The ocsf connection.
+     * @return The adapter of the connection.
+     */
+    public static OcsfClientConnection of(ConnectionToClient client) {
+        synchronized (client) {
+            OcsfClientConnection adapter = (OcsfClientConnection) client.getInfo(ADAPTER_INFO);
+            if (adapter == null) {
+                adapter = new OcsfClientConnection(client);
+                client.setInfo(ADAPTER_INFO, adapter);
+            }
+            return adapter;
+        }
+    }
+}
+//End of OcsfClientConnection class
@@ -0,0 +1,108 @@
+package server;
+
+import java.io.*;
+
+import ocsf.server.*;
+
+/**
+ * This class is the original engine: ocsf's AbstractServer, which serves every
+ * client on its own ConnectionToClient thread. It only speaks the object
+ * stream, so it does not accept clients asking for the compact protocol.
+ */
+public class OcsfServerEngine implements ServerEngine {
+    // Instance variables **********************************************
+
+    /**
+     * The ocsf server doing the actual work.
+     */
+    private final AbstractServer server;
+
+    /**
+     * The counters of the engine.
+     */
+    private final ServerMetrics metrics = new ServerMetrics();
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs the engine around an ocsf server. The server is expected to
+     * forward its hooks to a ServerHandler using OcsfClientConnection.of().
+     *
+     * @param server The ocsf server.
+     */
+    public OcsfServerEngine(AbstractServer server) {
+        this.server = server;
+    }
+
+    // Instance methods ************************************************
+
+    public void listen() throws IOException {
+        server.listen();
+    }
+
+    public void stopListening() {
+        server.stopListening();
+    }
+
+    public void close() throws IOException {
+        server.close();
+    }
+
+    public boolean isListening() {
+        return server.isListening();
+    }
+
+    public int getNumberOfClients() {
+        return server.getNumberOfClients();
+    }
+
+    public ClientConnection[] getClientConnections() {
+        Thread[] threads = server.getClientConnections();
+        int count = 0;
+
+        // The thread list may end with empty slots if a client left meanwhile
+        while (count < threads.length && threads[count] != null) {
+            count++;
+        }
+
+        ClientConnection[] connections = new ClientConnection[count];
+        for (int i = 0; i < count; i++) {
+            connections[i] = OcsfClientConnection.of((ConnectionToClient) threads[i]);
+        }
+        return connections;
+    }
+
+    public int getPort() {
+        return server.getPort();
+    }
+
+    public void setPort(int port) {
+        server.setPort(port);
+    }
+
+    /**
+     * ocsf listens on a single socket, which it only lets go some time after
+     * being told to stop: the port can only be switched while not listening.
+     */
+    public void switchPort(int port) throws IOException {
+        if (server.isListening()) {
+            throw new IOException("the ocsf engine cannot listen on two ports. Type '#stop' first, then '#setport "
+                    + port + "' and '#start'.");
+        }
+        server.setPort(port);
+    }
+
+    public void sendToAllClients(Object msg) {
+        server.sendToAllClients(ObjectStreamCodec.toLegacy(msg));
+    }
+
+    /**
+     * The ocsf engine writes to each client right away, through object
+     * streams it does not expose: only the messages received and the fan-out
+     * time are counted.
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+}
+//End of OcsfServerEngine class
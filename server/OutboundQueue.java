@@ -0,0 +1,285 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class holds the messages waiting to be written to one client. Senders
+ * only add to the queue and return; a writer owned by the connection drains
+ * it. The queue is bounded, and its policy decides what happens when a client
+ * reads slower than messages arrive.
+ */
+public class OutboundQueue {
+    // Class variables *************************************************
+
+    /**
+     * The default number of messages a queue holds.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * What to do when a message is added to a full queue.
+     */
+    public enum Policy {
+
+        /**
+         * Forget the oldest message waiting.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Replace every message waiting by a single notice telling how many
+         * were skipped, so the client catches up at once.
+         */
+        COALESCE,
+
+        /**
+         * Disconnect the client.
+         */
+        DISCONNECT;
+
+        /**
+         * This method reads a policy written as on the command line, for
+         * instance "drop-oldest".
+         *
+         * @param name The name of the policy.
+         * @return The policy.
+         * @throws IllegalArgumentException If no policy has that name.
+         */
+        public static Policy parse(String name) {
+            try {
+                return valueOf(name.toUpperCase().replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown overflow policy '" + name + "'.");
+            }
+        }
+    }
+
+    // Instance variables **********************************************
+
+    /**
+     * The messages waiting, oldest first.
+     */
+    private final ArrayDeque<EncodedMessage> messages = new ArrayDeque<>();
+
+    /**
+     * The number of messages the queue holds.
+     */
+    private final int capacity;
+
+    /**
+     * What to do when the queue is full.
+     */
+    private final Policy policy;
+
+    /**
+     * The lock protecting the queue and its counters.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Signaled when a message is added.
+     */
+    private final Condition notEmpty = lock.newCondition();
+
+    /**
+     * The number of messages added.
+     */
+    private long enqueued;
+
+    /**
+     * The number of messages taken by the writer.
+     */
+    private long dequeued;
+
+    /**
+     * The number of messages forgotten because the queue was full.
+     */
+    private long dropped;
+
+    /**
+     * The largest number of messages that waited at the same time.
+     */
+    private int maxDepth;
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs an empty queue.
+     *
+     * @param capacity The number of messages the queue holds.
+     * @param policy   What to do when the queue is full.
+     */
+    public OutboundQueue(int capacity, Policy policy) {
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * This method adds a message, applying the policy if the queue is full.
+     *
+     * @param message The message to add.
+     * @return false if the queue was full and the client must be disconnected.
+     */
+    public boolean offer(EncodedMessage message) {
+        lock.lock();
+        try {
+            if (messages.size() >= capacity) {
+                switch (policy) {
+
+                case DROP_OLDEST:
+                    messages.pollFirst();
+                    dropped++;
+                    break;
+
+                case COALESCE:
+                    int skipped = messages.size();
+                    messages.clear();
+                    dropped += skipped;
+                    messages.addLast(new EncodedMessage(
+                            "> " + skipped + " messages were skipped because your connection is too slow."));
+                    break;
+
+                case DISCONNECT:
+                    dropped++;
+                    return false;
+                }
+            }
+
+            messages.addLast(message);
+            enqueued++;
+            maxDepth = Math.max(maxDepth, messages.size());
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * This method takes the oldest message without waiting.
+     *
+     * @return The oldest message, or null if the queue is empty.
+     */
+    public EncodedMessage poll() {
+        lock.lock();
+        try {
+            EncodedMessage message = messages.pollFirst();
+            if (message != null) {
+                dequeued++;
+            }
+            return message;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * This method takes the oldest message, waiting for one if needed.
+     *
+     * @return The oldest message.
+     * @throws InterruptedException If the writer is interrupted while waiting.
+     */
+    public EncodedMessage take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (messages.isEmpty()) {
+                notEmpty.await();
+            }
+            dequeued++;
+            return messages.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * This method forgets every message waiting.
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            messages.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of messages waiting.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return messages.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if no message is waiting.
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return The number of messages added.
+     */
+    public long getEnqueued() {
+        lock.lock();
+        try {
+            return enqueued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of messages taken by the writer.
+     */
+    public long getDequeued() {
+        lock.lock();
+        try {
+            return dequeued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of messages forgotten because the queue was full.
+     */
+    public long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The largest number of messages that waited at the same time.
+     */
+    public int getMaxDepth() {
+        lock.lock();
+        try {
+            return maxDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return What happens when the queue is full.
+     */
+    public Policy getPolicy() {
+        return policy;
+    }
+}
+//End of OutboundQueue class
@@ -0,0 +1,325 @@
+package server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * This class tells the users who comes and goes without a notice for every
+ * event. Users logging on and off, and joining and leaving channels, are
+ * gathered for a short window, then every user is sent a single notice
+ * naming them all: those who logged on and off, and those who joined and
+ * left the channels the user is in. A user who leaves and comes back
+ * within the window, or the other way round, is not mentioned at all, so a
+ * storm of clients reconnecting costs almost nothing. A window of 0 sends
+ * every event on its own, right away.
+ *
+ * The tracker also keeps the loginIDs of the users logged on, sorted, so
+ * "#who" is answered without going through the connections.
+ */
+public class PresenceTracker {
+    // Class variables *************************************************
+
+    /**
+     * The default time events are gathered for, in milliseconds.
+     */
+    public static final int DEFAULT_WINDOW = 250;
+
+    /**
+     * The largest number of loginIDs named in a notice; the others are only
+     * counted.
+     */
+    public static final int MAX_NAMES = 20;
+
+    /**
+     * The key of the events of the whole server rather than of a channel.
+     */
+    private static final String SERVER = "";
+
+    /**
+     * Sends the notices.
+     */
+    public interface Publisher {
+
+        /**
+         * This method sends the notices of a window. Every user should get
+         * the lines meant for them in a single message: the lines for every
+         * user, then those of each channel they are in.
+         *
+         * @param everyone The lines for every user, or null if there are
+         *                 none.
+         * @param channels The lines for the members of each channel, by
+         *                 channel.
+         */
+        void publish(String everyone, Map<String, String> channels);
+    }
+
+    /**
+     * The users who arrived and left during the window, in a channel or on
+     * the server.
+     */
+    private static final class Delta {
+        final Set<String> arrived = new LinkedHashSet<>();
+        final Set<String> left = new LinkedHashSet<>();
+    }
+
+    // Instance variables **********************************************
+
+    /**
+     * The time events are gathered for, in milliseconds.
+     */
+    private final int window;
+
+    /**
+     * Sends the notices.
+     */
+    private final Publisher publisher;
+
+    /**
+     * The loginIDs of the users logged on to this server.
+     */
+    private final ConcurrentSkipListSet<String> online = new ConcurrentSkipListSet<>();
+
+    /**
+     * The events of the window, by channel, SERVER for logging on and off.
+     * Only used with its lock held.
+     */
+    private final Map<String, Delta> pending = new LinkedHashMap<>();
+
+    /**
+     * The number of windows notices were sent for, each user getting at most
+     * one notice per window.
+     */
+    private long notices;
+
+    /**
+     * The number of events sent in them, or cancelled.
+     */
+    private long events;
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs a tracker, and starts the thread sending its notices if the
+     * events are gathered.
+     *
+     * @param window    The time events are gathered for, in milliseconds; 0
+     *                  sends every event right away.
+     * @param publisher Sends the notices.
+     */
+    public PresenceTracker(int window, Publisher publisher) {
+        this.window = Math.max(0, window);
+        this.publisher = publisher;
+        if (this.window > 0) {
+            Thread sender = new Thread(this::sendEvery, "Presence");
+            sender.setDaemon(true);
+            sender.start();
+        }
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * This method records that a user logged on.
+     *
+     * @param loginID The loginID of the user.
+     */
+    public void loggedOn(String loginID) {
+        online.add(loginID);
+        record(SERVER, loginID, true);
+    }
+
+    /**
+     * This method records that a user logged off.
+     *
+     * @param loginID The loginID of the user.
+     */
+    public void loggedOff(String loginID) {
+        online.remove(loginID);
+        record(SERVER, loginID, false);
+    }
+
+    /**
+     * This method records that a user joined a channel.
+     *
+     * @param channel The channel.
+     * @param loginID The loginID of the user.
+     */
+    public void joined(String channel, String loginID) {
+        record(channel, loginID, true);
+    }
+
+    /**
+     * This method records that a user left a channel.
+     *
+     * @param channel The channel.
+     * @param loginID The loginID of the user.
+     */
+    public void left(String channel, String loginID) {
+        record(channel, loginID, false);
+    }
+
+    /**
+     * This method forgets that a user is logged on, without telling anyone:
+     * they disconnected without logging off.
+     *
+     * @param loginID The loginID of the user.
+     */
+    public void forget(String loginID) {
+        online.remove(loginID);
+    }
+
+    /**
+     * @param loginID The loginID of a user.
+     * @return true if the user is logged on to this server.
+     */
+    public boolean isOnline(String loginID) {
+        return online.contains(loginID);
+    }
+
+    /**
+     * @return The number of users logged on to this server.
+     */
+    public int getOnlineCount() {
+        return online.size();
+    }
+
+    /**
+     * This method lists the users logged on to this server whose loginID
+     * starts with a prefix, in order.
+     *
+     * @param prefix The prefix, "" for every user.
+     * @param limit  The largest number of loginIDs listed.
+     * @return The loginIDs.
+     */
+    public List<String> getOnline(String prefix, int limit) {
+        List<String> found = new ArrayList<>();
+        for (String loginID : online.tailSet(prefix)) {
+            if (!loginID.startsWith(prefix) || found.size() >= limit) {
+                break;
+            }
+            found.add(loginID);
+        }
+        return found;
+    }
+
+    /**
+     * @return A line telling in how many windows how many events were sent.
+     */
+    public synchronized String report() {
+        return "Presence: " + online.size() + " users online, " + events + " events sent in " + notices
+                + " windows" + (window > 0 ? " every " + window + " ms" : "") + ".";
+    }
+
+    /**
+     * This method records an event, or sends it right away if events are not
+     * gathered.
+     */
+    private void record(String key, String loginID, boolean arrived) {
+        if (window == 0) {
+            Delta delta = new Delta();
+            (arrived ? delta.arrived : delta.left).add(loginID);
+            send(Map.of(key, delta));
+            return;
+        }
+        synchronized (this) {
+            Delta delta = pending.computeIfAbsent(key, k -> new Delta());
+
+            // Coming back within the window cancels leaving, and the other way round
+            if (!(arrived ? delta.left : delta.arrived).remove(loginID)) {
+                (arrived ? delta.arrived : delta.left).add(loginID);
+            } else {
+                events += 2;
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * This method sends the events of every window, until the program ends.
+     */
+    private void sendEvery() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (pending.isEmpty()) {
+                        wait();
+                    }
+                }
+                Thread.sleep(window);
+
+                Map<String, Delta> deltas;
+                synchronized (this) {
+                    deltas = new LinkedHashMap<>(pending);
+                    pending.clear();
+                }
+                send(deltas);
+            }
+        } catch (InterruptedException e) {
+            // The program ends
+        }
+    }
+
+    /**
+     * This method sends the notices of the events of a window, those of the
+     * server and those of every channel.
+     */
+    private void send(Map<String, Delta> deltas) {
+        String everyone = null;
+        Map<String, String> channels = new HashMap<>();
+        int sent = 0;
+        for (Map.Entry<String, Delta> entry : deltas.entrySet()) {
+            String key = entry.getKey();
+            Delta delta = entry.getValue();
+            StringBuilder text = new StringBuilder();
+            describe(text, delta.arrived, key.equals(SERVER) ? "logged on." : "joined #" + key + ".");
+            describe(text, delta.left, key.equals(SERVER) ? "disconnected." : "left #" + key + ".");
+            if (text.length() == 0) {
+                continue;
+            }
+            if (key.equals(SERVER)) {
+                everyone = text.toString();
+            } else {
+                channels.put(key, text.toString());
+            }
+            sent += delta.arrived.size() + delta.left.size();
+        }
+        if (everyone == null && channels.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            notices++;
+            events += sent;
+        }
+        publisher.publish(everyone, channels);
+    }
+
+    /**
+     * This method adds the line telling what some users did, such as
+     * "> alice, bob and 3 others have logged on.".
+     */
+    private static void describe(StringBuilder text, Set<String> loginIDs, String action) {
+        if (loginIDs.isEmpty()) {
+            return;
+        }
+        if (text.length() > 0) {
+            text.append('\n');
+        }
+        text.append("> ");
+        int named = Math.min(loginIDs.size(), MAX_NAMES);
+        int others = loginIDs.size() - named;
+        Iterator<String> names = loginIDs.iterator();
+        for (int i = 0; i < named; i++) {
+            text.append(names.next());
+            if (i < named - 2 || (i == named - 2 && others > 0)) {
+                text.append(", ");
+            } else if (i == named - 2) {
+                text.append(" and ");
+            }
+        }
+        if (others > 0) {
+            text.append(" and ").append(others).append(others == 1 ? " other" : " others");
+        }
+        text.append(loginIDs.size() == 1 ? " has " : " have ").append(action);
+    }
+}
+//End of PresenceTracker class
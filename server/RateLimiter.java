@@ -0,0 +1,196 @@
+package server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class limits how fast every user may send, so a single user flooding
+ * the server cannot slow everyone down. Each loginID has two token buckets:
+ * one for messages and one for bytes. They fill up at a steady rate up to
+ * their burst size, and every message takes one token from the first and its
+ * size from the second. A message arriving when either is short is refused.
+ *
+ * There is no lock shared by the users: buckets are found in a concurrent map
+ * and only the bucket of the sender is locked, which is only contended when
+ * the same user sends on several connections at once. Connections that have
+ * not logged on yet are limited too, each with buckets of its own, so they
+ * cannot flood the server before logging on. A message larger than
+ * the byte burst goes through when the bucket is full, and the bucket goes
+ * into debt; the user has to wait until the debt is repaid.
+ */
+public class RateLimiter {
+    // Class variables *************************************************
+
+    /**
+     * The number of buckets above which the idle ones are forgotten.
+     */
+    private static final int PRUNE_THRESHOLD = 1024;
+
+    /**
+     * The tokens of a user.
+     */
+    private static final class Bucket {
+        double messages;
+        double bytes;
+        long refilled;
+
+        Bucket(double messages, double bytes, long now) {
+            this.messages = messages;
+            this.bytes = bytes;
+            this.refilled = now;
+        }
+    }
+
+    // Instance variables **********************************************
+
+    /**
+     * The messages a user may send per second, 0 for no limit.
+     */
+    private final double messageRate;
+
+    /**
+     * The messages a user may send at once.
+     */
+    private final double messageBurst;
+
+    /**
+     * The bytes a user may send per second, 0 for no limit.
+     */
+    private final double byteRate;
+
+    /**
+     * The bytes a user may send at once.
+     */
+    private final double byteBurst;
+
+    /**
+     * The buckets of the users, by loginID, and of the connections not
+     * logged on yet.
+     */
+    private final Map<Object, Bucket> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * When the idle buckets were last forgotten, in nanoseconds.
+     */
+    private final AtomicLong pruned = new AtomicLong(System.nanoTime());
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs a limiter.
+     *
+     * @param messageRate  The messages a user may send per second, 0 for no
+     *                     limit.
+     * @param messageBurst The messages a user may send at once; at least 1.
+     * @param byteRate     The bytes a user may send per second, 0 for no
+     *                     limit.
+     * @param byteBurst    The bytes a user may send at once; at least 1.
+     */
+    public RateLimiter(int messageRate, int messageBurst, int byteRate, int byteBurst) {
+        this.messageRate = Math.max(0, messageRate);
+        this.messageBurst = Math.max(1, messageBurst);
+        this.byteRate = Math.max(0, byteRate);
+        this.byteBurst = Math.max(1, byteBurst);
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * This method takes the tokens of a message from the buckets of a user.
+     *
+     * @param sender The loginID of the user, or their connection if they have
+     *               not logged on yet.
+     * @param bytes  The size of the message, in bytes.
+     * @return false if the user sends too fast: the message must be refused,
+     *         and nothing was taken.
+     */
+    public boolean tryAcquire(Object sender, int bytes) {
+        long now = System.nanoTime();
+        Bucket bucket = buckets.computeIfAbsent(sender, id -> new Bucket(messageBurst, byteBurst, now));
+        boolean allowed;
+        synchronized (bucket) {
+            double seconds = Math.max(0, now - bucket.refilled) / 1e9;
+            bucket.refilled = Math.max(bucket.refilled, now);
+            bucket.messages = Math.min(messageBurst, bucket.messages + seconds * messageRate);
+            bucket.bytes = Math.min(byteBurst, bucket.bytes + seconds * byteRate);
+
+            allowed = (messageRate == 0 || bucket.messages >= 1)
+                    && (byteRate == 0 || bucket.bytes >= Math.min(bytes, byteBurst));
+            if (allowed) {
+                bucket.messages -= 1;
+                bucket.bytes -= bytes;
+            }
+        }
+
+        prune(now);
+        return allowed;
+    }
+
+    /**
+     * @return The number of users with a bucket.
+     */
+    public int size() {
+        return buckets.size();
+    }
+
+    /**
+     * This method forgets the buckets of a connection that closed before
+     * logging on.
+     *
+     * @param sender The connection.
+     */
+    public void forget(Object sender) {
+        buckets.remove(sender);
+    }
+
+    /**
+     * This method forgets the buckets that are full again, at most once a
+     * second and only when there are many: their users would get the same
+     * tokens from a new bucket.
+     */
+    private void prune(long now) {
+        long last = pruned.get();
+        if (buckets.size() <= PRUNE_THRESHOLD || now - last < TimeUnit.SECONDS.toNanos(1)
+                || !pruned.compareAndSet(last, now)) {
+            return;
+        }
+        buckets.values().removeIf(bucket -> {
+            synchronized (bucket) {
+                double seconds = (now - bucket.refilled) / 1e9;
+                return (messageRate == 0 || bucket.messages + seconds * messageRate >= messageBurst)
+                        && (byteRate == 0 || bucket.bytes + seconds * byteRate >= byteBurst);
+            }
+        });
+    }
+
+    // Class methods ***************************************************
+
+    /**
+     * This method counts the bytes of a message once encoded in UTF-8,
+     * without encoding it.
+     *
+     * @param text The message.
+     * @return The number of bytes.
+     */
+    public static int utf8Length(String text) {
+        int bytes = text.length();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x800) {
+                if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                        && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    bytes += 2;
+                    i++;
+                } else {
+                    bytes += 2;
+                }
+            } else if (c >= 0x80) {
+                bytes++;
+            }
+        }
+        return bytes;
+    }
+}
+//End of RateLimiter class
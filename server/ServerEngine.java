@@ -0,0 +1,79 @@
+package server;
+
+import java.io.*;
+
+/**
+ * This interface contains the operations the server console needs from the
+ * component that accepts and serves the client connections.
+ */
+public interface ServerEngine {
+
+    /**
+     * Starts listening for new connections.
+     *
+     * @throws IOException If the port could not be bound.
+     */
+    public abstract void listen() throws IOException;
+
+    /**
+     * Stops listening for new connections. Connected clients stay connected.
+     */
+    public abstract void stopListening();
+
+    /**
+     * Stops listening for new connections and disconnects every client.
+     *
+     * @throws IOException If a problem occurred while closing.
+     */
+    public abstract void close() throws IOException;
+
+    /**
+     * @return true if the server is listening for new connections.
+     */
+    public abstract boolean isListening();
+
+    /**
+     * @return The number of clients currently connected.
+     */
+    public abstract int getNumberOfClients();
+
+    /**
+     * @return The connections of every client currently connected.
+     */
+    public abstract ClientConnection[] getClientConnections();
+
+    /**
+     * @return The port the server listens on.
+     */
+    public abstract int getPort();
+
+    /**
+     * Sets the port to listen on the next time the server starts listening.
+     *
+     * @param port The new port number.
+     */
+    public abstract void setPort(int port);
+
+    /**
+     * Moves the server to another port. While listening, the new port is
+     * bound before the old one is closed, so connections are accepted all
+     * along, and connected clients stay connected.
+     *
+     * @param port The new port number.
+     * @throws IOException If the new port could not be bound; the server
+     *                     keeps listening on the old one.
+     */
+    public abstract void switchPort(int port) throws IOException;
+
+    /**
+     * Sends a message to every connected client.
+     *
+     * @param msg The message to be sent.
+     */
+    public abstract void sendToAllClients(Object msg);
+
+    /**
+     * @return The counters of the engine.
+     */
+    public abstract ServerMetrics getMetrics();
+}
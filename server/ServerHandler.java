@@ -0,0 +1,48 @@
+package server;
+
+/**
+ * This interface contains the hooks a server engine calls while it serves its
+ * clients. They mirror the hooks of ocsf's AbstractServer.
+ */
+public interface ServerHandler {
+
+    /**
+     * Called for every message received from a client.
+     *
+     * @param msg    The message received from the client.
+     * @param client The connection from which the message originated.
+     */
+    public abstract void handleMessageFromClient(Object msg, ClientConnection client);
+
+    /**
+     * Called when a new client is connected.
+     *
+     * @param client The connection that was established.
+     */
+    public abstract void clientConnected(ClientConnection client);
+
+    /**
+     * Called when a client is disconnected.
+     *
+     * @param client The connection that was closed.
+     */
+    public abstract void clientDisconnected(ClientConnection client);
+
+    /**
+     * Called when an exception is thrown while serving a client.
+     *
+     * @param client    The connection that caused the exception.
+     * @param exception The exception that was thrown.
+     */
+    public abstract void clientException(ClientConnection client, Throwable exception);
+
+    /**
+     * Called when the server starts listening for connections.
+     */
+    public abstract void serverStarted();
+
+    /**
+     * Called when the server stops listening for connections.
+     */
+    public abstract void serverStopped();
+}
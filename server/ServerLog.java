@@ -0,0 +1,441 @@
+package server;
+
+import java.io.*;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class is the log of the server. Threads serving clients never write to
+ * the console themselves: they put the event in a ring buffer, without taking
+ * any lock, and a background thread formats the events and writes them in
+ * batches. If the writer falls behind and the ring is full, events are dropped
+ * and counted rather than slowing the clients down.
+ *
+ * Events are written as "time LEVEL text". The text is a template where every
+ * "{}" is replaced by the next argument; it is only formatted by the writer,
+ * and only if the level of the event is logged. Events logged for every
+ * message can also be sampled, so only one in N of them is kept.
+ */
+public class ServerLog {
+    // Class variables *************************************************
+
+    /**
+     * The default number of events the ring holds.
+     */
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    /**
+     * The largest number of events written at once.
+     */
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * How times are written.
+     */
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+    /**
+     * How important an event is.
+     */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR;
+
+        /**
+         * This method reads a level written as on the command line, for
+         * instance "debug".
+         *
+         * @param name The name of the level.
+         * @return The level.
+         * @throws IllegalArgumentException If no level has that name.
+         */
+        public static Level parse(String name) {
+            try {
+                return valueOf(name.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown log level '" + name + "'.");
+            }
+        }
+    }
+
+    /**
+     * A slot of the ring. Slots are reused, so logging allocates nothing
+     * besides the arguments themselves.
+     */
+    private static final class Event {
+        Level level;
+        long time;
+        String template;
+        Object first;
+        Object second;
+        Object[] args;
+    }
+
+    // Instance variables **********************************************
+
+    /**
+     * Where the events are written.
+     */
+    private final PrintStream out;
+
+    /**
+     * The slots of the ring.
+     */
+    private final Event[] events;
+
+    /**
+     * For every slot, the position it can be written at when it is free, or
+     * that position plus one once the event is ready to be read.
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * The size of the ring minus one; the size is a power of two.
+     */
+    private final int mask;
+
+    /**
+     * The position of the next event to write in the ring.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The position of the next event to read. Only used by the writer.
+     */
+    private long head;
+
+    /**
+     * The number of events dropped because the ring was full.
+     */
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * The lowest level logged.
+     */
+    private volatile Level level = Level.INFO;
+
+    /**
+     * One sampled event in this many is logged.
+     */
+    private volatile int sampleRate = 1;
+
+    /**
+     * The thread formatting and writing the events.
+     */
+    private final Thread writer;
+
+    /**
+     * Tells if the writer is about to park, so producers wake it up.
+     */
+    private volatile boolean idle;
+
+    /**
+     * Tells if the log was closed.
+     */
+    private volatile boolean closed;
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs a log writing to a stream, with the default capacity.
+     *
+     * @param out Where to write the events.
+     */
+    public ServerLog(PrintStream out) {
+        this(out, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructs a log writing to a stream and starts its writer. The events
+     * still waiting when the program exits are written first.
+     *
+     * @param out      Where to write the events.
+     * @param capacity The number of events the ring holds, rounded up to a
+     *                 power of two.
+     */
+    public ServerLog(PrintStream out, int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.out = out;
+        this.events = new Event[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            events[i] = new Event();
+            sequences.set(i, i);
+        }
+
+        writer = new Thread(this::writeEvents, "Log writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "Log flusher"));
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * @param level The lowest level logged.
+     */
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    /**
+     * @return The lowest level logged.
+     */
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * @param sampleRate One sampled event in this many is logged; 1 logs them
+     *                   all.
+     */
+    public void setSampleRate(int sampleRate) {
+        this.sampleRate = Math.max(1, sampleRate);
+    }
+
+    /**
+     * @return The number of events dropped because the writer fell behind.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @param level A level.
+     * @return true if events of that level are logged.
+     */
+    public boolean isLogged(Level level) {
+        return level.compareTo(this.level) >= 0;
+    }
+
+    /**
+     * This method logs an event.
+     *
+     * @param level    How important the event is.
+     * @param template The text, where every "{}" is replaced by an argument.
+     * @param args     The arguments.
+     */
+    public void log(Level level, String template, Object... args) {
+        if (isLogged(level)) {
+            publish(level, template, null, null, args);
+        }
+    }
+
+    /**
+     * This method logs an event that happens for every message, keeping only
+     * one in the sample rate. It takes at most two arguments, so nothing is
+     * allocated when the event is not kept.
+     *
+     * @param level    How important the event is.
+     * @param template The text, where every "{}" is replaced by an argument.
+     * @param first    The first argument.
+     * @param second   The second argument.
+     */
+    public void sample(Level level, String template, Object first, Object second) {
+        int rate = sampleRate;
+        if (isLogged(level) && (rate == 1 || ThreadLocalRandom.current().nextInt(rate) == 0)) {
+            publish(level, template, first, second, null);
+        }
+    }
+
+    /**
+     * This method writes a line as it is, whatever the level, after the
+     * events logged before it. The server console answers its commands this
+     * way.
+     *
+     * @param text The line.
+     */
+    public void print(String text) {
+        publish(null, "{}", text, null, null);
+    }
+
+    /**
+     * This method logs an event of level DEBUG.
+     */
+    public void debug(String template, Object... args) {
+        log(Level.DEBUG, template, args);
+    }
+
+    /**
+     * This method logs an event of level INFO.
+     */
+    public void info(String template, Object... args) {
+        log(Level.INFO, template, args);
+    }
+
+    /**
+     * This method logs an event of level WARN.
+     */
+    public void warn(String template, Object... args) {
+        log(Level.WARN, template, args);
+    }
+
+    /**
+     * This method logs an event of level ERROR.
+     */
+    public void error(String template, Object... args) {
+        log(Level.ERROR, template, args);
+    }
+
+    /**
+     * This method writes the events still waiting and stops the writer. Events
+     * logged afterwards are dropped.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * This method puts an event in the ring, or drops it if the ring is full.
+     * Producers claim a position by moving the tail, fill the slot, then mark
+     * it ready for the writer.
+     */
+    private void publish(Level level, String template, Object first, Object second, Object[] args) {
+        if (closed) {
+            dropped.increment();
+            return;
+        }
+
+        long position;
+        while (true) {
+            position = tail.get();
+            long available = sequences.get((int) position & mask) - position;
+            if (available < 0) {
+                dropped.increment();
+                return;
+            }
+            if (available == 0 && tail.compareAndSet(position, position + 1)) {
+                break;
+            }
+        }
+
+        Event event = events[(int) position & mask];
+        event.level = level;
+        event.time = System.currentTimeMillis();
+        event.template = template;
+        event.first = first;
+        event.second = second;
+        event.args = args;
+        sequences.set((int) position & mask, position + 1);
+
+        if (idle) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * This method is run by the writer: it formats the events ready and writes
+     * them in batches, and parks while there are none.
+     */
+    private void writeEvents() {
+        StringBuilder batch = new StringBuilder();
+        long reportedDrops = 0;
+
+        while (true) {
+            int count = 0;
+            while (count < BATCH_SIZE && read(batch)) {
+                count++;
+            }
+
+            long drops = dropped.sum();
+            if (drops != reportedDrops && count < BATCH_SIZE) {
+                batch.append(LocalTime.now().format(TIME_FORMAT)).append(" WARN  ").append(drops - reportedDrops)
+                        .append(" log events were dropped because the log could not keep up.")
+                        .append(System.lineSeparator());
+                reportedDrops = drops;
+            }
+
+            if (batch.length() > 0) {
+                out.print(batch);
+                out.flush();
+                batch.setLength(0);
+            } else if (closed) {
+                return;
+            } else {
+                idle = true;
+                if (!isReady()) {
+                    LockSupport.parkNanos(100_000_000L);
+                }
+                idle = false;
+            }
+        }
+    }
+
+    /**
+     * @return true if the next event is ready to be read.
+     */
+    private boolean isReady() {
+        return sequences.get((int) head & mask) == head + 1;
+    }
+
+    /**
+     * This method formats the next event, if it is ready, and frees its slot.
+     *
+     * @param batch Where to format the event.
+     * @return false if no event was ready.
+     */
+    private boolean read(StringBuilder batch) {
+        if (!isReady()) {
+            return false;
+        }
+        int index = (int) head & mask;
+        Event event = events[index];
+
+        if (event.level != null) {
+            batch.append(LocalTime.ofInstant(Instant.ofEpochMilli(event.time), ZoneId.systemDefault())
+                    .format(TIME_FORMAT)).append(' ').append(event.level.name());
+            for (int i = event.level.name().length(); i < 6; i++) {
+                batch.append(' ');
+            }
+        }
+        format(batch, event);
+        batch.append(System.lineSeparator());
+
+        event.template = null;
+        event.first = null;
+        event.second = null;
+        event.args = null;
+        sequences.set(index, head + events.length);
+        head++;
+        return true;
+    }
+
+    // Class methods ***************************************************
+
+    /**
+     * This method writes the text of an event, replacing every "{}" by the
+     * next argument.
+     */
+    private static void format(StringBuilder batch, Event event) {
+        String template = event.template;
+        int argument = 0;
+        int start = 0;
+        int found;
+        while ((found = template.indexOf("{}", start)) >= 0) {
+            batch.append(template, start, found);
+            if (event.args != null) {
+                batch.append(argument < event.args.length ? event.args[argument] : "{}");
+            } else {
+                batch.append(argument == 0 ? event.first : argument == 1 ? event.second : "{}");
+            }
+            argument++;
+            start = found + 2;
+        }
+        batch.append(template, start, template.length());
+    }
+}
+//End of ServerLog class
@@ -0,0 +1,286 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class holds the counters of a server engine: messages received and
+ * written, bytes written, how long a chat line takes to reach every member of
+ * its channel and how long messages wait before being written. Counters are
+ * striped (LongAdder) and histograms use atomic buckets, so the threads
+ * serving clients never contend on them.
+ */
+public class ServerMetrics {
+    // Instance variables **********************************************
+
+    /**
+     * When the counters started.
+     */
+    private final long started = System.nanoTime();
+
+    /**
+     * The number of messages received from clients.
+     */
+    private final LongAdder messagesIn = new LongAdder();
+
+    /**
+     * The number of messages refused because their sender sent too fast.
+     */
+    private final LongAdder throttled = new LongAdder();
+
+    /**
+     * The number of messages written to clients, counted once per client.
+     */
+    private final LongAdder messagesOut = new LongAdder();
+
+    /**
+     * The number of bytes written to clients.
+     */
+    private final LongAdder bytesOut = new LongAdder();
+
+    /**
+     * The time, in nanoseconds, from receiving a chat line to having queued it
+     * for every member of its channel.
+     */
+    private final LatencyHistogram fanOut = new LatencyHistogram();
+
+    /**
+     * The time, in nanoseconds, from creating a message to having written it
+     * to a client, once per client.
+     */
+    private final LatencyHistogram delivery = new LatencyHistogram();
+
+    /**
+     * The counters at the previous report on the console, to compute the
+     * rates since then.
+     */
+    private final Snapshot lastReport = new Snapshot(started);
+
+    /**
+     * The counters at the previous line of the log. Kept apart from those of
+     * the console, so that neither report resets the rates of the other.
+     */
+    private final Snapshot lastLogLine = new Snapshot(started);
+
+    // Instance methods ************************************************
+
+    /**
+     * This method counts a message received from a client.
+     */
+    public void messageReceived() {
+        messagesIn.increment();
+    }
+
+    /**
+     * This method counts a message refused because its sender sent too fast.
+     */
+    public void messageThrottled() {
+        throttled.increment();
+    }
+
+    /**
+     * This method counts a message written to a client.
+     *
+     * @param message The message.
+     * @param bytes   The number of bytes written.
+     */
+    public void messageWritten(EncodedMessage message, int bytes) {
+        messagesOut.increment();
+        bytesOut.add(bytes);
+        delivery.record(System.nanoTime() - message.getCreated());
+    }
+
+    /**
+     * @return The time from receiving a chat line to having queued it for
+     *         every recipient, in nanoseconds.
+     */
+    public LatencyHistogram getFanOut() {
+        return fanOut;
+    }
+
+    /**
+     * @return The time from creating a message to having written it to a
+     *         client, in nanoseconds.
+     */
+    public LatencyHistogram getDelivery() {
+        return delivery;
+    }
+
+    /**
+     * @return The number of messages received from clients.
+     */
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    /**
+     * @return The number of messages refused because their sender sent too
+     *         fast.
+     */
+    public long getThrottled() {
+        return throttled.sum();
+    }
+
+    /**
+     * @return The number of messages written to clients.
+     */
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    /**
+     * @return The number of bytes written to clients.
+     */
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    /**
+     * This method describes the counters, with the rates since the previous
+     * report, on several lines.
+     *
+     * @param engine The engine the counters belong to, for its clients and
+     *               queues.
+     * @return The report.
+     */
+    public String report(ServerEngine engine) {
+        Rates rates = rates(lastReport);
+        QueueDepths queues = new QueueDepths(engine);
+        return "Uptime: " + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started) + " s, "
+                + engine.getNumberOfClients() + " clients\n"
+                + "Messages in: " + getMessagesIn() + " (" + rates.in + "/s), " + getThrottled() + " throttled\n"
+                + "Messages out: " + getMessagesOut() + " (" + rates.out + "/s), " + getBytesOut() + " bytes\n"
+                + "Fan-out: " + percentiles(fanOut) + "\n"
+                + "Delivery: " + percentiles(delivery) + "\n"
+                + "Queues: " + queues.waiting + " messages waiting, " + queues.deepest + " at most for one client, "
+                + queues.dropped + " dropped";
+    }
+
+    /**
+     * This method describes the counters, with the rates since the previous
+     * line, on a single line for the log.
+     *
+     * @param engine The engine the counters belong to.
+     * @return The report.
+     */
+    public String logLine(ServerEngine engine) {
+        Rates rates = rates(lastLogLine);
+        QueueDepths queues = new QueueDepths(engine);
+        return "stats clients=" + engine.getNumberOfClients() + " in/s=" + rates.in + " throttled=" + getThrottled()
+                + " out/s=" + rates.out + " bytesOut=" + getBytesOut()
+                + " fanOut.p99=" + micros(fanOut.getPercentile(99)) + " delivery.p99="
+                + micros(delivery.getPercentile(99)) + " queued=" + queues.waiting + " dropped=" + queues.dropped;
+    }
+
+    /**
+     * This method logs the one-line summary at a fixed period, from a daemon
+     * thread.
+     *
+     * @param engine  The engine the counters belong to.
+     * @param seconds The period.
+     * @param log     The log of the server.
+     */
+    public void logEvery(ServerEngine engine, int seconds, ServerLog log) {
+        Thread logger = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+                    log.info("{}", logLine(engine));
+                }
+            } catch (InterruptedException e) {
+                // Stops logging
+            }
+        }, "Stats logger");
+        logger.setDaemon(true);
+        logger.start();
+    }
+
+    /**
+     * @param last The counters at the previous report of the caller, which
+     *             become those of this one.
+     * @return The message rates since the previous report.
+     */
+    private Rates rates(Snapshot last) {
+        long now = System.nanoTime();
+        long in = getMessagesIn();
+        long out = getMessagesOut();
+        synchronized (last) {
+            double seconds = Math.max(1e-9, (now - last.time) / 1e9);
+            Rates rates = new Rates(Math.round((in - last.messagesIn) / seconds),
+                    Math.round((out - last.messagesOut) / seconds));
+            last.time = now;
+            last.messagesIn = in;
+            last.messagesOut = out;
+            return rates;
+        }
+    }
+
+    // Class methods ***************************************************
+
+    /**
+     * @return The percentiles of a histogram of nanoseconds, in microseconds.
+     */
+    private static String percentiles(LatencyHistogram histogram) {
+        if (histogram.getCount() == 0) {
+            return "no samples";
+        }
+        return "p50=" + micros(histogram.getPercentile(50)) + " p99=" + micros(histogram.getPercentile(99))
+                + " p999=" + micros(histogram.getPercentile(99.9)) + " max=" + micros(histogram.getMax())
+                + " (" + histogram.getCount() + " samples)";
+    }
+
+    /**
+     * @return A number of nanoseconds, written in microseconds.
+     */
+    private static String micros(long nanos) {
+        return (nanos / 1000) + "us";
+    }
+
+    /**
+     * The message rates between two reports.
+     */
+    private static final class Rates {
+        final long in;
+        final long out;
+
+        Rates(long in, long out) {
+            this.in = in;
+            this.out = out;
+        }
+    }
+
+    /**
+     * The counters at a report, to compute the rates of the next one.
+     */
+    private static final class Snapshot {
+        long time;
+        long messagesIn;
+        long messagesOut;
+
+        Snapshot(long time) {
+            this.time = time;
+        }
+    }
+
+    /**
+     * The state of the outbound queues of every client of an engine.
+     */
+    private static final class QueueDepths {
+        long waiting;
+        long deepest;
+        long dropped;
+
+        QueueDepths(ServerEngine engine) {
+            for (ClientConnection client : engine.getClientConnections()) {
+                OutboundQueue queue = client.getOutboundQueue();
+                if (queue != null) {
+                    int size = queue.size();
+                    waiting += size;
+                    deepest = Math.max(deepest, size);
+                    dropped += queue.getDropped();
+                }
+            }
+        }
+    }
+}
+//End of ServerMetrics class
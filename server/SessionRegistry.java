@@ -0,0 +1,196 @@
+package server;
+
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps the sessions of the users, so a client that lost its
+ * connection can take its session back without logging in from scratch. A
+ * session is named by a random token given to the client when it logs in;
+ * when the connection is lost, the channels of the user and the last chat
+ * line before they left are kept with it for a while. A client connecting
+ * again with the token gets them back, and the lines it missed.
+ */
+public class SessionRegistry {
+    // Class variables *************************************************
+
+    /**
+     * The default time a session is kept once its connection is lost, in
+     * seconds.
+     */
+    public static final int DEFAULT_TIMEOUT = 300;
+
+    /**
+     * Where the tokens come from.
+     */
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * The session of a user.
+     */
+    public static final class Session {
+        private final String token;
+        private final String loginID;
+        private SortedSet<String> channels = Collections.emptySortedSet();
+        private String channel;
+        private long lastSeen;
+        private long expires;
+
+        Session(String token, String loginID) {
+            this.token = token;
+            this.loginID = loginID;
+        }
+
+        /**
+         * @return The token naming the session.
+         */
+        public String getToken() {
+            return token;
+        }
+
+        /**
+         * @return The loginID of the user.
+         */
+        public String getLoginID() {
+            return loginID;
+        }
+
+        /**
+         * @return The channels the user was in when the connection was lost.
+         */
+        public synchronized SortedSet<String> getChannels() {
+            return channels;
+        }
+
+        /**
+         * @return The channel the user wrote in, or null.
+         */
+        public synchronized String getChannel() {
+            return channel;
+        }
+
+        /**
+         * @return The number of the last chat line kept by the history before
+         *         the connection was lost.
+         */
+        public synchronized long getLastSeen() {
+            return lastSeen;
+        }
+    }
+
+    // Instance variables **********************************************
+
+    /**
+     * The time a session is kept once its connection is lost, in
+     * milliseconds.
+     */
+    private final long timeout;
+
+    /**
+     * Every session, by token.
+     */
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs an empty registry.
+     *
+     * @param timeout The time a session is kept once its connection is lost,
+     *                in seconds.
+     */
+    public SessionRegistry(int timeout) {
+        this.timeout = TimeUnit.SECONDS.toMillis(timeout);
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * This method opens a session for a user who just logged in.
+     *
+     * @param loginID The loginID of the user.
+     * @return The token naming the session.
+     */
+    public String open(String loginID) {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(token, new Session(token, loginID));
+
+        // The sessions of users who never came back are forgotten
+        if (sessions.size() > 1024) {
+            long now = System.currentTimeMillis();
+            sessions.values().removeIf(session -> {
+                synchronized (session) {
+                    return session.expires != 0 && session.expires < now;
+                }
+            });
+        }
+        return token;
+    }
+
+    /**
+     * This method keeps what a session needs to be resumed, once its
+     * connection was lost. Nothing happens if the session was closed.
+     *
+     * @param token    The token naming the session, may be null.
+     * @param channels The channels the user was in.
+     * @param channel  The channel the user wrote in, or null.
+     * @param lastSeen The number of the last chat line kept by the history.
+     */
+    public void suspend(String token, SortedSet<String> channels, String channel, long lastSeen) {
+        Session session = token == null ? null : sessions.get(token);
+        if (session != null) {
+            synchronized (session) {
+                session.channels = channels;
+                session.channel = channel;
+                session.lastSeen = lastSeen;
+                session.expires = System.currentTimeMillis() + timeout;
+            }
+        }
+    }
+
+    /**
+     * This method gives a session back to a user connecting again.
+     *
+     * @param token   The token the client was given.
+     * @param loginID The loginID the client logs in with.
+     * @return The session, or null if there is no such session for that
+     *         loginID, or if it expired.
+     */
+    public Session resume(String token, String loginID) {
+        Session session = sessions.get(token);
+        if (session == null || !session.loginID.equals(loginID)) {
+            return null;
+        }
+        synchronized (session) {
+            if (session.expires != 0 && session.expires < System.currentTimeMillis()) {
+                sessions.remove(token);
+                return null;
+            }
+            session.expires = 0;
+        }
+        return session;
+    }
+
+    /**
+     * This method forgets a session, when the user logs off on purpose.
+     *
+     * @param token The token naming the session, may be null.
+     */
+    public void close(String token) {
+        if (token != null) {
+            sessions.remove(token);
+        }
+    }
+
+    /**
+     * @return The number of sessions kept.
+     */
+    public int size() {
+        return sessions.size();
+    }
+}
+//End of SessionRegistry class
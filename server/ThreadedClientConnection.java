@@ -0,0 +1,328 @@
+package server;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import common.*;
+
+/**
+ * This class is a client served by the threaded engine: like an ocsf
+ * ConnectionToClient, a thread reads the messages of the client and handles
+ * them one at a time. A second thread writes the messages queued for the
+ * client, so a slow client never blocks the senders; every message queued by
+ * the time it writes goes out in a single write. Both threads are created by
+ * the engine, and can be virtual. The client may speak either the object
+ * stream of ocsf or the compact protocol.
+ */
+public class ThreadedClientConnection extends ClientConnection implements Runnable {
+    // Class variables *************************************************
+
+    /**
+     * Queued by close(): the writer stops and closes the socket when it gets
+     * there.
+     */
+    private static final EncodedMessage END = EncodedMessage.ofBytes(new byte[0]);
+
+    /**
+     * The number of bytes gathered after which they are written without
+     * waiting for more messages.
+     */
+    private static final int GATHER_SIZE = 64 * 1024;
+
+    // Instance variables **********************************************
+
+    /**
+     * The engine that accepted this connection.
+     */
+    private final ThreadedServerEngine engine;
+
+    /**
+     * The socket of the client.
+     */
+    private final Socket clientSocket;
+
+    /**
+     * The stream used to read from a client speaking the object stream.
+     */
+    private ObjectInputStream input;
+
+    /**
+     * The stream used to read from a client speaking the compact protocol.
+     */
+    private DataInputStream framedInput;
+
+    /**
+     * The stream used to write to the client. Messages are encoded by
+     * EncodedMessage for both protocols, so they can be shared between
+     * clients.
+     */
+    private OutputStream output;
+
+    /**
+     * Tells if the client speaks the compact protocol.
+     */
+    private boolean framed;
+
+    /**
+     * Tells if the long messages are compressed for the client.
+     */
+    private volatile boolean compressed;
+
+    /**
+     * Tells if the protocol of the client is known and its streams are open.
+     */
+    private volatile boolean started;
+
+    /**
+     * The messages waiting to be written to the client.
+     */
+    private final OutboundQueue queue;
+
+    /**
+     * Tells if the connection was closed on purpose.
+     */
+    private volatile boolean readyToStop;
+
+    /**
+     * Tells if the disconnection was already reported.
+     */
+    private final AtomicBoolean disconnected = new AtomicBoolean();
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs a connection for a socket accepted by the engine.
+     *
+     * @param engine       The engine that accepted the socket.
+     * @param clientSocket The socket of the client.
+     * @param queue        The queue of the messages waiting to be written.
+     */
+    ThreadedClientConnection(ThreadedServerEngine engine, Socket clientSocket, OutboundQueue queue) {
+        this.engine = engine;
+        this.clientSocket = clientSocket;
+        this.queue = queue;
+    }
+
+    // Instance methods ************************************************
+
+    /**
+     * This method opens the streams and handles the messages of the client
+     * until the connection is closed.
+     */
+    public void run() {
+        try {
+            openStreams();
+        } catch (IOException e) {
+            closeAll();
+            engine.removeConnection(this);
+            return;
+        }
+
+        engine.newThread(this::writeMessages).start();
+        engine.getHandler().clientConnected(this);
+        try {
+            while (!readyToStop) {
+                Object msg = framed ? WireProtocol.read(framedInput, compressed) : input.readObject();
+                if (!readyToStop) {
+                    engine.getHandler().handleMessageFromClient(msg, this);
+                }
+            }
+        } catch (Exception exception) {
+            if (!readyToStop) {
+                closeAll();
+                engine.removeConnection(this);
+                engine.getHandler().clientException(this, exception);
+            }
+        }
+    }
+
+    /**
+     * This method finds out which protocol the client speaks from its first
+     * byte, then opens the streams for it.
+     *
+     * @throws IOException If the client does not speak a known protocol.
+     */
+    private void openStreams() throws IOException {
+        InputStream in = new BufferedInputStream(clientSocket.getInputStream());
+        in.mark(1);
+        int first = in.read();
+        in.reset();
+
+        output = clientSocket.getOutputStream();
+        if (first == WireProtocol.HELLO[0]) {
+            framedInput = new DataInputStream(in);
+            WireProtocol.readHello(framedInput);
+            output.write(WireProtocol.HELLO);
+            framed = true;
+        } else {
+            output.write(ObjectStreamCodec.STREAM_HEADER);
+            input = new ObjectInputStream(in);
+        }
+        started = true;
+    }
+
+    /**
+     * This method writes the queued messages until close() asks it to stop or
+     * the socket fails, then closes the socket. With a flush tick, it waits
+     * for the tick after the first message, so the messages queued meanwhile
+     * are written with it.
+     */
+    private void writeMessages() {
+        ByteArrayOutputStream gathered = new ByteArrayOutputStream();
+        List<EncodedMessage> messages = new ArrayList<>();
+        List<Integer> sizes = new ArrayList<>();
+        int tick = engine.getOptions().getFlushInterval();
+        try {
+            EncodedMessage message = queue.take();
+            while (message != END) {
+                if (tick > 0) {
+                    Thread.sleep(tick);
+                }
+                do {
+                    sizes.add(message.writeTo(gathered, framed, compressed));
+                    messages.add(message);
+                    message = gathered.size() < GATHER_SIZE ? queue.poll() : null;
+                } while (message != null && message != END);
+
+                gathered.writeTo(output);
+                for (int i = 0; i < messages.size(); i++) {
+                    engine.getMetrics().messageWritten(messages.get(i), sizes.get(i));
+                }
+
+                // A large message does not keep its buffer for the next ones
+                if (gathered.size() > GATHER_SIZE) {
+                    gathered = new ByteArrayOutputStream();
+                } else {
+                    gathered.reset();
+                }
+                messages.clear();
+                sizes.clear();
+
+                if (message == null) {
+                    message = queue.take();
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // The socket is closed below, which also ends the reading thread
+        } finally {
+            closeAll();
+            queue.clear();
+        }
+    }
+
+    /**
+     * This method compresses the long messages for a client of the compact
+     * protocol.
+     */
+    @Override
+    public boolean setCompressed(boolean compressed) {
+        if (!framed) {
+            return false;
+        }
+        this.compressed = compressed;
+        return true;
+    }
+
+    /**
+     * This method queues a message to be written to the client.
+     */
+    @Override
+    public void sendToClient(Object msg) throws IOException {
+        send(new EncodedMessage(msg));
+    }
+
+    /**
+     * This method queues a message, which may be shared with other clients. If
+     * the client is too slow and the policy says so, it is disconnected.
+     */
+    @Override
+    public void send(EncodedMessage message) throws IOException {
+        if (!started || readyToStop || clientSocket.isClosed()) {
+            throw new SocketException("socket does not exist");
+        }
+
+        // Encodes now, so a message that cannot be encoded fails for the sender
+        message.getBytes(framed);
+        if (!queue.offer(message)) {
+            closeAll();
+        }
+    }
+
+    /**
+     * This method closes the connection with the client. The messages already
+     * queued are written first.
+     */
+    @Override
+    public void close() throws IOException {
+        readyToStop = true;
+        if (!started || !queue.offer(END)) {
+            closeAll();
+        }
+        engine.removeConnection(this);
+        if (disconnected.compareAndSet(false, true)) {
+            engine.getHandler().clientDisconnected(this);
+        }
+    }
+
+    /**
+     * This method closes the socket right away, which also ends the writer
+     * even if it is blocked writing to a client that stopped reading.
+     */
+    @Override
+    public void abort() {
+        readyToStop = true;
+        closeAll();
+        queue.clear();
+        queue.offer(END);
+        engine.removeConnection(this);
+        if (disconnected.compareAndSet(false, true)) {
+            engine.getHandler().clientDisconnected(this);
+        }
+    }
+
+    /**
+     * @return The queue of the messages waiting to be written to the client.
+     */
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return queue;
+    }
+
+    /**
+     * This method closes the socket, which also ends the reading thread.
+     */
+    private void closeAll() {
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            // The socket is unusable anyway
+        }
+    }
+
+    /**
+     * This method returns the address of the client.
+     */
+    @Override
+    public InetAddress getInetAddress() {
+        return clientSocket.getInetAddress();
+    }
+
+    /**
+     * This method tells if the connection was neither closed nor lost. It
+     * is no longer connected once close() is called, even while the messages
+     * already sent are being written.
+     */
+    @Override
+    public boolean isConnected() {
+        return !readyToStop && !clientSocket.isClosed();
+    }
+
+    @Override
+    public String toString() {
+        InetAddress address = clientSocket.getInetAddress();
+        return address.getHostName() + " (" + address.getHostAddress() + ")";
+    }
+}
+//End of ThreadedClientConnection class
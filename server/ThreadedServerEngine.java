@@ -0,0 +1,234 @@
+package server;
+
+import java.io.*;
+import java.net.*;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import javax.net.ssl.SSLContext;
+
+/**
+ * This class serves every client on its own thread, like ocsf does, but lets
+ * the threads be virtual. A virtual thread blocked reading an idle client only
+ * costs a small heap object, so tens of thousands of idle clients do not need
+ * as many operating system threads.
+ *
+ * With a TLS context in its options, the engine accepts TLS connections
+ * only. The handshake is made by the thread of the client when it first
+ * reads, so a slow handshake never holds up the acceptor.
+ */
+public class ThreadedServerEngine implements ServerEngine {
+    // Instance variables **********************************************
+
+    /**
+     * The hooks called while serving the clients.
+     */
+    private final ServerHandler handler;
+
+    /**
+     * Creates the threads of every client.
+     */
+    private final ThreadFactory threadFactory;
+
+    /**
+     * The settings of the engine.
+     */
+    private final EngineOptions options;
+
+    /**
+     * The port to listen on.
+     */
+    private int port;
+
+    /**
+     * The socket accepting new connections, or null if not listening.
+     */
+    private volatile ServerSocket serverSocket;
+
+    /**
+     * The last socket let go of by switchPort(): its acceptor ends without
+     * the server having stopped listening.
+     */
+    private volatile ServerSocket switched;
+
+    /**
+     * Every client currently connected.
+     */
+    private final Set<ThreadedClientConnection> connections = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The counters of the engine.
+     */
+    private final ServerMetrics metrics = new ServerMetrics();
+
+    // Constructors ****************************************************
+
+    /**
+     * Constructs the threaded engine.
+     *
+     * @param port    The port to listen on.
+     * @param handler The hooks called while serving the clients.
+     * @param options The settings of the engine.
+     * @param virtual true to serve the clients on virtual threads, false for
+     *                platform threads.
+     */
+    public ThreadedServerEngine(int port, ServerHandler handler, EngineOptions options, boolean virtual) {
+        this.port = port;
+        this.handler = handler;
+        this.options = options;
+        this.threadFactory = virtual ? Thread.ofVirtual().name("client-", 0).factory()
+                : Thread.ofPlatform().name("client-", 0).factory();
+    }
+
+    // Instance methods ************************************************
+
+    public synchronized void listen() throws IOException {
+        if (isListening()) {
+            return;
+        }
+        ServerSocket socket = bind(port);
+        serverSocket = socket;
+        new Thread(() -> acceptConnections(socket), "Connection acceptor").start();
+    }
+
+    public synchronized void switchPort(int port) throws IOException {
+        ServerSocket previous = serverSocket;
+        if (previous == null) {
+            this.port = port;
+            return;
+        }
+        ServerSocket socket = bind(port);
+        this.port = port;
+        serverSocket = socket;
+        switched = previous;
+        new Thread(() -> acceptConnections(socket), "Connection acceptor").start();
+        previous.close();
+    }
+
+    /**
+     * This method opens the socket accepting new connections, a TLS one if
+     * the options hold a TLS context.
+     *
+     * @param port The port to listen on.
+     * @return The socket.
+     * @throws IOException If the port could not be bound.
+     */
+    private ServerSocket bind(int port) throws IOException {
+        SSLContext tls = options.getTlsContext();
+        return tls == null ? new ServerSocket(port) : tls.getServerSocketFactory().createServerSocket(port);
+    }
+
+    /**
+     * This method accepts new connections until the server stops listening and
+     * starts a thread for each of them.
+     *
+     * @param socket The socket accepting the connections.
+     */
+    private void acceptConnections(ServerSocket socket) {
+        handler.serverStarted();
+        try {
+            while (true) {
+                Socket clientSocket = socket.accept();
+                clientSocket.setTcpNoDelay(true);
+                ThreadedClientConnection connection = new ThreadedClientConnection(this, clientSocket,
+                        options.newOutboundQueue());
+                connections.add(connection);
+                threadFactory.newThread(connection).start();
+            }
+        } catch (IOException e) {
+            // The socket was closed by stopListening() or switchPort()
+        } finally {
+            if (socket != switched) {
+                handler.serverStopped();
+            }
+        }
+    }
+
+    public synchronized void stopListening() {
+        ServerSocket socket = serverSocket;
+        serverSocket = null;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // The socket is unusable anyway
+            }
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        stopListening();
+        for (ThreadedClientConnection connection : connections) {
+            connection.close();
+        }
+    }
+
+    public boolean isListening() {
+        return serverSocket != null;
+    }
+
+    public int getNumberOfClients() {
+        return connections.size();
+    }
+
+    public ClientConnection[] getClientConnections() {
+        return connections.toArray(new ClientConnection[0]);
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public void sendToAllClients(Object msg) {
+        EncodedMessage message = new EncodedMessage(msg);
+        for (ThreadedClientConnection connection : connections) {
+            try {
+                connection.send(message);
+            } catch (IOException e) {
+                // The client is leaving, it is cleaned up by its own threads
+            }
+        }
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return The hooks called while serving the clients.
+     */
+    ServerHandler getHandler() {
+        return handler;
+    }
+
+    /**
+     * @return The settings of the engine.
+     */
+    EngineOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * This method creates a thread for a client.
+     *
+     * @param task What the thread runs.
+     * @return The thread, not started.
+     */
+    Thread newThread(Runnable task) {
+        return threadFactory.newThread(task);
+    }
+
+    /**
+     * This method forgets a connection that was closed.
+     *
+     * @param connection The connection that was closed.
+     */
+    void removeConnection(ThreadedClientConnection connection) {
+        connections.remove(connection);
+    }
+}
+//End of ThreadedServerEngine class